@@ -0,0 +1,71 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// One operation is one user, so time and gc.alloc.rate.norm (with -prof gc) are
+// per user
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ItcnApiUserBenchmark {
+  private List<ItcnDirectoryGenerator.Entry> entries;
+
+  private final ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+
+  private int index;
+
+  @Setup
+  public void setUp() {
+    entries = new ItcnDirectoryGenerator(10000).generateEntries();
+  }
+
+  private ItcnDirectoryGenerator.Entry next() {
+    ItcnDirectoryGenerator.Entry entry = entries.get(index);
+    index = (index + 1) % entries.size();
+    return entry;
+  }
+
+  @Benchmark
+  public ItcnApiUser constructor() {
+    return next().toApiUser(groupDictionary);
+  }
+
+  @Benchmark
+  public void optionalLowercase(Blackhole blackhole) {
+    ItcnDirectoryGenerator.Entry entry = next();
+    blackhole.consume(Optional.ofNullable(entry.upn).map(String::toLowerCase).orElse(entry.upn));
+    blackhole.consume(Optional.ofNullable(entry.email).map(String::toLowerCase).orElse(entry.email));
+  }
+
+  @Benchmark
+  public void nullCheckLowercase(Blackhole blackhole) {
+    ItcnDirectoryGenerator.Entry entry = next();
+    blackhole.consume(entry.upn != null ? entry.upn.toLowerCase() : null);
+    blackhole.consume(entry.email != null ? entry.email.toLowerCase() : null);
+  }
+
+  @Benchmark
+  public void rootLocaleLowercase(Blackhole blackhole) {
+    ItcnDirectoryGenerator.Entry entry = next();
+    blackhole.consume(entry.upn != null ? entry.upn.toLowerCase(Locale.ROOT) : null);
+    blackhole.consume(entry.email != null ? entry.email.toLowerCase(Locale.ROOT) : null);
+  }
+}
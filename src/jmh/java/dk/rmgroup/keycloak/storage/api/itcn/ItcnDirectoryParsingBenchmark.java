@@ -0,0 +1,86 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time and gc.alloc.rate.norm (with -prof gc) are per directory, divide by
+// users to get the cost per user
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ItcnDirectoryParsingBenchmark {
+  @Param({ "1000", "10000", "100000", "500000" })
+  public int users;
+
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    payload = new ItcnDirectoryGenerator(users).generate().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // The path used by getItcnApiUsers: read all lines into a String, then parse
+  @Benchmark
+  public List<ItcnApiUser> current() {
+    String text = ItcnApiClient.readResponse(new ByteArrayInputStream(payload));
+    return ItcnApiClient.parseItcnApiUsers(text);
+  }
+
+  // Skips the line splitting and joining, but still builds the full JSON tree
+  @Benchmark
+  public List<ItcnApiUser> tokenerFromReader() {
+    JSONObject jsonObject = new JSONObject(
+        new JSONTokener(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8)));
+    return toUsers(jsonObject.getJSONArray("value"));
+  }
+
+  // Same as current, but with plain loops instead of streams when mapping the
+  // JSON tree
+  @Benchmark
+  public List<ItcnApiUser> currentWithLoops() {
+    String text = ItcnApiClient.readResponse(new ByteArrayInputStream(payload));
+    return toUsers(new JSONObject(text).getJSONArray("value"));
+  }
+
+  private static List<ItcnApiUser> toUsers(JSONArray jsonArray) {
+    int length = jsonArray.length();
+    List<ItcnApiUser> users = new ArrayList<>(length);
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    for (int i = 0; i < length; i++) {
+      JSONObject o = jsonArray.getJSONObject(i);
+      String[] groups = new String[] {};
+      JSONArray gr = o.optJSONArray("Groups");
+      if (gr != null) {
+        groups = new String[gr.length()];
+        for (int j = 0; j < groups.length; j++) {
+          groups[j] = gr.getString(j);
+        }
+      }
+      users.add(new ItcnApiUser(o.getString("UPN"), o.getString("Email"), o.optString("FirstName"),
+          o.optString("SurName"), o.optString("MobilePhone"), groups, groupDictionary));
+    }
+    return users;
+  }
+}
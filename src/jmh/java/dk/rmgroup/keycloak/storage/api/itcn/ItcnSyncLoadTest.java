@@ -0,0 +1,213 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ACTIVE_DIRECTORY_URL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ADDITIONAL_ENDPOINTS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_DRY_RUN;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_FETCH_CONCURRENCY;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_GROUP_MAP;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_LAST_MODIFIED_FIELD;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_LOGIN_URL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_PAGE_SIZE;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_PASSWORD;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_SELECT_FIELDS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_USERNAME;
+
+// End-to-end sync load test. Serves a generated directory from ItcnApiStandIn
+// and runs ItcnApiUserStorageProviderFactory.sync against InMemoryKeycloak,
+// first as an initial load and then once per round with churn applied.
+//
+// Arguments (all optional): --users=10000 --groups=400 --mapped-groups=100
+// --min-groups=3 --max-groups=25 --churn=0.05 --rounds=3 --paging=NONE
+// --page-size=1000 --fetch-concurrency=4 --fail-every=0 --endpoints=1
+// --select=false --delta=false --reject-shaping=false --dry-run=false
+//
+// With more than one endpoint the directory is split round-robin between the
+// stand-ins and every additional stand-in also serves the first percent of the
+// users, so the merge has duplicate UPNs to resolve. With --delta the churn
+// rounds run syncSince with a filter on the stand-in's LastModified field.
+// With --dry-run the churn rounds only plan, so every round plans against the
+// initial load.
+//
+// InMemoryKeycloak has no JPA model, so the keyset scan of the existing users,
+// the IN lookup of the directory users and the detection of the bulk load
+// path always take their fallbacks, and are not measured.
+public class ItcnSyncLoadTest {
+  private static final String API_USERNAME = "load-test";
+
+  private static final String API_PASSWORD = "load-test-password";
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+    int groups = Integer.parseInt(options.getOrDefault("groups", "400"));
+    int mappedGroups = Integer.parseInt(options.getOrDefault("mapped-groups", "100"));
+    int minGroups = Integer.parseInt(options.getOrDefault("min-groups", "3"));
+    int maxGroups = Integer.parseInt(options.getOrDefault("max-groups", "25"));
+    double churn = Double.parseDouble(options.getOrDefault("churn", "0.05"));
+    int rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+    ItcnApiStandIn.Paging paging = ItcnApiStandIn.Paging.valueOf(options.getOrDefault("paging", "NONE"));
+    int pageSize = Integer.parseInt(options.getOrDefault("page-size", "1000"));
+    int fetchConcurrency = Integer.parseInt(options.getOrDefault("fetch-concurrency", "4"));
+    int failEvery = Integer.parseInt(options.getOrDefault("fail-every", "0"));
+    int endpointCount = Integer.parseInt(options.getOrDefault("endpoints", "1"));
+    boolean select = Boolean.parseBoolean(options.getOrDefault("select", "false"));
+    boolean delta = Boolean.parseBoolean(options.getOrDefault("delta", "false"));
+    boolean rejectShaping = Boolean.parseBoolean(options.getOrDefault("reject-shaping", "false"));
+    boolean dryRun = Boolean.parseBoolean(options.getOrDefault("dry-run", "false"));
+
+    ItcnDirectoryGenerator generator = new ItcnDirectoryGenerator(users).distinctGroups(groups)
+        .groupsPerUser(minGroups, maxGroups);
+
+    InMemoryKeycloak keycloak = new InMemoryKeycloak("itcn-load-test", "itcn-load-test");
+
+    JSONObject groupMap = new JSONObject();
+    for (int i = 0; i < mappedGroups; i++) {
+      String name = generator.getGroupName(i);
+      keycloak.addGroup(name);
+      groupMap.put(name, "/" + name);
+    }
+
+    List<ItcnApiStandIn> standIns = new ArrayList<>();
+    try {
+      for (int i = 0; i < endpointCount; i++) {
+        ItcnApiStandIn standIn = new ItcnApiStandIn(API_USERNAME, API_PASSWORD);
+        standIn.setPaging(paging);
+        standIn.setServerPageSize(pageSize);
+        standIn.setFailEveryNthRequest(failEvery);
+        standIn.setRejectShaping(rejectShaping);
+        standIns.add(standIn);
+      }
+
+      ItcnApiStandIn primary = standIns.get(0);
+
+      JSONArray additionalEndpoints = new JSONArray();
+      for (ItcnApiStandIn standIn : standIns.subList(1, standIns.size())) {
+        JSONObject endpoint = new JSONObject();
+        endpoint.put(CONFIG_KEY_LOGIN_URL, standIn.getLoginUrl());
+        endpoint.put(CONFIG_KEY_USERNAME, API_USERNAME);
+        endpoint.put(CONFIG_KEY_PASSWORD, API_PASSWORD);
+        endpoint.put(CONFIG_KEY_ACTIVE_DIRECTORY_URL, standIn.getActiveDirectoryUrl());
+        additionalEndpoints.put(endpoint);
+      }
+
+      UserStorageProviderModel model = new UserStorageProviderModel();
+      model.setId("itcn-load-test-provider");
+      model.setName("itcn-load-test");
+      model.put(CONFIG_KEY_LOGIN_URL, primary.getLoginUrl());
+      model.put(CONFIG_KEY_USERNAME, API_USERNAME);
+      model.put(CONFIG_KEY_PASSWORD, API_PASSWORD);
+      model.put(CONFIG_KEY_ACTIVE_DIRECTORY_URL, primary.getActiveDirectoryUrl());
+      model.put(CONFIG_KEY_ADDITIONAL_ENDPOINTS, additionalEndpoints.toString());
+      model.put(CONFIG_KEY_GROUP_MAP, groupMap.toString());
+      model.put(CONFIG_KEY_PAGE_SIZE, String.valueOf(paging == ItcnApiStandIn.Paging.NONE ? 0 : pageSize));
+      model.put(CONFIG_KEY_FETCH_CONCURRENCY, String.valueOf(fetchConcurrency));
+      model.put(CONFIG_KEY_SELECT_FIELDS, String.valueOf(select));
+      if (delta) {
+        model.put(CONFIG_KEY_LAST_MODIFIED_FIELD, "LastModified");
+      }
+
+      ItcnApiUserStorageProviderFactory factory = new ItcnApiUserStorageProviderFactory();
+
+      List<ItcnDirectoryGenerator.Entry> entries = generator.generateEntries();
+
+      System.out.printf(
+          "users=%d groups=%d mapped-groups=%d groups-per-user=%d-%d churn=%.3f rounds=%d paging=%s page-size=%d fetch-concurrency=%d fail-every=%d endpoints=%d select=%b delta=%b reject-shaping=%b dry-run=%b%n",
+          users, groups, mappedGroups, minGroups, maxGroups, churn, rounds, paging, pageSize, fetchConcurrency,
+          failEvery, endpointCount, select, delta, rejectShaping, dryRun);
+      // InMemoryKeycloak has no JpaConnectionProvider, so the sync takes the
+      // fallbacks of the paths that query the database directly
+      System.out.println(
+          "note: no JPA model, so the existing users are scanned with the user provider instead of the keyset scan,"
+              + " directory users are looked up one by one instead of with IN queries and the bulk load path is not"
+              + " detected. The numbers do not apply to those database paths");
+
+      Date lastSync = null;
+
+      for (int round = 0; round <= rounds; round++) {
+        if (round > 0) {
+          entries = generator.churn(entries, churn, round);
+          model.put(CONFIG_KEY_DRY_RUN, String.valueOf(dryRun));
+        }
+        int requestsBefore = 0;
+        for (int i = 0; i < standIns.size(); i++) {
+          standIns.get(i).setDirectory(splitDirectory(entries, i, standIns.size()));
+          requestsBefore += standIns.get(i).getActiveDirectoryRequests();
+        }
+
+        keycloak.resetCounters();
+        long writesBefore = keycloak.getUserWrites();
+        long start = System.nanoTime();
+
+        Date syncStart = new Date();
+        SynchronizationResult result = delta && lastSync != null
+            ? factory.syncSince(lastSync, keycloak.getSessionFactory(), keycloak.getRealmId(), model)
+            : factory.sync(keycloak.getSessionFactory(), keycloak.getRealmId(), model);
+
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        Map<String, Long> queries = keycloak.getQueries();
+        long totalQueries = queries.values().stream().mapToLong(Long::longValue).sum();
+        int requests = standIns.stream().mapToInt(ItcnApiStandIn::getActiveDirectoryRequests).sum() - requestsBefore;
+
+        System.out.printf("round=%d %s wall=%dms directory=%d local-users=%d%n", round,
+            round == 0 ? "(initial load)" : "", wallMillis, entries.size(), keycloak.getUserCount());
+        System.out.printf("  result: %s%n", result.getStatus());
+        System.out.printf("  activedirectory-requests=%d%n", requests);
+        int expectedFetched = entries.size();
+        if (delta && lastSync != null && !rejectShaping) {
+          Set<String> modified = new HashSet<>();
+          for (ItcnApiStandIn standIn : standIns) {
+            modified.addAll(standIn.getUpnsModifiedSince(lastSync));
+          }
+          expectedFetched = modified.size();
+        }
+        if (result instanceof ItcnSynchronizationResult
+            && ((ItcnSynchronizationResult) result).getFetched() != expectedFetched) {
+          throw new IllegalStateException(String.format("Fetched %d users, but expected %d",
+              ((ItcnSynchronizationResult) result).getFetched(), expectedFetched));
+        }
+        lastSync = syncStart;
+        System.out.printf("  queries=%d user-writes=%d sessions=%d %s%n", totalQueries,
+            keycloak.getUserWrites() - writesBefore, keycloak.getSessions(), queries);
+      }
+    } finally {
+      standIns.forEach(ItcnApiStandIn::close);
+    }
+  }
+
+  private static List<ItcnDirectoryGenerator.Entry> splitDirectory(List<ItcnDirectoryGenerator.Entry> entries,
+      int endpoint, int endpoints) {
+    List<ItcnDirectoryGenerator.Entry> result = new ArrayList<>();
+    int overlap = endpoint == 0 ? 0 : entries.size() / 100;
+    for (int i = 0; i < entries.size(); i++) {
+      if (i % endpoints == endpoint || i < overlap) {
+        result.add(entries.get(i));
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (arg.startsWith("--") && arg.contains("=")) {
+        options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      } else {
+        throw new IllegalArgumentException(String.format("Unknown argument '%s'", arg));
+      }
+    }
+    return options;
+  }
+}
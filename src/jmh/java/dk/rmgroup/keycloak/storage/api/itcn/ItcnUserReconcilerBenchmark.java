@@ -0,0 +1,150 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnUserReconciler.ExistingUserStatus;
+
+// One operation is the reconciliation of one user against an in-memory local
+// user, through the planChange and applyUpdate calls a sync makes, so time and
+// gc.alloc.rate.norm (with -prof gc) are per user and exclude any database
+// latency
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ItcnUserReconcilerBenchmark {
+  private static final String FED_ID = "itcn-benchmark";
+
+  private static final int USERS = 1000;
+
+  private static final int DISTINCT_GROUPS = 400;
+
+  @Param({ "10", "100", "400" })
+  public int groupMapSize;
+
+  // Fraction of users with a changed attribute, a missing group and a stale
+  // group
+  @Param({ "0", "0.1", "0.5" })
+  public double churn;
+
+  private ItcnUserReconciler reconciler;
+
+  private List<ItcnApiUser> apiUsers;
+
+  private List<InMemoryUserModel> localUsers;
+
+  // Only answers getUserById, which is all applyUpdate uses
+  private UserProvider userProvider;
+
+  private int index;
+
+  @Setup
+  public void setUp() {
+    ItcnDirectoryGenerator generator = new ItcnDirectoryGenerator(USERS).distinctGroups(DISTINCT_GROUPS);
+    apiUsers = generator.generateUsers();
+
+    Map<String, GroupModel> groupMap = new HashMap<>();
+    for (int i = 0; i < groupMapSize; i++) {
+      String name = generator.getGroupName(i);
+      groupMap.put(name, new InMemoryGroupModel(String.format("group-%d", i), name));
+    }
+
+    reconciler = new ItcnUserReconciler(FED_ID, Arrays.asList("example.dk"), groupMap, false, false);
+
+    Random random = new Random(7);
+    localUsers = new ArrayList<>(USERS);
+    for (int i = 0; i < USERS; i++) {
+      ItcnApiUser apiUser = apiUsers.get(i);
+      InMemoryUserModel localUser = new InMemoryUserModel(String.format("user-%d", i), apiUser.getUpn());
+      localUser.setFederationLink(FED_ID);
+      localUser.setEmail(apiUser.getEmail());
+      localUser.setEmailVerified(true);
+      localUser.setFirstName(apiUser.getFirstName());
+      localUser.setLastName(apiUser.getSurName());
+      localUser.setSingleAttribute("mobile", apiUser.getMobilePhone());
+      localUser.setEnabled(true);
+
+      List<GroupModel> mappedGroups = new ArrayList<>();
+      for (String group : apiUser.getGroups()) {
+        GroupModel kcGroup = groupMap.get(group);
+        if (kcGroup != null) {
+          mappedGroups.add(kcGroup);
+        }
+      }
+
+      boolean churned = random.nextDouble() < churn;
+      if (churned) {
+        localUser.setLastName(apiUser.getSurName() + "-old");
+        if (!mappedGroups.isEmpty()) {
+          mappedGroups.remove(0);
+        }
+        mappedGroups.add(new InMemoryGroupModel("stale-group", "Stale group"));
+      }
+
+      mappedGroups.forEach(localUser::joinGroup);
+      localUsers.add(localUser.setRecordOnly(true));
+    }
+
+    Map<String, UserModel> usersById = new HashMap<>();
+    localUsers.forEach(u -> usersById.put(u.getId(), u));
+    userProvider = (UserProvider) Proxy.newProxyInstance(UserProvider.class.getClassLoader(),
+        new Class<?>[] { UserProvider.class },
+        (proxy, method, args) -> method.getName().equals("getUserById") ? usersById.get((String) args[1]) : null);
+  }
+
+  private int next() {
+    int i = index;
+    index = (index + 1) % USERS;
+    return i;
+  }
+
+  @Benchmark
+  public void reconcile(Blackhole blackhole) {
+    int i = next();
+    ItcnApiUser apiUser = apiUsers.get(i);
+    InMemoryUserModel localUser = localUsers.get(i);
+    ExistingUserStatus status = reconciler.getExistingUserStatus(apiUser, localUser);
+    blackhole.consume(status);
+    ItcnUserChange change = reconciler.planChange(apiUser, localUser, 0);
+    if (change != null) {
+      blackhole.consume(reconciler.applyUpdate(userProvider, null, change));
+    }
+  }
+
+  @Benchmark
+  public Object plan() {
+    int i = next();
+    return reconciler.planChange(apiUsers.get(i), localUsers.get(i), 0);
+  }
+
+  @Benchmark
+  public Object groups() {
+    int i = next();
+    return reconciler.planGroups(apiUsers.get(i), localUsers.get(i));
+  }
+}
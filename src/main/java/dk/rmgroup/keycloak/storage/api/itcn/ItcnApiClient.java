@@ -0,0 +1,559 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.jboss.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.FetchEvent;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.ParseEvent;
+
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.OUTCOME_SUCCESS;
+
+public class ItcnApiClient {
+  private static final Logger logger = Logger.getLogger(ItcnApiClient.class);
+
+  private static final long RETRY_BACKOFF_MILLIS = 500;
+
+  // The fields read by parseItcnApiUsers
+  private static final String SELECT_FIELDS = "UPN,Email,FirstName,SurName,MobilePhone,Groups";
+
+  private final String providerName;
+
+  private final int pageSize;
+
+  private final int concurrency;
+
+  private final int retries;
+
+  private final boolean selectFields;
+
+  private final String lastModifiedField;
+
+  private volatile boolean deltaFetched;
+
+  public static class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public HttpStatusException(String url, int status) {
+      super(String.format("Server returned HTTP response code: %d for URL: %s", status, url));
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+  }
+
+  // Thrown when a user lookup would have to fetch the whole directory because
+  // the endpoint does not support $filter
+  public static class UnsupportedFilterException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedFilterException(String message) {
+      super(message);
+    }
+  }
+
+  private static class Page {
+    private final List<ItcnApiUser> users;
+    private final String nextLink;
+    private final int count;
+
+    private Page(List<ItcnApiUser> users, String nextLink, int count) {
+      this.users = users;
+      this.nextLink = nextLink;
+      this.count = count;
+    }
+  }
+
+  // A pageSize of 0 fetches the whole directory in a single request
+  public ItcnApiClient(String providerName, int pageSize, int concurrency, int retries) {
+    this(providerName, pageSize, concurrency, retries, false, null);
+  }
+
+  // selectFields requests only the fields we read using $select, and
+  // lastModifiedField enables delta fetches filtered on that field
+  public ItcnApiClient(String providerName, int pageSize, int concurrency, int retries, boolean selectFields,
+      String lastModifiedField) {
+    this.providerName = providerName;
+    this.pageSize = Math.max(pageSize, 0);
+    this.concurrency = Math.max(concurrency, 1);
+    this.retries = Math.max(retries, 0);
+    this.selectFields = selectFields;
+    this.lastModifiedField = lastModifiedField == null || lastModifiedField.trim().isEmpty() ? null
+        : lastModifiedField.trim();
+  }
+
+  // True if the last fetch only returned users changed since the given date for
+  // at least one endpoint, so users missing from it must not be removed
+  public boolean isDeltaFetched() {
+    return deltaFetched;
+  }
+
+  public String getToken(String loginUrl, String username, String password) throws Exception {
+    URL url = new URL(loginUrl);
+    URLConnection con = url.openConnection();
+    HttpURLConnection http = (HttpURLConnection) con;
+    http.setRequestMethod("POST");
+    http.setDoInput(true);
+    http.setDoOutput(true);
+
+    byte[] out = String.format("{\"username\":\"%s\",\"password\":\"%s\"}", username, password)
+        .getBytes(StandardCharsets.UTF_8);
+    int length = out.length;
+
+    http.setFixedLengthStreamingMode(length);
+    http.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+    http.connect();
+    try (OutputStream os = http.getOutputStream()) {
+      os.write(out);
+    }
+    try (InputStream inputStream = http.getInputStream()) {
+      JSONObject jsonObject = new JSONObject(readResponse(inputStream));
+      return jsonObject.getString("token");
+    }
+  }
+
+  @FunctionalInterface
+  private interface EndpointCall<T> {
+    T call(int endpoint) throws Exception;
+  }
+
+  public List<String> getTokens(List<ItcnApiEndpoint> endpoints) throws Exception {
+    return forEachEndpoint(endpoints, i -> {
+      ItcnApiEndpoint endpoint = endpoints.get(i);
+      return getToken(endpoint.getLoginUrl(), endpoint.getUsername(), endpoint.getPassword());
+    }, "Login");
+  }
+
+  // Fetches all endpoints in parallel and merges them into one directory. When a
+  // UPN is returned by more than one endpoint the user from the first endpoint in
+  // the list is kept
+  public List<ItcnApiUser> getItcnApiUsers(List<ItcnApiEndpoint> endpoints, List<String> tokens) throws Exception {
+    return getItcnApiUsers(endpoints, tokens, null);
+  }
+
+  // If modifiedSince is set and a last modified field is configured, only users
+  // changed since then are requested
+  public List<ItcnApiUser> getItcnApiUsers(List<ItcnApiEndpoint> endpoints, List<String> tokens, Date modifiedSince)
+      throws Exception {
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    String filter = modifiedSince != null && lastModifiedField != null
+        ? String.format("%s ge %s", lastModifiedField, formatDate(modifiedSince))
+        : null;
+
+    deltaFetched = false;
+
+    List<List<ItcnApiUser>> directories = forEachEndpoint(endpoints,
+        i -> getShapedItcnApiUsers(endpoints.get(i).getActiveDirectoryUrl(), tokens.get(i), filter, groupDictionary),
+        "ActiveDirectory");
+
+    if (directories.size() == 1) {
+      return directories.get(0);
+    }
+
+    Map<String, ItcnApiUser> usersByUpn = new LinkedHashMap<>();
+    int duplicates = 0;
+    for (List<ItcnApiUser> directory : directories) {
+      for (ItcnApiUser user : directory) {
+        if (usersByUpn.putIfAbsent(user.getUpn(), user) != null) {
+          duplicates++;
+        }
+      }
+    }
+
+    if (duplicates > 0) {
+      logger.infof("%d users were returned by more than one endpoint for federation provider '%s'", duplicates,
+          providerName);
+    }
+
+    return new ArrayList<>(usersByUpn.values());
+  }
+
+  // Fetches one user from the endpoints in order of precedence, or returns null
+  // if no endpoint has the UPN. At most one user is requested, so a server that
+  // ignores $filter is noticed after one small response. If an endpoint rejects
+  // or ignores the filter, its whole directory is fetched without $select and
+  // $filter like a shaped sync does, unless fullFetch is false, in which case
+  // UnsupportedFilterException is thrown
+  public ItcnApiUser getItcnApiUser(List<ItcnApiEndpoint> endpoints, String upn, boolean fullFetch)
+      throws Exception {
+    String filter = String.format("UPN eq '%s'", upn.replace("'", "''"));
+    List<String> query = new ArrayList<>();
+    if (selectFields) {
+      query.add("$select=" + URLEncoder.encode(SELECT_FIELDS, "UTF-8"));
+    }
+    query.add("$filter=" + URLEncoder.encode(filter, "UTF-8"));
+    query.add("$top=1");
+
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    for (ItcnApiEndpoint endpoint : endpoints) {
+      String token = getToken(endpoint.getLoginUrl(), endpoint.getUsername(), endpoint.getPassword());
+      String usersUrl = endpoint.getActiveDirectoryUrl();
+
+      String unsupported;
+      try {
+        List<ItcnApiUser> users = fetchPageWithRetries(appendQuery(usersUrl, String.join("&", query)), token, 0,
+            groupDictionary).users;
+        ItcnApiUser user = findUser(users, upn);
+        if (user != null) {
+          return user;
+        }
+        if (users.isEmpty()) {
+          continue;
+        }
+        unsupported = "ignored the UPN filter";
+      } catch (HttpStatusException e) {
+        if (e.getStatus() != 400 && e.getStatus() != 501) {
+          throw e;
+        }
+        unsupported = String.format("rejected the request with %d", e.getStatus());
+      }
+
+      if (!fullFetch) {
+        throw new UnsupportedFilterException(
+            String.format("ActiveDirectory endpoint for federation provider '%s' %s", providerName, unsupported));
+      }
+      logger.warnf(
+          "ActiveDirectory endpoint for federation provider '%s' %s. Fetching all users without $select and $filter instead",
+          providerName, unsupported);
+      ItcnApiUser user = findUser(getItcnApiUsers(usersUrl, null, token, groupDictionary), upn);
+      if (user != null) {
+        return user;
+      }
+    }
+    return null;
+  }
+
+  private static ItcnApiUser findUser(List<ItcnApiUser> users, String upn) {
+    for (ItcnApiUser user : users) {
+      if (user.getUpn().equalsIgnoreCase(upn)) {
+        return user;
+      }
+    }
+    return null;
+  }
+
+  private <T> List<T> forEachEndpoint(List<ItcnApiEndpoint> endpoints, EndpointCall<T> call, String endpointName)
+      throws Exception {
+    if (endpoints.size() == 1) {
+      List<T> result = new ArrayList<>();
+      result.add(call.call(0));
+      return result;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(endpoints.size());
+    try {
+      List<CompletableFuture<T>> futures = IntStream.range(0, endpoints.size())
+          .mapToObj(i -> CompletableFuture.supplyAsync(() -> {
+            try {
+              return call.call(i);
+            } catch (Exception e) {
+              throw new CompletionException(new Exception(
+                  String.format("%s endpoint %d of %d failed", endpointName, i + 1, endpoints.size()), e));
+            }
+          }, executor))
+          .collect(Collectors.toList());
+      return joinInOrder(futures);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> List<T> joinInOrder(List<CompletableFuture<T>> futures) throws Exception {
+    List<T> results = new ArrayList<>();
+    for (CompletableFuture<T> future : futures) {
+      try {
+        results.add(future.join());
+      } catch (CompletionException e) {
+        futures.forEach(f -> f.cancel(true));
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+    return results;
+  }
+
+  public List<ItcnApiUser> getItcnApiUsers(String usersUrl, String token) throws Exception {
+    return getItcnApiUsers(usersUrl, null, token, new ItcnGroupDictionary());
+  }
+
+  // Falls back to fetching everything if the server rejects $select or $filter
+  private List<ItcnApiUser> getShapedItcnApiUsers(String usersUrl, String token, String filter,
+      ItcnGroupDictionary groupDictionary) throws Exception {
+    List<String> query = new ArrayList<>();
+    if (selectFields) {
+      query.add("$select=" + URLEncoder.encode(SELECT_FIELDS, "UTF-8"));
+    }
+    if (filter != null) {
+      query.add("$filter=" + URLEncoder.encode(filter, "UTF-8"));
+    }
+
+    if (query.isEmpty()) {
+      return getItcnApiUsers(usersUrl, null, token, groupDictionary);
+    }
+
+    try {
+      List<ItcnApiUser> users = getItcnApiUsers(usersUrl, String.join("&", query), token, groupDictionary);
+      if (filter != null) {
+        deltaFetched = true;
+      }
+      return users;
+    } catch (HttpStatusException e) {
+      if (e.getStatus() != 400 && e.getStatus() != 501) {
+        throw e;
+      }
+      logger.warnf(
+          "ActiveDirectory endpoint for federation provider '%s' rejected the request with %d. Fetching all users without $select and $filter instead. %s",
+          providerName, e.getStatus(), e.getMessage());
+      return getItcnApiUsers(usersUrl, null, token, groupDictionary);
+    }
+  }
+
+  private List<ItcnApiUser> getItcnApiUsers(String usersUrl, String query, String token,
+      ItcnGroupDictionary groupDictionary) throws Exception {
+    if (pageSize == 0) {
+      return fetchPageWithRetries(appendQuery(usersUrl, query), token, -1, groupDictionary).users;
+    }
+
+    Page firstPage = fetchPageWithRetries(getPageUrl(usersUrl, query, 0), token, 0, groupDictionary);
+    List<List<ItcnApiUser>> pages = new ArrayList<>();
+    pages.add(firstPage.users);
+
+    if (firstPage.nextLink != null) {
+      // Server driven paging can only be followed one page at a time
+      Page page = firstPage;
+      while (page.nextLink != null) {
+        page = fetchPageWithRetries(page.nextLink, token, pages.size(), groupDictionary);
+        pages.add(page.users);
+      }
+    } else if (firstPage.count >= 0) {
+      int totalPages = (int) Math.ceil((double) firstPage.count / pageSize);
+      pages.addAll(fetchPagesConcurrently(usersUrl, query, token, 1, totalPages, groupDictionary));
+    } else if (firstPage.users.size() >= pageSize) {
+      // Without a count we fetch a batch of pages at a time until a page is not full
+      int nextPage = 1;
+      boolean lastPageFetched = false;
+      while (!lastPageFetched) {
+        List<List<ItcnApiUser>> batch = fetchPagesConcurrently(usersUrl, query, token, nextPage,
+            nextPage + concurrency, groupDictionary);
+        for (List<ItcnApiUser> page : batch) {
+          if (lastPageFetched) {
+            break;
+          }
+          pages.add(page);
+          lastPageFetched = page.size() < pageSize;
+        }
+        nextPage += concurrency;
+      }
+    }
+
+    List<ItcnApiUser> users = new ArrayList<>();
+    pages.forEach(users::addAll);
+    logger.debugf("Fetched %d users in %d pages for federation provider '%s'", users.size(), pages.size(),
+        providerName);
+    return users;
+  }
+
+  // Returns the pages from firstPage (inclusive) to lastPage (exclusive) in order
+  private List<List<ItcnApiUser>> fetchPagesConcurrently(String usersUrl, String query, String token, int firstPage,
+      int lastPage, ItcnGroupDictionary groupDictionary) throws Exception {
+    if (firstPage >= lastPage) {
+      return new ArrayList<>();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, lastPage - firstPage));
+    try {
+      List<CompletableFuture<List<ItcnApiUser>>> futures = IntStream.range(firstPage, lastPage)
+          .mapToObj(page -> CompletableFuture.supplyAsync(() -> {
+            try {
+              return fetchPageWithRetries(getPageUrl(usersUrl, query, page), token, page, groupDictionary).users;
+            } catch (Exception e) {
+              throw new CompletionException(e);
+            }
+          }, executor))
+          .collect(Collectors.toList());
+
+      return joinInOrder(futures);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Page fetchPageWithRetries(String pageUrl, String token, int page, ItcnGroupDictionary groupDictionary)
+      throws Exception {
+    for (int attempt = 0;; attempt++) {
+      try {
+        return fetchPage(pageUrl, token, page, groupDictionary);
+      } catch (IOException e) {
+        if (attempt >= retries || !isRetryable(e)) {
+          throw e;
+        }
+        logger.warnf("Error fetching page %d from ActiveDirectory endpoint for federation provider '%s'. Retrying. %s",
+            page, providerName, e.getMessage());
+        Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+      }
+    }
+  }
+
+  private static boolean isRetryable(IOException e) {
+    if (e instanceof HttpStatusException) {
+      int status = ((HttpStatusException) e).getStatus();
+      return status == 429 || (status >= 500 && status != 501);
+    }
+    return true;
+  }
+
+  private Page fetchPage(String pageUrl, String token, int page, ItcnGroupDictionary groupDictionary)
+      throws Exception {
+    String text;
+
+    FetchEvent fetchEvent = new FetchEvent();
+    fetchEvent.begin();
+    try {
+      text = getActiveDirectoryResponse(pageUrl, token);
+      fetchEvent.characters = text.length();
+      fetchEvent.outcome = OUTCOME_SUCCESS;
+    } finally {
+      fetchEvent.providerName = providerName;
+      fetchEvent.page = page;
+      fetchEvent.commit();
+    }
+
+    ParseEvent parseEvent = new ParseEvent();
+    parseEvent.begin();
+    try {
+      JSONObject jsonObject = new JSONObject(text);
+      List<ItcnApiUser> users = parseItcnApiUsers(jsonObject, groupDictionary);
+      parseEvent.users = users.size();
+      parseEvent.outcome = OUTCOME_SUCCESS;
+      // OData allows a next link relative to the request URL
+      String nextLink = jsonObject.optString("@odata.nextLink", null);
+      if (nextLink != null && !nextLink.isEmpty()) {
+        nextLink = new URL(new URL(pageUrl), nextLink).toString();
+      } else {
+        nextLink = null;
+      }
+      return new Page(users, nextLink, jsonObject.optInt("@odata.count", -1));
+    } finally {
+      parseEvent.providerName = providerName;
+      parseEvent.page = page;
+      parseEvent.commit();
+    }
+  }
+
+  private String getPageUrl(String usersUrl, String query, int page) {
+    return appendQuery(appendQuery(usersUrl, query),
+        String.format("$top=%d&$skip=%d&$count=true", pageSize, (long) page * pageSize));
+  }
+
+  private static String appendQuery(String url, String query) {
+    if (query == null || query.isEmpty()) {
+      return url;
+    }
+    return url + (url.contains("?") ? "&" : "?") + query;
+  }
+
+  private static String formatDate(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(date);
+  }
+
+  private static String getActiveDirectoryResponse(String usersUrl, String token) throws Exception {
+    URL url = new URL(usersUrl);
+    URLConnection con = url.openConnection();
+    HttpURLConnection http = (HttpURLConnection) con;
+    http.setRequestMethod("GET");
+    http.setRequestProperty("Authorization", String.format("Bearer %s", token));
+    http.setDoOutput(true);
+
+    int status = http.getResponseCode();
+    if (status >= 400) {
+      http.disconnect();
+      throw new HttpStatusException(usersUrl, status);
+    }
+
+    try (InputStream inputStream = http.getInputStream()) {
+      return readResponse(inputStream);
+    }
+  }
+
+  static String readResponse(InputStream inputStream) {
+    return new BufferedReader(
+        new InputStreamReader(inputStream, StandardCharsets.UTF_8))
+        .lines()
+        .collect(Collectors.joining("\n"));
+  }
+
+  static List<ItcnApiUser> parseItcnApiUsers(String text) {
+    return parseItcnApiUsers(new JSONObject(text), new ItcnGroupDictionary());
+  }
+
+  static List<ItcnApiUser> parseItcnApiUsers(JSONObject jsonObject, ItcnGroupDictionary groupDictionary) {
+    return parseItcnApiUsers(jsonObject.getJSONArray("value"), groupDictionary);
+  }
+
+  static List<ItcnApiUser> parseItcnApiUsers(JSONArray jsonArray, ItcnGroupDictionary groupDictionary) {
+    List<ItcnApiUser> users = IntStream.range(0, jsonArray.length())
+        .mapToObj(i -> parseItcnApiUser(jsonArray.getJSONObject(i), groupDictionary))
+        .collect(Collectors.toList());
+    return users;
+  }
+
+  static ItcnApiUser parseItcnApiUser(JSONObject o, ItcnGroupDictionary groupDictionary) {
+    String[] groups = new String[] {};
+    if (o.has("Groups") && !o.isNull("Groups")) {
+      JSONArray gr = o.getJSONArray("Groups");
+      groups = IntStream.range(0, gr.length()).mapToObj(j -> gr.getString(j)).toArray(String[]::new);
+    }
+    return new ItcnApiUser(o.getString("UPN"), o.getString("Email"), o.optString("FirstName"),
+        o.optString("SurName"), o.optString("MobilePhone"), groups, groupDictionary);
+  }
+
+  // Parses a pushed ActiveDirectoryUser, an array of them or a response with a
+  // value array of them
+  static List<ItcnApiUser> parsePushedItcnApiUsers(String text) {
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    Object json = new JSONTokener(text).nextValue();
+    if (json instanceof JSONArray) {
+      return parseItcnApiUsers((JSONArray) json, groupDictionary);
+    }
+    if (json instanceof JSONObject) {
+      JSONObject jsonObject = (JSONObject) json;
+      if (jsonObject.has("value")) {
+        return parseItcnApiUsers(jsonObject, groupDictionary);
+      }
+      return Collections.singletonList(parseItcnApiUser(jsonObject, groupDictionary));
+    }
+    throw new JSONException("Expected an ActiveDirectoryUser or an array of them");
+  }
+}
@@ -0,0 +1,73 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.keycloak.component.ComponentModel;
+
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ACTIVE_DIRECTORY_URL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ADDITIONAL_ENDPOINTS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_LOGIN_URL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_PASSWORD;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_USERNAME;
+
+public class ItcnApiEndpoint {
+  private final String loginUrl;
+
+  private final String username;
+
+  private final String password;
+
+  private final String activeDirectoryUrl;
+
+  public ItcnApiEndpoint(String loginUrl, String username, String password, String activeDirectoryUrl) {
+    this.loginUrl = loginUrl;
+    this.username = username;
+    this.password = password;
+    this.activeDirectoryUrl = activeDirectoryUrl;
+  }
+
+  public String getLoginUrl() {
+    return loginUrl;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public String getActiveDirectoryUrl() {
+    return activeDirectoryUrl;
+  }
+
+  // The endpoint configured in the provider's own fields comes first, followed
+  // by the additional endpoints in the order they are listed. This order is the
+  // precedence used when the same UPN is returned by more than one endpoint
+  public static List<ItcnApiEndpoint> fromConfig(ComponentModel config) {
+    List<ItcnApiEndpoint> endpoints = new ArrayList<>();
+    endpoints.add(new ItcnApiEndpoint(config.get(CONFIG_KEY_LOGIN_URL), config.get(CONFIG_KEY_USERNAME),
+        config.get(CONFIG_KEY_PASSWORD), config.get(CONFIG_KEY_ACTIVE_DIRECTORY_URL)));
+    endpoints.addAll(parseAdditionalEndpoints(config.get(CONFIG_KEY_ADDITIONAL_ENDPOINTS)));
+    return endpoints;
+  }
+
+  public static List<ItcnApiEndpoint> parseAdditionalEndpoints(String additionalEndpointsJson) {
+    List<ItcnApiEndpoint> endpoints = new ArrayList<>();
+    if (additionalEndpointsJson == null || additionalEndpointsJson.trim().isEmpty()) {
+      return endpoints;
+    }
+
+    JSONArray jsonArray = new JSONArray(additionalEndpointsJson);
+    for (int i = 0; i < jsonArray.length(); i++) {
+      JSONObject o = jsonArray.getJSONObject(i);
+      endpoints.add(new ItcnApiEndpoint(o.getString(CONFIG_KEY_LOGIN_URL), o.getString(CONFIG_KEY_USERNAME),
+          o.getString(CONFIG_KEY_PASSWORD), o.getString(CONFIG_KEY_ACTIVE_DIRECTORY_URL)));
+    }
+    return endpoints;
+  }
+}
@@ -1,5 +1,6 @@
 package dk.rmgroup.keycloak.storage.api.itcn;
 
+import java.util.Arrays;
 import java.util.Optional;
 
 public class ItcnApiUser {
@@ -8,15 +9,20 @@ public class ItcnApiUser {
   private final String firstName;
   private final String surName;
   private final String mobilePhone;
-  private final String[] groups;
+  private final int[] groupIndexes;
+  private final long groupsHash;
+  private final ItcnGroupDictionary groupDictionary;
 
-  public ItcnApiUser(String upn, String email, String firstName, String surName, String mobilePhone, String[] groups) {
+  public ItcnApiUser(String upn, String email, String firstName, String surName, String mobilePhone, String[] groups,
+      ItcnGroupDictionary groupDictionary) {
     this.upn = Optional.ofNullable(upn).map(String::toLowerCase).orElse(upn);
     this.email = Optional.ofNullable(email).map(String::toLowerCase).orElse(email);
     this.firstName = firstName;
     this.surName = surName;
     this.mobilePhone = mobilePhone;
-    this.groups = groups;
+    this.groupIndexes = groupDictionary.intern(groups);
+    this.groupsHash = groupDictionary.hash(groupIndexes);
+    this.groupDictionary = groupDictionary;
   }
 
   public String getUpn() {
@@ -40,6 +46,39 @@ public class ItcnApiUser {
   }
 
   public String[] getGroups() {
+    String[] groups = new String[groupIndexes.length];
+    for (int i = 0; i < groupIndexes.length; i++) {
+      groups[i] = groupDictionary.getName(groupIndexes[i]);
+    }
     return groups;
   }
+
+  public int[] getGroupIndexes() {
+    return groupIndexes;
+  }
+
+  // Equal for users with the same groups, also across group dictionaries
+  public long getGroupsHash() {
+    return groupsHash;
+  }
+
+  // True if the users have the same groups, without looking up the names when
+  // they share a dictionary
+  public boolean hasSameGroups(ItcnApiUser other) {
+    if (groupDictionary == other.groupDictionary) {
+      return Arrays.equals(groupIndexes, other.groupIndexes);
+    }
+    if (groupsHash != other.groupsHash || groupIndexes.length != other.groupIndexes.length) {
+      return false;
+    }
+    String[] groups = getGroups();
+    String[] otherGroups = other.getGroups();
+    Arrays.sort(groups);
+    Arrays.sort(otherGroups);
+    return Arrays.equals(groups, otherGroups);
+  }
+
+  public ItcnGroupDictionary getGroupDictionary() {
+    return groupDictionary;
+  }
 }
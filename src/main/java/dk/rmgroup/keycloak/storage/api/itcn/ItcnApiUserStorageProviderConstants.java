@@ -9,4 +9,22 @@ public final class ItcnApiUserStorageProviderConstants {
     public static final String CONFIG_KEY_GROUP_MAP = "groupMap";
     public static final String CONFIG_KEY_ONLY_USE_GROUPS_IN_GROUP_MAP = "onlyUseGroupsInGroupMap";
     public static final String CONFIG_KEY_DO_NOT_OVERRIDE_MOBILE_WITH_EMPTY = "doNotOverrideMobileWithEmpty";
+    public static final String CONFIG_KEY_DRY_RUN = "dryRun";
+    public static final String CONFIG_KEY_ADDITIONAL_ENDPOINTS = "additionalEndpoints";
+    public static final String CONFIG_KEY_PAGE_SIZE = "pageSize";
+    public static final String CONFIG_KEY_FETCH_CONCURRENCY = "fetchConcurrency";
+    public static final String CONFIG_KEY_FETCH_RETRIES = "fetchRetries";
+    public static final String CONFIG_KEY_SELECT_FIELDS = "selectFields";
+    public static final String CONFIG_KEY_LAST_MODIFIED_FIELD = "lastModifiedField";
+    public static final String CONFIG_KEY_COALESCE_CACHE_INVALIDATION = "coalesceCacheInvalidation";
+    public static final String CONFIG_KEY_THROTTLE_TRANSACTIONS_PER_SECOND = "throttleTransactionsPerSecond";
+    public static final String CONFIG_KEY_THROTTLE_USERS_PER_SECOND = "throttleUsersPerSecond";
+    public static final String CONFIG_KEY_THROTTLE_HOURS = "throttleHours";
+    public static final String CONFIG_KEY_THROTTLE_ADAPTIVE = "throttleAdaptive";
+    public static final String CONFIG_KEY_ROLLING_SLICES = "rollingSlices";
+    public static final String CONFIG_KEY_INITIAL_LOAD = "initialLoad";
+    public static final String CONFIG_KEY_CACHED_DIRECTORY_HOURS = "cachedDirectoryHours";
+    public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+    public static final int DEFAULT_FETCH_RETRIES = 3;
+    public static final int DEFAULT_CACHED_DIRECTORY_HOURS = 24;
 }
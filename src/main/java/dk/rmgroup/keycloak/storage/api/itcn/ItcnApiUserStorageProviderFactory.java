@@ -1,33 +1,39 @@
 package dk.rmgroup.keycloak.storage.api.itcn;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.jboss.logging.Logger;
-import org.json.JSONArray;
+import org.keycloak.Config.Scope;
+import org.keycloak.cluster.ClusterProvider;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.email.EmailException;
 import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.models.GroupModel;
@@ -39,26 +45,64 @@ import org.keycloak.models.UserProvider;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProviderFactory;
 import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.managers.UserStorageSyncManager;
 import org.keycloak.storage.user.ImportSynchronization;
 import org.keycloak.storage.user.SynchronizationResult;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
 import com.google.common.base.Strings;
 
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.GroupReconciliationEvent;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PageTransactionEvent;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.RemovalScanEvent;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.SideEffectEvent;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnUserReconciler.GroupChanges;
+
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ACTIVE_DIRECTORY_URL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ADDITIONAL_ENDPOINTS;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ALLOW_UPDATE_UPN_DOMAINS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_CACHED_DIRECTORY_HOURS;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_DO_NOT_OVERRIDE_MOBILE_WITH_EMPTY;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_COALESCE_CACHE_INVALIDATION;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_DRY_RUN;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_FETCH_CONCURRENCY;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_FETCH_RETRIES;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_GROUP_MAP;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_INITIAL_LOAD;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_LAST_MODIFIED_FIELD;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_LOGIN_URL;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ONLY_USE_GROUPS_IN_GROUP_MAP;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_PAGE_SIZE;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_PASSWORD;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_ROLLING_SLICES;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_SELECT_FIELDS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_THROTTLE_ADAPTIVE;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_THROTTLE_HOURS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_THROTTLE_TRANSACTIONS_PER_SECOND;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_THROTTLE_USERS_PER_SECOND;
 import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.CONFIG_KEY_USERNAME;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.DEFAULT_CACHED_DIRECTORY_HOURS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.DEFAULT_FETCH_CONCURRENCY;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnApiUserStorageProviderConstants.DEFAULT_FETCH_RETRIES;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.OUTCOME_CANCELLED;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.OUTCOME_SUCCESS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PAGE_KIND_CREATE;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PAGE_KIND_LOOKUP;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PAGE_KIND_PLAN;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PAGE_KIND_REMOVAL;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.PAGE_KIND_UPDATE;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.SIDE_EFFECT_ADMIN_EVENT;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.SIDE_EFFECT_EMAIL;
 
 public class ItcnApiUserStorageProviderFactory
     implements UserStorageProviderFactory<ItcnApiUserStorageProvider>, ImportSynchronization {
 
+  public static final String PROVIDER_ID = "itcn";
+
   protected final List<ProviderConfigProperty> configMetadata;
 
   private static final Logger logger = Logger.getLogger(ItcnApiUserStorageProviderFactory.class);
@@ -67,6 +111,39 @@ public class ItcnApiUserStorageProviderFactory
 
   private static final int USER_IMPORT_PAGE_SIZE = 100;
 
+  private static final int BULK_LOAD_PAGE_SIZE = 1000;
+
+  private static final int USER_LOOKUP_PAGE_SIZE = 500;
+
+  // Split points of the user id space for the parallel keyset scan
+  private static final String[] USER_ID_RANGE_BOUNDARIES = { "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b",
+      "c", "d", "e", "f" };
+
+  private static final int PAGE_LOCK_RETRIES = 3;
+
+  private static final long PAGE_LOCK_RETRY_BACKOFF_MILLIS = 100;
+
+  // Node-wide option for the page transactions all syncs may run at a time
+  private static final String SPI_KEY_MAX_PAGE_TRANSACTIONS = "maxPageTransactions";
+
+  // Cancels sent to the other nodes of the cluster
+  private static final String CLUSTER_TASK_KEY_CANCEL_SYNC = "itcn-sync-cancel";
+
+  private final Map<String, ItcnUserPushBatcher> pushBatchers = new ConcurrentHashMap<>();
+
+  // The last fully fetched directory of each provider by UPN, kept up to date
+  // with delta fetches, pushes and refreshes until it expires. A user refresh
+  // falls back to it when ITCN cannot be reached
+  private final Map<String, CachedDirectory> cachedDirectories = new ConcurrentHashMap<>();
+
+  // Known conflicts per provider, dropped when its configuration changes
+  private final Map<String, ItcnConflictCache> conflictCaches = new ConcurrentHashMap<>();
+
+  // By default the page transactions of one sync are limited by the parallelism
+  // of the common pool only, so a single sync runs as before. The budget is
+  // configured in init
+  private final ItcnSyncScheduler scheduler = new ItcnSyncScheduler(Runtime.getRuntime().availableProcessors());
+
   public ItcnApiUserStorageProviderFactory() {
     configMetadata = ProviderConfigurationBuilder.create()
         .property()
@@ -94,6 +171,14 @@ public class ItcnApiUserStorageProviderFactory
         .helpText("URL to the ActiveDirectory endpoint")
         .add()
         .property()
+        .name(CONFIG_KEY_ADDITIONAL_ENDPOINTS)
+        .label("Additional endpoints")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Fetch users from more ITCN tenants using a json array like this: [{\"loginUrl\": \"https://...\", \"username\": \"...\", \"password\": \"...\", \"activeDirectoryUrl\": \"https://...\"}]. All endpoints are fetched in parallel and merged. If a UPN is returned by more than one endpoint, the endpoint above takes precedence, followed by the endpoints in the order they are listed.")
+        .secret(true)
+        .add()
+        .property()
         .name(CONFIG_KEY_ALLOW_UPDATE_UPN_DOMAINS)
         .label("Allow taking over users from UPN domains")
         .type(ProviderConfigProperty.STRING_TYPE)
@@ -121,12 +206,138 @@ public class ItcnApiUserStorageProviderFactory
         .type(ProviderConfigProperty.BOOLEAN_TYPE)
         .helpText("If enabled, the mobile phone number will not be overridden if the new value is empty.")
         .add()
+        .property()
+        .name(CONFIG_KEY_DRY_RUN)
+        .label("Dry run")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .helpText(
+            "If enabled, synchronization only reports the users it would add, update and remove and the group changes it would make, without changing anything. Use it to preview a new group map.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_PAGE_SIZE)
+        .label("Page size")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Number of users to fetch per request from the ActiveDirectory endpoint using $top and $skip. If the endpoint returns an @odata.nextLink it is followed instead. Set to 0 to fetch all users in a single request.")
+        .defaultValue("0")
+        .add()
+        .property()
+        .name(CONFIG_KEY_FETCH_CONCURRENCY)
+        .label("Fetch concurrency")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText("Number of pages to fetch from the ActiveDirectory endpoint at the same time.")
+        .defaultValue(String.valueOf(DEFAULT_FETCH_CONCURRENCY))
+        .add()
+        .property()
+        .name(CONFIG_KEY_FETCH_RETRIES)
+        .label("Fetch retries")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Number of times a page is retried if fetching it fails with a connection error or a 429 or 5xx response.")
+        .defaultValue(String.valueOf(DEFAULT_FETCH_RETRIES))
+        .add()
+        .property()
+        .name(CONFIG_KEY_SELECT_FIELDS)
+        .label("Request only mapped fields")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .helpText(
+            "Use $select to only request the fields used by the provider from the ActiveDirectory endpoint. If the endpoint rejects the request, all fields are fetched instead.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_LAST_MODIFIED_FIELD)
+        .label("Last modified field")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Name of a last modified field the ActiveDirectory endpoint can filter on. If set, the periodic changed users sync only fetches users changed since the last sync using $filter and does not remove users. If the endpoint rejects the filter, all users are fetched instead.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_COALESCE_CACHE_INVALIDATION)
+        .label("Coalesce user cache invalidation")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .helpText(
+            "If enabled, synchronization writes users without invalidating the user cache for each of them, and evicts the changed users once per committed page instead. If more than a quarter of the directory changes, the users of the realm are evicted once at the end.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_THROTTLE_TRANSACTIONS_PER_SECOND)
+        .label("Throttle transactions per second")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Maximum number of write transactions per second a synchronization starts. Each transaction writes up to 100 users. Set to 0 for no limit.")
+        .defaultValue("0")
+        .add()
+        .property()
+        .name(CONFIG_KEY_THROTTLE_USERS_PER_SECOND)
+        .label("Throttle users per second")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText("Maximum number of users per second a synchronization writes. Set to 0 for no limit.")
+        .defaultValue("0")
+        .add()
+        .property()
+        .name(CONFIG_KEY_THROTTLE_HOURS)
+        .label("Throttle hours")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "When the throttle applies, in the time zone of the server, as comma separated rules like 'MON-FRI 07:00-17:00, SAT 09:00-12:00'. The days can be left out to mean every day. Leave empty to always throttle.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_THROTTLE_ADAPTIVE)
+        .label("Adaptive throttle")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .helpText(
+            "If enabled, the users per second limit is halved whenever a transaction of the synchronization gets more than twice as slow per user as the fastest one, as happens when it waits for database connections or locks held by logins, and raised again as transactions speed up.")
+        .add()
+        .property()
+        .name(CONFIG_KEY_ROLLING_SLICES)
+        .label("Rolling slices")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "Split the UPNs into this many slices and only verify the existing users of one slice per full synchronization, moving on to the next slice each time, so every user is verified once every this many full synchronizations. New users are created and missing users removed on every full synchronization. Set to 0 or 1 to verify all users every time.")
+        .defaultValue("0")
+        .add()
+        .property()
+        .name(CONFIG_KEY_CACHED_DIRECTORY_HOURS)
+        .label("Cached directory hours")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText(
+            "How many hours the directory fetched by a full synchronization is kept in memory, as a fallback for user refreshes when ITCN cannot be reached. Set to 0 to not keep it.")
+        .defaultValue(String.valueOf(DEFAULT_CACHED_DIRECTORY_HOURS))
+        .add()
+        .property()
+        .name(CONFIG_KEY_INITIAL_LOAD)
+        .label("Initial load")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .helpText(
+            "Use the bulk load path on full synchronizations even if users are linked to the provider. The bulk load path is used automatically while no users are linked. It only looks up the directory users that already exist, does not remove any users and creates the new users in large transactions.")
+        .add()
         .build();
   }
 
+  @Override
+  public void init(Scope config) {
+    scheduler.setBudget(config.getInt(SPI_KEY_MAX_PAGE_TRANSACTIONS, Runtime.getRuntime().availableProcessors()));
+    logger.infof("ITCN syncs on this node share %d concurrent page transactions", scheduler.getBudget());
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    KeycloakModelUtils.runJobInTransaction(factory, session -> {
+      ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+      if (cluster == null) {
+        return;
+      }
+      cluster.registerListener(CLUSTER_TASK_KEY_CANCEL_SYNC, event -> {
+        ItcnSyncCancelEvent cancelEvent = (ItcnSyncCancelEvent) event;
+        String fedId = cancelEvent.getProviderId();
+        ItcnSyncRegistry.cancel(fedId, cancelEvent.getReason() + " on another node");
+        conflictCaches.remove(fedId);
+        cachedDirectories.remove(fedId);
+      });
+    });
+  }
+
   @Override
   public String getId() {
-    return "itcn";
+    return PROVIDER_ID;
   }
 
   @Override
@@ -142,13 +353,13 @@ public class ItcnApiUserStorageProviderFactory
   @Override
   public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
       UserStorageProviderModel model) {
-    return syncImpl(sessionFactory, realmId, model);
+    return syncImpl(sessionFactory, realmId, model, null);
   }
 
   @Override
   public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
       UserStorageProviderModel model) {
-    return syncImpl(sessionFactory, realmId, model);
+    return syncImpl(sessionFactory, realmId, model, lastSync);
   }
 
   @Override
@@ -167,6 +378,25 @@ public class ItcnApiUserStorageProviderFactory
       throw new ComponentValidationException("ActiveDirectory endpoint URL is required!");
     }
 
+    try {
+      ItcnApiEndpoint.parseAdditionalEndpoints(config.get(CONFIG_KEY_ADDITIONAL_ENDPOINTS));
+    } catch (JSONException e) {
+      throw new ComponentValidationException(String.format("Additional endpoints is not valid: %s", e.getMessage()));
+    }
+
+    validateNonNegativeInteger(config, CONFIG_KEY_PAGE_SIZE, "Page size");
+    validateNonNegativeInteger(config, CONFIG_KEY_FETCH_CONCURRENCY, "Fetch concurrency");
+    validateNonNegativeInteger(config, CONFIG_KEY_FETCH_RETRIES, "Fetch retries");
+    validateNonNegativeInteger(config, CONFIG_KEY_THROTTLE_TRANSACTIONS_PER_SECOND, "Throttle transactions per second");
+    validateNonNegativeInteger(config, CONFIG_KEY_THROTTLE_USERS_PER_SECOND, "Throttle users per second");
+    validateNonNegativeInteger(config, CONFIG_KEY_ROLLING_SLICES, "Rolling slices");
+
+    try {
+      ItcnSyncThrottle.Schedule.parse(config.get(CONFIG_KEY_THROTTLE_HOURS));
+    } catch (IllegalArgumentException e) {
+      throw new ComponentValidationException(String.format("Throttle hours is not valid: %s", e.getMessage()));
+    }
+
     GroupMapConfig groupMapConfig = GetGroupMapConfig(session, realm, config);
 
     if (!groupMapConfig.errors.isEmpty()) {
@@ -188,6 +418,33 @@ public class ItcnApiUserStorageProviderFactory
     }
   }
 
+  private static void validateNonNegativeInteger(ComponentModel config, String key, String label)
+      throws ComponentValidationException {
+    String value = config.get(key);
+    if (value == null || value.isEmpty()) {
+      return;
+    }
+    try {
+      if (Integer.parseInt(value) < 0) {
+        throw new ComponentValidationException(String.format("%s must not be negative!", label));
+      }
+    } catch (NumberFormatException e) {
+      throw new ComponentValidationException(String.format("%s must be a number!", label));
+    }
+  }
+
+  private static ItcnSyncThrottle createThrottle(ComponentModel model) {
+    return new ItcnSyncThrottle(model.getName(), getIntConfig(model, CONFIG_KEY_THROTTLE_TRANSACTIONS_PER_SECOND, 0),
+        getIntConfig(model, CONFIG_KEY_THROTTLE_USERS_PER_SECOND, 0),
+        ItcnSyncThrottle.Schedule.parse(model.get(CONFIG_KEY_THROTTLE_HOURS)),
+        model.get(CONFIG_KEY_THROTTLE_ADAPTIVE, false));
+  }
+
+  private static int getIntConfig(ComponentModel model, String key, int defaultValue) {
+    String value = model.get(key);
+    return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+  }
+
   @Override
   public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
     // Periodic sync is normally only refreshed if there are changes to sync
@@ -198,6 +455,14 @@ public class ItcnApiUserStorageProviderFactory
     // So this code ensures that we refresh periodic sync upon any change to the
     // config
     if (!Objects.equals(oldModel.getConfig(), newModel.getConfig())) {
+      // A running sync would keep using the old config, so stop it and let the
+      // next sync apply the new one
+      cancelOnAllNodes(session, newModel, "the provider configuration was changed");
+      conflictCaches.remove(newModel.getId());
+      // The endpoints may have changed, so the cached directory may be another
+      // tenant's
+      cachedDirectories.remove(newModel.getId());
+
       UserStorageProviderModel oldProvider = new UserStorageProviderModel(oldModel);
       UserStorageProviderModel newProvider = new UserStorageProviderModel(newModel);
 
@@ -213,8 +478,42 @@ public class ItcnApiUserStorageProviderFactory
     }
   }
 
+  @Override
+  public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+    cancelOnAllNodes(session, model, "the provider was removed");
+    ItcnUserPushBatcher pushBatcher = pushBatchers.remove(model.getId());
+    if (pushBatcher != null) {
+      pushBatcher.close();
+    }
+    cachedDirectories.remove(model.getId());
+    conflictCaches.remove(model.getId());
+    ItcnSyncRegistry.removeProgress(model.getId());
+  }
+
+  // The sync of a provider may run on any node, so the cancel is also sent to the
+  // others
+  private static void cancelOnAllNodes(KeycloakSession session, ComponentModel model, String reason) {
+    ItcnSyncRegistry.cancel(model.getId(), reason);
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      cluster.notify(CLUSTER_TASK_KEY_CANCEL_SYNC, new ItcnSyncCancelEvent(model.getId(), reason), true);
+    }
+  }
+
+  @Override
+  public void close() {
+    pushBatchers.values().forEach(ItcnUserPushBatcher::close);
+    pushBatchers.clear();
+    cachedDirectories.clear();
+    conflictCaches.clear();
+  }
+
+  // lastSync is only set for changed users syncs, where it is used to filter the
+  // fetch if a last modified field is configured
   private SynchronizationResult syncImpl(KeycloakSessionFactory sessionFactory, String realmId,
-      UserStorageProviderModel model) {
+      UserStorageProviderModel model, Date lastSync) {
+    long syncStarted = System.currentTimeMillis();
+
     ItcnAdminEventLogger adminEventLogger = new ItcnAdminEventLogger(sessionFactory, realmId);
 
     KeycloakSession session = sessionFactory.create();
@@ -224,7 +523,8 @@ public class ItcnApiUserStorageProviderFactory
     EmailSenderProvider emailSenderProvider = session.getProvider(EmailSenderProvider.class);
 
     try {
-      adminEventLogger.Log(String.format("user-storage/%s/sync-starting", model.getName()),
+      logAdminEvent(adminEventLogger, model.getName(),
+          String.format("user-storage/%s/sync-starting", model.getName()),
           String.format("Starting ITCN user synchronization for '%s'", model.getName()));
     } catch (Exception e) {
       logger.errorf(e, "ITCN error logging");
@@ -235,28 +535,39 @@ public class ItcnApiUserStorageProviderFactory
 
     boolean hasImportFinished = false;
 
+    ItcnSyncCancellation cancellation = ItcnSyncRegistry.register(model.getId());
+
+    ItcnSyncProgress progress = ItcnSyncRegistry.startProgress(model.getId(), lastSync == null ? "full" : "changed");
+
+    ItcnSyncScheduler.Share share = scheduler.join(model.getId());
+
     try {
-      String token = getToken(model.get(CONFIG_KEY_LOGIN_URL), model.get(CONFIG_KEY_USERNAME),
-          model.get(CONFIG_KEY_PASSWORD));
+      ItcnApiClient apiClient = createApiClient(model);
+
+      List<ItcnApiEndpoint> endpoints = ItcnApiEndpoint.fromConfig(model);
+
+      List<String> tokens = apiClient.getTokens(endpoints);
 
       try {
-        List<ItcnApiUser> apiUsers = getItcnApiUsers(model.get(CONFIG_KEY_ACTIVE_DIRECTORY_URL), token);
+        List<ItcnApiUser> apiUsers = apiClient.getItcnApiUsers(endpoints, tokens, lastSync);
 
-        try {
-          String allowUpdateUpnDomainsCommaSeparated = model.get(CONFIG_KEY_ALLOW_UPDATE_UPN_DOMAINS);
+        // A sync cancelled by a configuration change fetched with the old endpoints
+        if (!cancellation.isCancelled()) {
+          cacheDirectory(model, apiUsers, apiClient.isDeltaFetched());
+        }
 
-          List<String> allowUpdateUpnDomains = null;
-          if (allowUpdateUpnDomainsCommaSeparated != null && allowUpdateUpnDomainsCommaSeparated.length() > 0) {
-            allowUpdateUpnDomains = Arrays.stream(allowUpdateUpnDomainsCommaSeparated.split(",")).map(d -> d.trim())
-                .collect(Collectors.toList());
-          }
+        try {
+          List<String> allowUpdateUpnDomains = getAllowUpdateUpnDomains(model);
 
           GroupMapConfig groupMapConfig = GetGroupMapConfig(sessionFactory, realmId, model);
 
           Boolean doNotOverrideMobileWithEmpty = model.get(CONFIG_KEY_DO_NOT_OVERRIDE_MOBILE_WITH_EMPTY, false);
 
+          // A delta fetch only contains changed users, so missing users must not be
+          // removed
           ItcnApiUserResult result = importApiUsers(sessionFactory, realmId, model, apiUsers, allowUpdateUpnDomains,
-              groupMapConfig.groupMap, doNotOverrideMobileWithEmpty);
+              groupMapConfig.groupMap, doNotOverrideMobileWithEmpty, !apiClient.isDeltaFetched(), cancellation,
+              progress, share, syncStarted);
 
           synchronizationResult = result.synchronizationResult;
           errors = result.errors;
@@ -285,40 +596,259 @@ public class ItcnApiUserStorageProviderFactory
           "Error getting token for federation provider '%s'. Please check Login endpoint URL and username and password! Exception:<br/>%s",
           model.getName(), getErrorMessage(e)));
       synchronizationResult.setFailed(1);
+    } finally {
+      share.close();
+      ItcnSyncRegistry.unregister(model.getId(), cancellation);
     }
 
+    progress.finish(synchronizationResult.getStatus());
+
     if (hasImportFinished) {
-      adminEventLogger.Log(String.format("user-storage/%s/sync-finished", model.getName()), synchronizationResult);
+      logAdminEvent(adminEventLogger, model.getName(),
+          String.format("user-storage/%s/sync-finished", model.getName()), synchronizationResult);
 
       if (synchronizationResult.getFailed() > 0) {
-        try {
-          String body = String.format(
-              "Error during user synchronization for federation provider '%s' in realm: '%s'. %s users failed syncing. Errors:<br/><br/>%s",
-              model.getName(), realm.getName(), synchronizationResult.getFailed(), String.join("<br/><br/>", errors));
+        String body = String.format(
+            "Error during user synchronization for federation provider '%s' in realm: '%s'. %s users failed syncing. Errors:<br/><br/>%s",
+            model.getName(), realm.getName(), synchronizationResult.getFailed(), String.join("<br/><br/>", errors));
 
-          emailSenderProvider.send(realm.getSmtpConfig(), "log.rmgroup@f24.com", "Error in user sync", body, body);
-        } catch (EmailException ex) {
-          logger.errorf(ex, "Failed to send email");
-        }
+        sendErrorEmail(emailSenderProvider, realm, model.getName(), body);
       }
     } else {
-      adminEventLogger.Log(String.format("user-storage/%s/sync-error", model.getName()),
+      logAdminEvent(adminEventLogger, model.getName(), String.format("user-storage/%s/sync-error", model.getName()),
           "See server log for more details!");
 
-      try {
-        String body = String.format(
-            "Error during user synchronization for federation provider '%s' in realm: '%s'. Errors:<br/><br/>%s",
-            model.getName(), realm.getName(), String.join("<br/><br/>", errors));
+      String body = String.format(
+          "Error during user synchronization for federation provider '%s' in realm: '%s'. Errors:<br/><br/>%s",
+          model.getName(), realm.getName(), String.join("<br/><br/>", errors));
 
-        emailSenderProvider.send(realm.getSmtpConfig(), "log.rmgroup@f24.com", "Error in user sync", body, body);
-      } catch (EmailException ex) {
-        logger.errorf(ex, "Failed to send email");
-      }
+      sendErrorEmail(emailSenderProvider, realm, model.getName(), body);
     }
 
     return synchronizationResult;
   }
 
+  private static ItcnApiClient createApiClient(ComponentModel model) {
+    return new ItcnApiClient(model.getName(), getIntConfig(model, CONFIG_KEY_PAGE_SIZE, 0),
+        getIntConfig(model, CONFIG_KEY_FETCH_CONCURRENCY, DEFAULT_FETCH_CONCURRENCY),
+        getIntConfig(model, CONFIG_KEY_FETCH_RETRIES, DEFAULT_FETCH_RETRIES),
+        model.get(CONFIG_KEY_SELECT_FIELDS, false), model.get(CONFIG_KEY_LAST_MODIFIED_FIELD));
+  }
+
+  private static class CachedDirectory {
+    private final Map<String, ItcnApiUser> users;
+
+    private final long expires;
+
+    CachedDirectory(Map<String, ItcnApiUser> users, long expires) {
+      this.users = users;
+      this.expires = expires;
+    }
+  }
+
+  // A full fetch replaces the cached directory, while a partial one is merged
+  // into it
+  private void cacheDirectory(ComponentModel model, List<ItcnApiUser> apiUsers, boolean partial) {
+    if (partial) {
+      mergeIntoCachedDirectory(model.getId(), apiUsers);
+      return;
+    }
+
+    int hours = getIntConfig(model, CONFIG_KEY_CACHED_DIRECTORY_HOURS, DEFAULT_CACHED_DIRECTORY_HOURS);
+    if (hours <= 0) {
+      cachedDirectories.remove(model.getId());
+      return;
+    }
+    Map<String, ItcnApiUser> users = new ConcurrentHashMap<>(apiUsers.size() * 4 / 3 + 1);
+    apiUsers.forEach(u -> users.put(u.getUpn(), u));
+    cachedDirectories.put(model.getId(),
+        new CachedDirectory(users, System.currentTimeMillis() + TimeUnit.HOURS.toMillis(hours)));
+  }
+
+  private void mergeIntoCachedDirectory(String providerId, List<ItcnApiUser> apiUsers) {
+    Map<String, ItcnApiUser> directory = getCachedDirectory(providerId);
+    if (directory != null) {
+      apiUsers.forEach(u -> directory.put(u.getUpn(), u));
+    }
+  }
+
+  // Returns null if there is no cached directory or it has expired. Expired
+  // directories of all providers are dropped, so a provider that stopped
+  // syncing does not keep its directory
+  private Map<String, ItcnApiUser> getCachedDirectory(String providerId) {
+    long now = System.currentTimeMillis();
+    cachedDirectories.values().removeIf(d -> d.expires < now);
+    CachedDirectory directory = cachedDirectories.get(providerId);
+    return directory == null ? null : directory.users;
+  }
+
+  private static List<String> getAllowUpdateUpnDomains(ComponentModel model) {
+    String allowUpdateUpnDomainsCommaSeparated = model.get(CONFIG_KEY_ALLOW_UPDATE_UPN_DOMAINS);
+
+    List<String> allowUpdateUpnDomains = null;
+    if (allowUpdateUpnDomainsCommaSeparated != null && allowUpdateUpnDomainsCommaSeparated.length() > 0) {
+      allowUpdateUpnDomains = Arrays.stream(allowUpdateUpnDomainsCommaSeparated.split(",")).map(d -> d.trim())
+          .collect(Collectors.toList());
+    }
+    return allowUpdateUpnDomains;
+  }
+
+  // Queues users pushed to the itcn-sync resource. They are applied in batches
+  // per provider, see ItcnUserPushBatcher
+  public List<CompletableFuture<ItcnUserUpdateResult>> pushApiUsers(KeycloakSessionFactory sessionFactory,
+      String realmId, String providerId, List<ItcnApiUser> apiUsers) {
+    ItcnUserPushBatcher pushBatcher = pushBatchers.computeIfAbsent(providerId,
+        id -> new ItcnUserPushBatcher(id, batch -> {
+          mergeIntoCachedDirectory(id, batch);
+          return applyApiUsers(sessionFactory, realmId, id, batch, ItcnUserUpdateResult.SOURCE_PUSH);
+        }));
+    return pushBatcher.submit(apiUsers);
+  }
+
+  // Fetches one user from ITCN and reconciles it right away. If ITCN cannot be
+  // reached or does not support the UPN filter, the user from the last fetched
+  // directory is used instead
+  public ItcnUserUpdateResult refreshApiUser(KeycloakSessionFactory sessionFactory, String realmId,
+      ComponentModel model, String upn) {
+    String cacheKey = upn.toLowerCase();
+    Map<String, ItcnApiUser> directory = getCachedDirectory(model.getId());
+    ItcnApiUser apiUser;
+    String source;
+    try {
+      // With a cached directory there is no need to fetch the whole directory of
+      // an endpoint that does not support $filter
+      apiUser = createApiClient(model).getItcnApiUser(ItcnApiEndpoint.fromConfig(model), upn, directory == null);
+      source = ItcnUserUpdateResult.SOURCE_ITCN;
+      if (directory != null) {
+        if (apiUser != null) {
+          directory.put(cacheKey, apiUser);
+        } else {
+          directory.remove(cacheKey);
+        }
+      }
+    } catch (Exception e) {
+      if (directory == null) {
+        logger.errorf(e, "Error getting user '%s' for federation provider '%s'", upn, model.getName());
+        return ItcnUserUpdateResult.failed(upn, getErrorMessage(e));
+      }
+      logger.warnf(e, "Error getting user '%s' for federation provider '%s'. Using the last fetched directory",
+          upn, model.getName());
+      apiUser = directory.get(cacheKey);
+      source = ItcnUserUpdateResult.SOURCE_CACHE;
+    }
+
+    if (apiUser == null) {
+      ItcnUserUpdateResult result = ItcnUserUpdateResult.notFound(upn,
+          String.format("User is not in the directory of federation provider '%s'", model.getName()));
+      result.setSource(source);
+      return result;
+    }
+
+    return applyApiUsers(sessionFactory, realmId, model.getId(), Collections.singletonList(apiUser), source)
+        .get(apiUser.getUpn());
+  }
+
+  // Reconciles the users in one transaction, with the current configuration of
+  // the provider and the same rules as a sync
+  public Map<String, ItcnUserUpdateResult> applyApiUsers(KeycloakSessionFactory sessionFactory, String realmId,
+      String providerId, List<ItcnApiUser> apiUsers, String source) {
+    return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      session.getContext().setRealm(realm);
+      ComponentModel fedModel = realm.getComponent(providerId);
+      if (fedModel == null) {
+        throw new IllegalStateException(String.format("Federation provider with id '%s' not found", providerId));
+      }
+
+      ItcnUserReconciler reconciler = new ItcnUserReconciler(fedModel.getId(), getAllowUpdateUpnDomains(fedModel),
+          GetGroupMapConfig(session, realm, fedModel).groupMap,
+          fedModel.get(CONFIG_KEY_ONLY_USE_GROUPS_IN_GROUP_MAP, false),
+          fedModel.get(CONFIG_KEY_DO_NOT_OVERRIDE_MOBILE_WITH_EMPTY, false));
+
+      UserProvider userProvider = session.users();
+      Map<String, ItcnUserUpdateResult> results = new LinkedHashMap<>();
+      for (ItcnApiUser apiUser : apiUsers) {
+        ItcnUserUpdateResult result = applyApiUser(userProvider, realm, fedModel, reconciler, apiUser);
+        result.setSource(source);
+        results.put(apiUser.getUpn(), result);
+      }
+      return results;
+    });
+  }
+
+  private ItcnUserUpdateResult applyApiUser(UserProvider userProvider, RealmModel realm, ComponentModel fedModel,
+      ItcnUserReconciler reconciler, ItcnApiUser apiUser) {
+    try {
+      UserModel existingLocalUser = userProvider.getUserByUsername(realm, apiUser.getUpn());
+      if (existingLocalUser != null) {
+        switch (reconciler.getExistingUserStatus(apiUser, existingLocalUser)) {
+          case DOMAIN_NOT_ALLOWED:
+          case NOT_LINKED:
+            return ItcnUserUpdateResult.skipped(apiUser.getUpn(), String.format(
+                "User already exists in Keycloak database but is not linked to federation provider '%s'",
+                fedModel.getName()));
+          default:
+            break;
+        }
+      }
+
+      ItcnUserChange change = reconciler.planChange(apiUser, existingLocalUser, -1);
+      if (change == null) {
+        return ItcnUserUpdateResult.unchanged(apiUser.getUpn());
+      }
+
+      Map<String, List<String>> changedAttributes = change.isAttributesChanged()
+          ? reconciler.diffAttributes(apiUser, existingLocalUser)
+          : Collections.emptyMap();
+      List<String> joinedGroups = change.getGroupChanges().getToJoin().stream().map(GroupModel::getName)
+          .collect(Collectors.toList());
+      List<String> leftGroups = change.getGroupChanges().getToLeave().stream().map(realm::getGroupById)
+          .filter(Objects::nonNull).map(GroupModel::getName).collect(Collectors.toList());
+
+      if (change.getKind() == ItcnUserChange.Kind.CREATE) {
+        reconciler.applyCreate(userProvider, realm, change);
+      } else {
+        reconciler.applyUpdate(userProvider, realm, change);
+      }
+      return ItcnUserUpdateResult.applied(change, changedAttributes, joinedGroups, leftGroups);
+    } catch (Exception e) {
+      logger.errorf(e, "Error importing user from api with username '%s' in federation provider '%s'",
+          apiUser.getUpn(), fedModel.getName());
+      return ItcnUserUpdateResult.failed(apiUser.getUpn(), getErrorMessage(e));
+    }
+  }
+
+  private static void logAdminEvent(ItcnAdminEventLogger adminEventLogger, String providerName, String resourcePath,
+      Object representation) {
+    SideEffectEvent event = new SideEffectEvent();
+    event.begin();
+    try {
+      adminEventLogger.Log(resourcePath, representation);
+      event.outcome = OUTCOME_SUCCESS;
+    } finally {
+      event.providerName = providerName;
+      event.kind = SIDE_EFFECT_ADMIN_EVENT;
+      event.resourcePath = resourcePath;
+      event.commit();
+    }
+  }
+
+  private static void sendErrorEmail(EmailSenderProvider emailSenderProvider, RealmModel realm, String providerName,
+      String body) {
+    SideEffectEvent event = new SideEffectEvent();
+    event.begin();
+    try {
+      emailSenderProvider.send(realm.getSmtpConfig(), "log.rmgroup@f24.com", "Error in user sync", body, body);
+      event.outcome = OUTCOME_SUCCESS;
+    } catch (EmailException ex) {
+      logger.errorf(ex, "Failed to send email");
+    } finally {
+      event.providerName = providerName;
+      event.kind = SIDE_EFFECT_EMAIL;
+      event.commit();
+    }
+  }
+
   class GroupMapConfig {
     private Map<String, GroupModel> groupMap = new HashMap<>();
 
@@ -385,26 +915,619 @@ public class ItcnApiUserStorageProviderFactory
     return groupMapConfig;
   }
 
+  @FunctionalInterface
+  private interface PageJob {
+    void run(KeycloakSession session, RealmModel realm, int page, int startIndex, int endIndex,
+        PageTransactionEvent pageEvent, PageFailures failures);
+  }
+
+  // The errors and failed changes of one attempt at a page. A page rolled back by
+  // a lock conflict is run again, so only those of its last attempt are reported
+  private static class PageFailures {
+    private final List<String> errors = new ArrayList<>();
+    private final List<ItcnUserChange> changes = new ArrayList<>();
+
+    private void clear() {
+      errors.clear();
+      changes.clear();
+    }
+
+    private void addTo(List<String> allErrors, Set<ItcnUserChange> allFailedChanges) {
+      allErrors.addAll(errors);
+      if (allFailedChanges != null) {
+        allFailedChanges.addAll(changes);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface PageCommitted {
+    void committed(int page, int startIndex, int endIndex, PageTransactionEvent pageEvent);
+
+    default PageCommitted andThen(PageCommitted next) {
+      return (page, startIndex, endIndex, pageEvent) -> {
+        committed(page, startIndex, endIndex, pageEvent);
+        next.committed(page, startIndex, endIndex, pageEvent);
+      };
+    }
+  }
+
+  // Runs the job for each page of total items in parallel, each page in its own
+  // transaction. Read-only pages are rolled back instead of committed. Pages
+  // matching skipPage are not run, and afterCommit is called once the
+  // transaction of a page has committed.
+  // Once the sync is cancelled no more pages are started, and pages still
+  // running are rolled back when their job returns.
+  // A page rolled back by a deadlock or lock wait timeout is run again after a
+  // jittered backoff, up to PAGE_LOCK_RETRIES times. The failures of its last
+  // attempt are added to errors and failedChanges before afterCommit is called.
+  // With a throttle, each page waits for its tokens before its transaction
+  // opens, and then for a permit from the node-wide scheduler
+  private static void runPages(KeycloakSessionFactory sessionFactory, String realmId, String providerName,
+      ItcnSyncCancellation cancellation, ItcnSyncThrottle throttle, ItcnSyncProgress progress,
+      ItcnSyncScheduler.Share share, String kind, int total, int pageSize, boolean readOnly, IntPredicate skipPage,
+      List<String> errors, Set<ItcnUserChange> failedChanges, PageJob job, PageCommitted afterCommit) {
+    int totalPages = (int) Math.ceil((double) total / pageSize);
+    if (progress != null) {
+      progress.startPhase(kind, (int) IntStream.range(0, totalPages).filter(page -> !skipPage.test(page)).count());
+    }
+    IntStream.range(0, totalPages).filter(page -> !skipPage.test(page)).parallel().forEach(page -> {
+      if (cancellation.isCancelled()) {
+        return;
+      }
+      int pageUsers = Math.min(pageSize, total - page * pageSize);
+      if (throttle != null && !throttle.acquire(pageUsers, cancellation)) {
+        return;
+      }
+      if (!share.acquire(cancellation)) {
+        return;
+      }
+      PageTransactionEvent pageEvent = new PageTransactionEvent();
+      pageEvent.begin();
+      PageFailures failures = new PageFailures();
+      long started = System.nanoTime();
+      boolean permitHeld = true;
+      try {
+        for (int attempt = 0;; attempt++) {
+          failures.clear();
+          try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+              if (readOnly) {
+                session.getTransactionManager().setRollbackOnly();
+              }
+              RealmModel realm = session.realms().getRealm(realmId);
+              session.getContext().setRealm(realm);
+
+              int startIndex = page * pageSize;
+              int endIndex = Math.min(startIndex + pageSize, total);
+              pageEvent.users = endIndex - startIndex;
+              pageEvent.added = 0;
+              pageEvent.updated = 0;
+              pageEvent.removed = 0;
+              pageEvent.failed = 0;
+
+              job.run(session, realm, page, startIndex, endIndex, pageEvent, failures);
+
+              cancellation.throwIfCancelled();
+            });
+            failures.addTo(errors, failedChanges);
+            break;
+          } catch (RuntimeException e) {
+            if (e instanceof ItcnSyncCancelledException || attempt >= PAGE_LOCK_RETRIES || !isLockConflict(e)) {
+              failures.addTo(errors, failedChanges);
+              throw e;
+            }
+            pageEvent.lockRetries++;
+            logger.infof("Lock conflict in %s page %d for federation provider '%s'. Retrying. %s", kind, page,
+                providerName, e.getMessage());
+            try {
+              Thread.sleep((PAGE_LOCK_RETRY_BACKOFF_MILLIS << attempt)
+                  + ThreadLocalRandom.current().nextLong(PAGE_LOCK_RETRY_BACKOFF_MILLIS));
+            } catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+              throw e;
+            }
+            cancellation.throwIfCancelled();
+          }
+        }
+        // The permit covers the transaction only, so the evictions and side
+        // effects after the commit do not hold it
+        share.release();
+        permitHeld = false;
+        pageEvent.outcome = OUTCOME_SUCCESS;
+        if (throttle != null) {
+          throttle.pageCommitted(pageUsers, System.nanoTime() - started);
+        }
+        if (progress != null) {
+          // Read-only pages only plan changes, so only their failures count
+          if (readOnly) {
+            progress.failed(pageEvent.failed);
+          } else {
+            progress.changesCommitted(pageEvent.added, pageEvent.updated, pageEvent.removed, pageEvent.failed);
+          }
+          progress.pageDone(kind, pageUsers);
+        }
+        if (afterCommit != null) {
+          int startIndex = page * pageSize;
+          afterCommit.committed(page, startIndex, Math.min(startIndex + pageSize, total), pageEvent);
+        }
+      } catch (ItcnSyncCancelledException e) {
+        pageEvent.outcome = OUTCOME_CANCELLED;
+      } finally {
+        if (permitHeld) {
+          share.release();
+        }
+        pageEvent.providerName = providerName;
+        pageEvent.kind = kind;
+        pageEvent.page = page;
+        pageEvent.commit();
+      }
+    });
+  }
+
   private ItcnApiUserResult importApiUsers(KeycloakSessionFactory sessionFactory, final String realmId,
-      final ComponentModel fedModel, List<ItcnApiUser> apiUsers, List<String> allowUpdateUpnDomains,
-      Map<String, GroupModel> groupMap, Boolean doNotOverrideMobileWithEmpty) {
+      final ComponentModel fedModel, List<ItcnApiUser> fetchedApiUsers, List<String> allowUpdateUpnDomains,
+      Map<String, GroupModel> groupMap, Boolean doNotOverrideMobileWithEmpty, boolean removeMissingUsers,
+      ItcnSyncCancellation cancellation, ItcnSyncProgress progress, ItcnSyncScheduler.Share share,
+      long syncStarted) {
     final String fedId = fedModel.getId();
 
-    final Set<String> apiUsersUpnSet = apiUsers.stream().map(u -> u.getUpn()).distinct()
-        .collect(Collectors.toSet());
-
-    final List<String> errors = new ArrayList<>();
+    // Pages add their errors in parallel
+    final List<String> errors = Collections.synchronizedList(new ArrayList<>());
 
     final AtomicInteger removedCount = new AtomicInteger(0);
     final AtomicInteger addedCount = new AtomicInteger(0);
     final AtomicInteger updatedCount = new AtomicInteger(0);
     final AtomicInteger failedCount = new AtomicInteger(0);
+    final AtomicInteger lockRetries = new AtomicInteger(0);
+
+    // Duplicate UPNs and shared emails are resolved before any page runs, so
+    // parallel pages never race on the same user or email
+    boolean duplicateEmailsAllowed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+        (KeycloakSession session) -> session.realms().getRealm(realmId).isDuplicateEmailsAllowed());
+
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(fetchedApiUsers, duplicateEmailsAllowed);
+
+    if (conflicts.getMergedDuplicates() > 0) {
+      logger.infof("Merged %d users returned more than once with the same data for federation provider '%s'",
+          conflicts.getMergedDuplicates(), fedModel.getName());
+    }
+
+    if (conflicts.hasConflicts()) {
+      String diagnostic = conflicts.getDiagnostic(fedModel.getName());
+      logger.warn(diagnostic);
+      errors.add(diagnostic);
+      failedCount.addAndGet(conflicts.getQuarantined());
+      progress.failed(conflicts.getQuarantined());
+    }
+
+    // Pages are formed in UPN order, so parallel pages insert and update users in
+    // separate ranges of the username index instead of interleaving in it
+    final List<ItcnApiUser> apiUsers = new ArrayList<>(conflicts.getUsers());
+    apiUsers.sort(Comparator.comparing(ItcnApiUser::getUpn, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+    Boolean onlyUseGroupsInGroupMap = fedModel.get(CONFIG_KEY_ONLY_USE_GROUPS_IN_GROUP_MAP, false);
+
+    final ItcnUserReconciler reconciler = new ItcnUserReconciler(fedId, allowUpdateUpnDomains, groupMap,
+        onlyUseGroupsInGroupMap, doNotOverrideMobileWithEmpty);
+
+    boolean dryRun = fedModel.get(CONFIG_KEY_DRY_RUN, false);
+
+    final ItcnUserCacheInvalidator cacheInvalidator = new ItcnUserCacheInvalidator(sessionFactory, realmId,
+        fedModel.getName(), !dryRun && fedModel.get(CONFIG_KEY_COALESCE_CACHE_INVALIDATION, false));
+
+    final ItcnSyncThrottle throttle = createThrottle(fedModel);
+
+    // A rolling full sync only verifies the existing users of one slice of the
+    // UPN space, while new and missing users are still found by the scan
+    int slices = getIntConfig(fedModel, CONFIG_KEY_ROLLING_SLICES, 0);
+    final ItcnRollingSlice rollingSlice = removeMissingUsers && slices > 1
+        ? ItcnRollingSlice.load(sessionFactory, fedId, slices)
+        : null;
+
+    final ItcnSyncCheckpoint checkpoint = dryRun ? null
+        : ItcnSyncCheckpoint.load(sessionFactory, fedId,
+            ItcnSyncCheckpoint.digest(apiUsers, fedModel.get(CONFIG_KEY_GROUP_MAP),
+                String.valueOf(onlyUseGroupsInGroupMap), String.valueOf(doNotOverrideMobileWithEmpty),
+                allowUpdateUpnDomains == null ? null : String.join(",", allowUpdateUpnDomains),
+                String.valueOf(removeMissingUsers),
+                rollingSlice == null ? null : rollingSlice.getSlice() + "/" + rollingSlice.getSlices()));
+
+    if (checkpoint != null && checkpoint.isResumed()) {
+      logger.infof(
+          "Resuming sync '%s' for federation provider '%s' with %d directory pages completed and removals %s (resume %d of %d)",
+          checkpoint.getSyncId(), fedModel.getName(), checkpoint.getCompletedPages(),
+          checkpoint.isRemovalsDone() ? "done" : "not done", checkpoint.getResumes(), ItcnSyncCheckpoint.MAX_RESUMES);
+    }
+
+    final ItcnSyncPlan plan = new ItcnSyncPlan();
+
+    if (checkpoint != null) {
+      plan.setSkippedPages(checkpoint.getCompletedPages());
+    }
+
+    IntPredicate completedPage = page -> checkpoint != null && checkpoint.isPageCompleted(page);
+
+    // An initial load has no linked users to remove, so instead of scanning the
+    // realm only the directory users that already exist are looked up
+    final boolean bulkLoad = removeMissingUsers && isBulkLoad(sessionFactory, realmId, fedModel);
+    if (bulkLoad) {
+      logger.infof("Bulk loading %d users for federation provider '%s'", apiUsers.size(), fedModel.getName());
+    }
+
+    // A delta fetch only holds the changed users, so looking them up one by one
+    // is cheaper than scanning the realm
+    Set<String> existingUsernames = null;
+    if (bulkLoad) {
+      existingUsernames = findExistingUsernames(sessionFactory, realmId, fedModel, apiUsers, cancellation, progress,
+          share, errors);
+    } else if (removeMissingUsers) {
+      boolean findRemovals = checkpoint == null || !checkpoint.isRemovalsDone();
+      existingUsernames = scanExistingUsers(sessionFactory, realmId, fedModel, conflicts.getDirectoryUpns(),
+          findRemovals, cancellation, progress, share, plan, errors);
+    }
+
+    if (existingUsernames != null) {
+      planNewUsers(apiUsers, existingUsernames, reconciler, completedPage, plan);
+    }
+
+    // Without the existing usernames the new users are only found by verifying
+    // all users
+    final ItcnRollingSlice verifiedSlice = existingUsernames != null ? rollingSlice : null;
+    if (verifiedSlice != null) {
+      logger.infof("Verifying slice %d of %d of the existing users for federation provider '%s'",
+          verifiedSlice.getSlice() + 1, verifiedSlice.getSlices(), fedModel.getName());
+    }
+
+    final ItcnSynchronizationResult syncResult = new ItcnSynchronizationResult();
+
+    syncResult.setFetched(fetchedApiUsers.size());
+    syncResult.setQuarantined(conflicts.getQuarantined());
+    syncResult.setSkippedPages(plan.getSkippedPages());
+    syncResult.setBulkLoad(bulkLoad);
+    if (verifiedSlice != null) {
+      syncResult.setSlice(verifiedSlice.getSlice(), verifiedSlice.getSlices());
+    }
+
+    // Changes are applied in directory page order, so directory pages complete
+    // one after another and can be recorded in the checkpoint. Each directory
+    // page holds one extra change until the existing users on it are planned
+    int totalDirectoryPages = (int) Math.ceil((double) apiUsers.size() / USER_IMPORT_PAGE_SIZE);
+    AtomicIntegerArray remainingChanges = new AtomicIntegerArray(totalDirectoryPages);
+    for (int page = 0; page < totalDirectoryPages; page++) {
+      if (!completedPage.test(page)) {
+        remainingChanges.set(page, 1);
+      }
+    }
+
+    Set<ItcnUserChange> failedChanges = ConcurrentHashMap.newKeySet();
+
+    // Results are counted when a page commits, so a cancelled sync reports only
+    // the changes that were kept
+    PageCommitted countChanges = (page, startIndex, endIndex, pageEvent) -> {
+      addedCount.addAndGet(pageEvent.added);
+      updatedCount.addAndGet(pageEvent.updated);
+      failedCount.addAndGet(pageEvent.failed);
+      lockRetries.addAndGet(pageEvent.lockRetries);
+    };
+
+    // New users are created in their own lane before the existing users are
+    // planned, so they can log in without waiting for the updates
+    List<ItcnUserChange> newUserCreates = new ArrayList<>(plan.getCreates());
+    if (!dryRun && !newUserCreates.isEmpty()) {
+      newUserCreates.forEach(c -> remainingChanges.incrementAndGet(c.getDirectoryPage()));
+      AtomicLong lastCreateCommitted = new AtomicLong();
+      applyCreates(sessionFactory, realmId, fedModel, reconciler, cacheInvalidator, cancellation, throttle,
+          progress, share, bulkLoad, newUserCreates, errors, failedChanges, countChanges
+              .andThen(recordCompletedPages(checkpoint, plan, newUserCreates, remainingChanges, failedChanges))
+              .andThen((page, startIndex, endIndex, pageEvent) -> lastCreateCommitted
+                  .accumulateAndGet(System.currentTimeMillis(), Math::max)));
+      if (lastCreateCommitted.get() > 0) {
+        syncResult.setNewUsersCommittedMillis(lastCreateCommitted.get() - syncStarted);
+        logger.infof("New users for federation provider '%s' committed %d ms after the sync started",
+            fedModel.getName(), syncResult.getNewUsersCommittedMillis());
+      }
+    }
+
+    ItcnConflictCache conflictCache = conflictCaches.computeIfAbsent(fedId, id -> new ItcnConflictCache());
+    AtomicInteger knownConflicts = new AtomicInteger();
+    AtomicInteger failedPlans = new AtomicInteger();
+
+    // Directory pages whose planning job completed. A page skipped because the
+    // sync was cancelled has none of its changes planned and must not complete
+    Set<Integer> plannedDirectoryPages = ConcurrentHashMap.newKeySet();
+
+    planExistingUsers(sessionFactory, realmId, fedModel, apiUsers, existingUsernames, verifiedSlice, reconciler,
+        conflictCache, knownConflicts, completedPage, cancellation, progress, share, plan, errors,
+        failedCount, failedPlans, (page, startIndex, endIndex, pageEvent) -> plannedDirectoryPages.add(page));
+
+    if (knownConflicts.get() > 0) {
+      logger.infof(
+          "Skipped %d users already known to exist without a link to federation provider '%s' and unchanged since",
+          knownConflicts.get(), fedModel.getName());
+    }
+    syncResult.setKnownConflicts(knownConflicts.get());
+
+    logger.debugf("Planned %d creates, %d updates and %d removals for federation provider '%s'",
+        plan.getCreates().size(), plan.getUpdates().size(), plan.getRemovals().size(), fedModel.getName());
+
+    if (dryRun) {
+      syncResult.setDryRun(true);
+      syncResult.setCancelled(cancellation.getReason());
+      syncResult.setFailed(failedCount.get());
+      syncResult.setAdded(plan.getCreates().size());
+      syncResult.setUpdated(plan.getUpdates().size());
+      syncResult.setRemoved(plan.getRemovals().size());
+      syncResult.setGroupJoins(plan.getGroupJoins());
+      syncResult.setGroupLeaves(plan.getGroupLeaves());
+      return new ItcnApiUserResult(syncResult, errors);
+    }
+
+    // Creates found while planning the existing users, which happens when the
+    // existing users were not scanned
+    Comparator<ItcnUserChange> byDirectoryPage = Comparator.comparingInt(ItcnUserChange::getDirectoryPage);
+    List<ItcnUserChange> plannedCreates = plan.getCreates();
+    List<ItcnUserChange> creates = new ArrayList<>(
+        plannedCreates.subList(newUserCreates.size(), plannedCreates.size()));
+    creates.sort(byDirectoryPage);
+    List<ItcnUserChange> updates = new ArrayList<>(plan.getUpdates());
+    updates.sort(byDirectoryPage);
+
+    creates.forEach(c -> remainingChanges.incrementAndGet(c.getDirectoryPage()));
+    updates.forEach(c -> remainingChanges.incrementAndGet(c.getDirectoryPage()));
+
+    BitSet plannedPages = new BitSet();
+    for (int page = 0; page < totalDirectoryPages; page++) {
+      if (!completedPage.test(page) && plannedDirectoryPages.contains(page)
+          && remainingChanges.decrementAndGet(page) == 0 && !plan.isPageFailed(page)) {
+        plannedPages.set(page);
+      }
+    }
+    if (checkpoint != null) {
+      checkpoint.markPagesCompleted(plannedPages);
+    }
+
+    List<ItcnUserChange> removals = plan.getRemovals();
+
+    // The remaining phases are known once the plan is complete
+    progress.expect(PAGE_KIND_REMOVAL, (int) Math.ceil((double) removals.size() / USER_REMOVE_PAGE_SIZE));
+    progress.expect(PAGE_KIND_CREATE, (int) Math.ceil((double) creates.size() / USER_IMPORT_PAGE_SIZE));
+    progress.expect(PAGE_KIND_UPDATE, (int) Math.ceil((double) updates.size() / USER_IMPORT_PAGE_SIZE));
+
+    final AtomicInteger failedRemovals = new AtomicInteger(0);
+
+    PageCommitted countRemovals = (page, startIndex, endIndex, pageEvent) -> {
+      removedCount.addAndGet(pageEvent.removed);
+      failedCount.addAndGet(pageEvent.failed);
+      failedRemovals.addAndGet(pageEvent.failed);
+      lockRetries.addAndGet(pageEvent.lockRetries);
+    };
+
+    runPages(sessionFactory, realmId, fedModel.getName(), cancellation, throttle, progress, share,
+        PAGE_KIND_REMOVAL, removals.size(), USER_REMOVE_PAGE_SIZE, false, page -> false, errors, null,
+        (session, realm, page, startIndex, endIndex, pageEvent, failures) -> {
+          UserProvider userProvider = session.users();
+
+          for (ItcnUserChange change : removals.subList(startIndex, endIndex)) {
+            try {
+              // A user removed since the sync was planned is not counted
+              UserModel user = userProvider.getUserById(realm, change.getUserId());
+              if (user != null && userProvider.removeUser(realm, user)) {
+                pageEvent.removed++;
+              }
+            } catch (Exception e) {
+              if (isLockConflict(e)) {
+                throw e;
+              }
+              logger.errorf(e,
+                  "Error removing non existing user with username '%s' in federation provider '%s'",
+                  change.getUsername(), fedModel.getName());
+              failures.errors.add(String.format(
+                  "Error removing non existing user with username '%s' in federation provider '%s'. Exception:<br/>%s",
+                  change.getUsername(), fedModel.getName(), getErrorMessage(e)));
+              pageEvent.failed++;
+            }
+          }
+        }, countRemovals);
+
+    if (removeMissingUsers && !bulkLoad && failedRemovals.get() == 0 && !cancellation.isCancelled()
+        && checkpoint != null) {
+      checkpoint.markRemovalsDone();
+    }
+
+    // The fields written by each update page, counted once the page commits
+    ItcnUserField[] fields = ItcnUserField.values();
+    Map<Integer, int[]> pageFieldChanges = new ConcurrentHashMap<>();
+    AtomicIntegerArray fieldChanges = new AtomicIntegerArray(fields.length);
+    PageCommitted countFieldChanges = (page, startIndex, endIndex, pageEvent) -> {
+      int[] changes = pageFieldChanges.remove(page);
+      for (int i = 0; i < changes.length; i++) {
+        fieldChanges.addAndGet(i, changes[i]);
+      }
+    };
+
+    // New users created in their own lane were evicted per page already
+    cacheInvalidator.planned(creates.size() + updates.size(), apiUsers.size());
+    if (cacheInvalidator.isRealmWide()) {
+      logger.infof(
+          "Evicting the users of the realm at most once a minute during the sync for federation provider '%s'",
+          fedModel.getName());
+    }
+
+    try {
+      applyCreates(sessionFactory, realmId, fedModel, reconciler, cacheInvalidator, cancellation, throttle,
+          progress, share, false, creates, errors, failedChanges,
+          countChanges.andThen(recordCompletedPages(checkpoint, plan, creates, remainingChanges, failedChanges)));
+
+      runPages(sessionFactory, realmId, fedModel.getName(), cancellation, throttle, progress, share,
+          PAGE_KIND_UPDATE, updates.size(), USER_IMPORT_PAGE_SIZE, false, page -> false, errors, failedChanges,
+          (session, realm, page, startIndex, endIndex, pageEvent, failures) -> {
+            UserProvider userProvider = cacheInvalidator.users(session);
+            List<UserModel> users = new ArrayList<>();
+            int[] changes = new int[fields.length];
+
+            for (ItcnUserChange change : updates.subList(startIndex, endIndex)) {
+              ItcnApiUser apiUser = change.getApiUser();
+              try {
+                UserModel importedUser = reconciler.getUserToUpdate(userProvider, realm, change);
+                String emailUser = findLocalEmailUser(userProvider, realm, importedUser, apiUser);
+                if (emailUser != null) {
+                  logEmailConflict(fedModel, apiUser, emailUser, failures.errors);
+                  pageEvent.failed++;
+                  continue;
+                }
+                Set<ItcnUserField> changed = reconciler.applyUpdate(importedUser, change);
+                for (ItcnUserField field : changed) {
+                  changes[field.ordinal()]++;
+                }
+                // The user may have been changed to match since the sync was planned
+                if (!changed.isEmpty() || change.getGroupChanges().hasChanges()) {
+                  users.add(importedUser);
+                  pageEvent.updated++;
+                }
+              } catch (Exception e) {
+                if (isLockConflict(e)) {
+                  throw e;
+                }
+                logImportError(fedModel, apiUser, e, failures.errors);
+                failures.changes.add(change);
+                pageEvent.failed++;
+              }
+            }
+
+            pageFieldChanges.put(page, changes);
+            cacheInvalidator.pageWritten(PAGE_KIND_UPDATE, page, users);
+          }, countChanges.andThen(recordCompletedPages(checkpoint, plan, updates, remainingChanges, failedChanges))
+              .andThen(countFieldChanges)
+              .andThen((page, startIndex, endIndex, pageEvent) -> cacheInvalidator.pageCommitted(PAGE_KIND_UPDATE,
+                  page)));
+    } finally {
+      cacheInvalidator.finish();
+    }
+
+    // Users that failed in this slice are verified again when the slice comes
+    // round, so only a cancelled sync stays on the same slice
+    if (rollingSlice != null && !cancellation.isCancelled()) {
+      rollingSlice.advance();
+    }
+
+    // A sync that was cancelled or had users fail to plan or apply keeps its
+    // checkpoint, so only the pages not completed are redone if the directory is
+    // unchanged. Quarantined users and conflicts fail the same way on every sync,
+    // so they alone do not keep it
+    if (checkpoint != null) {
+      if (cancellation.isCancelled() || !failedChanges.isEmpty() || failedRemovals.get() > 0
+          || failedPlans.get() > 0) {
+        checkpoint.flush();
+      } else {
+        checkpoint.clear();
+      }
+    }
+
+    syncResult.setFailed(failedCount.get());
+    syncResult.setAdded(addedCount.get());
+    syncResult.setUpdated(updatedCount.get());
+    syncResult.setRemoved(removedCount.get());
+    syncResult.setCancelled(cancellation.getReason());
+    syncResult.setLockRetries(lockRetries.get());
+    syncResult.setThrottledMillis(throttle.getThrottledMillis());
+    syncResult.setScheduledWaitMillis(share.getWaitedMillis());
+    for (ItcnUserField field : fields) {
+      int count = fieldChanges.get(field.ordinal());
+      if (count > 0) {
+        syncResult.getFieldChanges().put(field.getName(), count);
+      }
+    }
+
+    return new ItcnApiUserResult(syncResult, errors);
+  }
+
+  private void applyCreates(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel fedModel,
+      ItcnUserReconciler reconciler, ItcnUserCacheInvalidator cacheInvalidator, ItcnSyncCancellation cancellation,
+      ItcnSyncThrottle throttle, ItcnSyncProgress progress, ItcnSyncScheduler.Share share, boolean bulkLoad,
+      List<ItcnUserChange> creates, List<String> errors, Set<ItcnUserChange> failedChanges,
+      PageCommitted afterCommit) {
+    // A bulk load creates users in large transactions directly in the local
+    // storage. The user cache holds nothing for users that did not exist, so
+    // there is nothing to evict
+    runPages(sessionFactory, realmId, fedModel.getName(), cancellation, throttle, progress, share,
+        PAGE_KIND_CREATE, creates.size(), bulkLoad ? BULK_LOAD_PAGE_SIZE : USER_IMPORT_PAGE_SIZE, false, page -> false,
+        errors, failedChanges,
+        (session, realm, page, startIndex, endIndex, pageEvent, failures) -> {
+          UserProvider userProvider = bulkLoad ? UserStoragePrivateUtil.userLocalStorage(session)
+              : cacheInvalidator.users(session);
+          List<UserModel> users = new ArrayList<>();
+          List<ItcnUserChange> pageCreates = creates.subList(startIndex, endIndex);
+          Map<String, String> localEmailUsers = findLocalEmailUsers(session, realm, pageCreates);
+
+          for (ItcnUserChange change : pageCreates) {
+            ItcnApiUser apiUser = change.getApiUser();
+            String emailUser = localEmailUsers.get(toLowerCase(apiUser.getEmail()));
+            if (emailUser != null) {
+              logEmailConflict(fedModel, apiUser, emailUser, failures.errors);
+              pageEvent.failed++;
+              continue;
+            }
+            try {
+              users.add(reconciler.applyCreate(userProvider, realm, change));
+              pageEvent.added++;
+            } catch (Exception e) {
+              if (isLockConflict(e)) {
+                throw e;
+              }
+              logImportError(fedModel, apiUser, e, failures.errors);
+              failures.changes.add(change);
+              pageEvent.failed++;
+            }
+          }
+
+          if (!bulkLoad) {
+            cacheInvalidator.pageWritten(PAGE_KIND_CREATE, page, users);
+          }
+        }, afterCommit.andThen((page, startIndex, endIndex, pageEvent) -> cacheInvalidator
+            .pageCommitted(PAGE_KIND_CREATE, page)));
+  }
+
+  // Records the directory pages whose last change was in a committed page of
+  // changes as completed in the checkpoint
+  private static PageCommitted recordCompletedPages(ItcnSyncCheckpoint checkpoint, ItcnSyncPlan plan,
+      List<ItcnUserChange> changes, AtomicIntegerArray remainingChanges, Set<ItcnUserChange> failedChanges) {
+    return (page, startIndex, endIndex, pageEvent) -> {
+      if (checkpoint == null) {
+        return;
+      }
+      BitSet completedPages = new BitSet();
+      for (ItcnUserChange change : changes.subList(startIndex, endIndex)) {
+        int directoryPage = change.getDirectoryPage();
+        if (failedChanges.contains(change)) {
+          plan.markPageFailed(directoryPage);
+        }
+        if (remainingChanges.decrementAndGet(directoryPage) == 0 && !plan.isPageFailed(directoryPage)) {
+          completedPages.set(directoryPage);
+        }
+      }
+      if (!completedPages.isEmpty()) {
+        checkpoint.markPagesCompleted(completedPages);
+      }
+    };
+  }
+
+  // Scans the existing users of the realm in parallel, read-only transactions.
+  // If findRemovals is set, the federated users missing from the directory are
+  // added to the plan as removals. Returns the usernames of all existing users,
+  // or null if they could not all be read
+  private Set<String> scanExistingUsers(KeycloakSessionFactory sessionFactory, final String realmId,
+      final ComponentModel fedModel, Set<String> apiUsersUpnSet, boolean findRemovals,
+      ItcnSyncCancellation cancellation, ItcnSyncProgress progress, ItcnSyncScheduler.Share share,
+      ItcnSyncPlan plan, List<String> errors) {
+    final AtomicBoolean keyset = new AtomicBoolean();
 
     final int totalExistingUsers = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
         (KeycloakSession session) -> {
           try {
             RealmModel realm = session.realms().getRealm(realmId);
             session.getContext().setRealm(realm);
+            keyset.set(session.getProvider(JpaConnectionProvider.class) != null);
             UserProvider userProvider = session.users();
             return userProvider.getUsersCount(realm);
           } catch (Exception e) {
@@ -418,15 +1541,147 @@ public class ItcnApiUserStorageProviderFactory
           }
         });
 
-    Boolean onlyUseGroupsInGroupMap = fedModel.get(CONFIG_KEY_ONLY_USE_GROUPS_IN_GROUP_MAP, false);
+    if (totalExistingUsers < 0) {
+      return null;
+    }
+
+    final Set<String> existingUsernames = ConcurrentHashMap.newKeySet(totalExistingUsers);
+
+    // The keyset scan runs about as many pages as the offset scan
+    progress.startPhase(ItcnSyncProgress.PHASE_SCAN,
+        (int) Math.ceil((double) totalExistingUsers / USER_REMOVE_PAGE_SIZE));
+
+    boolean complete = keyset.get()
+        ? scanExistingUsersByKeyset(sessionFactory, realmId, fedModel, apiUsersUpnSet, findRemovals, cancellation,
+            progress, share, plan, errors, existingUsernames)
+        : scanExistingUsersByOffset(sessionFactory, realmId, fedModel, apiUsersUpnSet, findRemovals, cancellation,
+            progress, share, plan, errors, existingUsernames, totalExistingUsers);
+
+    return complete ? existingUsernames : null;
+  }
+
+  // Scans the users with a keyset cursor on the user id, one read-only
+  // transaction per page. The id space is split into ranges on the first
+  // character, which spreads the generated UUID ids evenly, and the ranges are
+  // scanned in parallel. Each page is an index range scan, and users added or
+  // removed while the scan runs do not shift other users between pages
+  private boolean scanExistingUsersByKeyset(KeycloakSessionFactory sessionFactory, final String realmId,
+      final ComponentModel fedModel, Set<String> apiUsersUpnSet, boolean findRemovals,
+      ItcnSyncCancellation cancellation, ItcnSyncProgress progress, ItcnSyncScheduler.Share share,
+      ItcnSyncPlan plan, List<String> errors, Set<String> existingUsernames) {
+    final String fedId = fedModel.getId();
+    final AtomicBoolean complete = new AtomicBoolean(true);
+    final AtomicInteger nextPage = new AtomicInteger();
+
+    IntStream.rangeClosed(0, USER_ID_RANGE_BOUNDARIES.length).parallel().forEach(range -> {
+      String lower = range == 0 ? null : USER_ID_RANGE_BOUNDARIES[range - 1];
+      String upper = range == USER_ID_RANGE_BOUNDARIES.length ? null : USER_ID_RANGE_BOUNDARIES[range];
+      String[] after = { null };
+
+      while (true) {
+        if (cancellation.isCancelled() || !share.acquire(cancellation)) {
+          complete.set(false);
+          return;
+        }
+        RemovalScanEvent scanEvent = new RemovalScanEvent();
+        scanEvent.begin();
+        int pageSize;
+        try {
+          pageSize = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+              (KeycloakSession session) -> {
+                session.getTransactionManager().setRollbackOnly();
+                try {
+                  List<Object[]> pageUsers = queryUserKeys(session.getProvider(JpaConnectionProvider.class)
+                      .getEntityManager(), realmId, lower, upper, after[0]);
+                  for (Object[] user : pageUsers) {
+                    scanEvent.usersToRemove += addScannedUser(fedId, (String) user[0], (String) user[1],
+                        (String) user[2], apiUsersUpnSet, findRemovals, existingUsernames, plan);
+                  }
+                  if (!pageUsers.isEmpty()) {
+                    after[0] = (String) pageUsers.get(pageUsers.size() - 1)[0];
+                  }
+                  scanEvent.users = pageUsers.size();
+                  scanEvent.outcome = OUTCOME_SUCCESS;
+                  return pageUsers.size();
+                } catch (Exception e) {
+                  complete.set(false);
+                  logger.errorf(e,
+                      "Error getting users to remove in federation provider '%s'. Might not be able to remove all non existing users!",
+                      fedModel.getName());
+                  errors.add(String.format(
+                      "Error getting users to remove in federation provider '%s'. Might not be able to remove all non existing users! Exception:<br/>%s",
+                      fedModel.getName(), getErrorMessage(e)));
+                  return -1;
+                }
+              });
+        } finally {
+          share.release();
+        }
+        scanEvent.providerName = fedModel.getName();
+        scanEvent.page = nextPage.getAndIncrement();
+        scanEvent.commit();
+        progress.pageDone(ItcnSyncProgress.PHASE_SCAN, Math.max(0, pageSize));
 
-    if (totalExistingUsers > 0) {
-      int totalPagesExistingUsers = (int) Math.ceil((double) totalExistingUsers / USER_REMOVE_PAGE_SIZE);
+        if (pageSize < USER_REMOVE_PAGE_SIZE) {
+          return;
+        }
+      }
+    });
 
-      CopyOnWriteArrayList<UserModel> usersToRemove = new CopyOnWriteArrayList<>();
+    return complete.get();
+  }
 
-      IntStream.range(0, totalPagesExistingUsers).parallel().forEach(page -> {
+  private static List<Object[]> queryUserKeys(EntityManager em, String realmId, String lower, String upper,
+      String after) {
+    StringBuilder query = new StringBuilder(
+        "select u.id, u.username, u.federationLink from UserEntity u"
+            + " where u.realmId = :realmId and u.serviceAccountClientLink is null");
+    if (lower != null) {
+      query.append(" and u.id >= :lower");
+    }
+    if (upper != null) {
+      query.append(" and u.id < :upper");
+    }
+    if (after != null) {
+      query.append(" and u.id > :after");
+    }
+    query.append(" order by u.id");
+
+    TypedQuery<Object[]> typedQuery = em.createQuery(query.toString(), Object[].class)
+        .setParameter("realmId", realmId)
+        .setMaxResults(USER_REMOVE_PAGE_SIZE);
+    if (lower != null) {
+      typedQuery.setParameter("lower", lower);
+    }
+    if (upper != null) {
+      typedQuery.setParameter("upper", upper);
+    }
+    if (after != null) {
+      typedQuery.setParameter("after", after);
+    }
+    return typedQuery.getResultList();
+  }
+
+  // Offset paging through the user provider, for user storage without JPA
+  private boolean scanExistingUsersByOffset(KeycloakSessionFactory sessionFactory, final String realmId,
+      final ComponentModel fedModel, Set<String> apiUsersUpnSet, boolean findRemovals,
+      ItcnSyncCancellation cancellation, ItcnSyncProgress progress, ItcnSyncScheduler.Share share,
+      ItcnSyncPlan plan, List<String> errors, Set<String> existingUsernames, int totalExistingUsers) {
+    final String fedId = fedModel.getId();
+    final AtomicBoolean complete = new AtomicBoolean(true);
+
+    int totalPagesExistingUsers = (int) Math.ceil((double) totalExistingUsers / USER_REMOVE_PAGE_SIZE);
+
+    IntStream.range(0, totalPagesExistingUsers).parallel().forEach(page -> {
+      if (cancellation.isCancelled() || !share.acquire(cancellation)) {
+        complete.set(false);
+        return;
+      }
+      RemovalScanEvent scanEvent = new RemovalScanEvent();
+      scanEvent.begin();
+      try {
         KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+          session.getTransactionManager().setRollbackOnly();
           RealmModel realm = session.realms().getRealm(realmId);
           session.getContext().setRealm(realm);
           UserProvider userProvider = session.users();
@@ -434,11 +1689,17 @@ public class ItcnApiUserStorageProviderFactory
           int maxResults = USER_REMOVE_PAGE_SIZE;
 
           try {
-            usersToRemove.addAll(userProvider
+            List<UserModel> pageUsers = userProvider
                 .searchForUserStream(realm, new HashMap<>(), firstResult, maxResults)
-                .filter(u -> fedId.equals(u.getFederationLink()) && !apiUsersUpnSet.contains(u.getUsername()))
-                .collect(Collectors.toList()));
+                .collect(Collectors.toList());
+            for (UserModel u : pageUsers) {
+              scanEvent.usersToRemove += addScannedUser(fedId, u.getId(), u.getUsername(), u.getFederationLink(),
+                  apiUsersUpnSet, findRemovals, existingUsernames, plan);
+            }
+            scanEvent.users = pageUsers.size();
+            scanEvent.outcome = OUTCOME_SUCCESS;
           } catch (Exception e) {
+            complete.set(false);
             logger.errorf(e,
                 "Error getting users to remove in federation provider '%s'. Might not be able to remove all non existing users!",
                 fedModel.getName());
@@ -447,241 +1708,299 @@ public class ItcnApiUserStorageProviderFactory
                 fedModel.getName(), getErrorMessage(e)));
           }
         });
-      });
+      } finally {
+        share.release();
+      }
+      scanEvent.providerName = fedModel.getName();
+      scanEvent.page = page;
+      scanEvent.commit();
+      progress.pageDone(ItcnSyncProgress.PHASE_SCAN, scanEvent.users);
+    });
 
-      int totalUsersToRemove = usersToRemove.size();
+    return complete.get();
+  }
 
-      if (totalUsersToRemove > 0) {
-        int totalPagesUsersToRemove = (int) Math.ceil((double) totalUsersToRemove / USER_REMOVE_PAGE_SIZE);
-        IntStream.range(0, totalPagesUsersToRemove).parallel().forEach(page -> {
+  // True if the initial load flag is set or no users are linked to the provider
+  private static boolean isBulkLoad(KeycloakSessionFactory sessionFactory, String realmId,
+      ComponentModel fedModel) {
+    if (fedModel.get(CONFIG_KEY_INITIAL_LOAD, false)) {
+      return true;
+    }
+    try {
+      return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, (KeycloakSession session) -> {
+        session.getTransactionManager().setRollbackOnly();
+        JpaConnectionProvider jpaConnectionProvider = session.getProvider(JpaConnectionProvider.class);
+        if (jpaConnectionProvider == null) {
+          return false;
+        }
+        return jpaConnectionProvider.getEntityManager()
+            .createQuery("select count(u) from UserEntity u where u.realmId = :realmId and u.federationLink = :fedId",
+                Long.class)
+            .setParameter("realmId", realmId)
+            .setParameter("fedId", fedModel.getId())
+            .getSingleResult() == 0;
+      });
+    } catch (Exception e) {
+      logger.warnf(e, "Error counting linked users for federation provider '%s'", fedModel.getName());
+      return false;
+    }
+  }
 
-          KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
-            RealmModel realm = session.realms().getRealm(realmId);
-            session.getContext().setRealm(realm);
-            UserProvider userProvider = session.users();
+  // Looks up which directory users already exist with one query per page of
+  // usernames, in parallel read-only transactions. Returns null if they could
+  // not all be looked up
+  private Set<String> findExistingUsernames(KeycloakSessionFactory sessionFactory, final String realmId,
+      final ComponentModel fedModel, List<ItcnApiUser> apiUsers, ItcnSyncCancellation cancellation,
+      ItcnSyncProgress progress, ItcnSyncScheduler.Share share, List<String> errors) {
+    final Set<String> existingUsernames = ConcurrentHashMap.newKeySet();
+    final AtomicBoolean complete = new AtomicBoolean(true);
+
+    runPages(sessionFactory, realmId, fedModel.getName(), cancellation, null, progress, share,
+        PAGE_KIND_LOOKUP, apiUsers.size(), USER_LOOKUP_PAGE_SIZE, true, page -> false, errors, null,
+        (session, realm, page, startIndex, endIndex, pageEvent, failures) -> {
+          JpaConnectionProvider jpaConnectionProvider = session.getProvider(JpaConnectionProvider.class);
+          try {
+            List<String> usernames = apiUsers.subList(startIndex, endIndex).stream().map(ItcnApiUser::getUpn)
+                .collect(Collectors.toList());
+            if (jpaConnectionProvider != null) {
+              existingUsernames.addAll(jpaConnectionProvider.getEntityManager()
+                  .createQuery("select u.username from UserEntity u"
+                      + " where u.realmId = :realmId and u.username in :usernames", String.class)
+                  .setParameter("realmId", realmId)
+                  .setParameter("usernames", usernames)
+                  .getResultList());
+            } else {
+              UserProvider userProvider = session.users();
+              for (String username : usernames) {
+                if (userProvider.getUserByUsername(realm, username) != null) {
+                  existingUsernames.add(username);
+                }
+              }
+            }
+          } catch (Exception e) {
+            complete.set(false);
+            logger.errorf(e, "Error looking up existing users in federation provider '%s'", fedModel.getName());
+            failures.errors.add(String.format(
+                "Error looking up existing users in federation provider '%s'. Exception:<br/>%s",
+                fedModel.getName(), getErrorMessage(e)));
+          }
+        }, null);
 
-            int startIndex = page * USER_REMOVE_PAGE_SIZE;
-            int endIndex = Math.min(startIndex + USER_REMOVE_PAGE_SIZE, totalUsersToRemove);
+    return complete.get() && !cancellation.isCancelled() ? existingUsernames : null;
+  }
 
-            List<UserModel> usersToRemovePage = usersToRemove.subList(startIndex, endIndex);
+  // Returns 1 if the user was planned for removal
+  private static int addScannedUser(String fedId, String id, String username, String federationLink,
+      Set<String> apiUsersUpnSet, boolean findRemovals, Set<String> existingUsernames, ItcnSyncPlan plan) {
+    existingUsernames.add(username);
+    if (findRemovals && fedId.equals(federationLink) && !apiUsersUpnSet.contains(username)) {
+      plan.add(ItcnUserChange.remove(id, username));
+      return 1;
+    }
+    return 0;
+  }
 
-            for (final UserModel user : usersToRemovePage) {
-              try {
-                userProvider.removeUser(realm, user);
-                removedCount.incrementAndGet();
-              } catch (Exception e) {
-                logger.errorf(e,
-                    "Error removing non existing user with username '%s' in federation provider '%s'",
-                    user.getUsername(), fedModel.getName());
-                errors.add(String.format(
-                    "Error removing non existing user with username '%s' in federation provider '%s'. Exception:<br/>%s",
-                    user.getUsername(), fedModel.getName(), getErrorMessage(e)));
-                failedCount.incrementAndGet();
-              }
-            }
-          });
-        });
+  // Plans the directory users that do not exist in the realm as creates. They
+  // have no groups yet, so this needs no transaction
+  private static void planNewUsers(List<ItcnApiUser> apiUsers, Set<String> existingUsernames,
+      ItcnUserReconciler reconciler, IntPredicate completedPage, ItcnSyncPlan plan) {
+    int totalPages = (int) Math.ceil((double) apiUsers.size() / USER_IMPORT_PAGE_SIZE);
+    for (int page = 0; page < totalPages; page++) {
+      if (completedPage.test(page)) {
+        continue;
+      }
+      int startIndex = page * USER_IMPORT_PAGE_SIZE;
+      int endIndex = Math.min(startIndex + USER_IMPORT_PAGE_SIZE, apiUsers.size());
+      for (ItcnApiUser apiUser : apiUsers.subList(startIndex, endIndex)) {
+        if (!existingUsernames.contains(apiUser.getUpn())) {
+          plan.add(ItcnUserChange.create(apiUser, reconciler.planGroups(apiUser, null), page));
+        }
       }
     }
+  }
 
-    int totalApiUsers = apiUsers.size();
-
-    if (totalApiUsers > 0) {
-      int totalPagesApiUsers = (int) Math.ceil((double) totalApiUsers / USER_IMPORT_PAGE_SIZE);
-      IntStream.range(0, totalPagesApiUsers).parallel().forEach(page -> {
-        KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
-          RealmModel realm = session.realms().getRealm(realmId);
-          session.getContext().setRealm(realm);
+  // Plans the directory users that exist in the realm as updates using read-only
+  // transactions. If the existing usernames are not known, every user is looked
+  // up and the new users are planned as creates here
+  private void planExistingUsers(KeycloakSessionFactory sessionFactory, final String realmId,
+      final ComponentModel fedModel, List<ItcnApiUser> apiUsers, Set<String> existingUsernames,
+      ItcnRollingSlice rollingSlice, ItcnUserReconciler reconciler, ItcnConflictCache conflictCache,
+      AtomicInteger knownConflicts, IntPredicate completedPage, ItcnSyncCancellation cancellation,
+      ItcnSyncProgress progress, ItcnSyncScheduler.Share share, ItcnSyncPlan plan, List<String> errors,
+      AtomicInteger failedCount, AtomicInteger failedPlans, PageCommitted afterCommit) {
+    runPages(sessionFactory, realmId, fedModel.getName(), cancellation, null, progress, share,
+        PAGE_KIND_PLAN, apiUsers.size(), USER_IMPORT_PAGE_SIZE, true, completedPage, errors, null,
+        (session, realm, page, startIndex, endIndex, pageEvent, failures) -> {
           UserProvider userProvider = session.users();
 
-          int startIndex = page * USER_IMPORT_PAGE_SIZE;
-          int endIndex = Math.min(startIndex + USER_IMPORT_PAGE_SIZE, totalApiUsers);
-
-          List<ItcnApiUser> apiUsersPage = apiUsers.subList(startIndex, endIndex);
-
-          apiUsersPage.forEach(apiUser -> {
+          for (ItcnApiUser apiUser : apiUsers.subList(startIndex, endIndex)) {
+            if (existingUsernames != null && !existingUsernames.contains(apiUser.getUpn())) {
+              continue;
+            }
+            if (rollingSlice != null && !rollingSlice.contains(apiUser.getUpn())) {
+              continue;
+            }
+            // Known conflicts were reported when they were found
+            if (conflictCache.isKnown(apiUser)) {
+              knownConflicts.incrementAndGet();
+              continue;
+            }
             try {
-              UserModel importedUser;
               UserModel existingLocalUser = userProvider.getUserByUsername(realm, apiUser.getUpn());
-              if (existingLocalUser == null) {
-                importedUser = userProvider.addUser(realm, apiUser.getUpn());
-              } else {
-                if (fedId.equals(existingLocalUser.getFederationLink())) {
-                  importedUser = existingLocalUser;
-                } else if (allowUpdateUpnDomains != null) {
-                  String upn = apiUser.getUpn();
-                  if (!allowUpdateUpnDomains.stream().anyMatch(domain -> upn.endsWith("@" + domain))) {
+              if (existingLocalUser != null) {
+                switch (reconciler.getExistingUserStatus(apiUser, existingLocalUser)) {
+                  case DOMAIN_NOT_ALLOWED:
                     logger.warnf(
                         "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s' and UPN domain does not match any of '%s'",
-                        apiUser.getUpn(), fedModel.getName(), String.join(", ", allowUpdateUpnDomains));
-                    errors.add(String.format(
+                        apiUser.getUpn(), fedModel.getName(),
+                        String.join(", ", reconciler.getAllowUpdateUpnDomains()));
+                    failures.errors.add(String.format(
                         "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s' and UPN domain does not match any of '%s'",
-                        apiUser.getUpn(), fedModel.getName(), String.join(", ", allowUpdateUpnDomains)));
+                        apiUser.getUpn(), fedModel.getName(),
+                        String.join(", ", reconciler.getAllowUpdateUpnDomains())));
+                    conflictCache.add(apiUser);
                     failedCount.incrementAndGet();
-                    return;
-                  }
-                  importedUser = existingLocalUser;
-                } else {
-                  logger.warnf(
-                      "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'",
-                      apiUser.getUpn(), fedModel.getName());
-                  errors.add(String.format(
-                      "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'",
-                      apiUser.getUpn(), fedModel.getName()));
-                  failedCount.incrementAndGet();
-                  return;
-                }
-              }
-
-              boolean attributesChanged = !apiUserEqualsLocalUser(apiUser, existingLocalUser);
-
-              if (attributesChanged) {
-                importedUser.setFederationLink(fedId);
-                importedUser.setEmail(apiUser.getEmail());
-                importedUser.setEmailVerified(true);
-                importedUser.setFirstName(apiUser.getFirstName());
-                importedUser.setLastName(apiUser.getSurName());
-                String mobilePhone = apiUser.getMobilePhone();
-                if (!Strings.isNullOrEmpty(mobilePhone) || !doNotOverrideMobileWithEmpty) {
-                  importedUser.setSingleAttribute("mobile", mobilePhone);
+                    plan.markPageFailed(page);
+                    pageEvent.failed++;
+                    continue;
+                  case NOT_LINKED:
+                    logger.warnf(
+                        "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'",
+                        apiUser.getUpn(), fedModel.getName());
+                    failures.errors.add(String.format(
+                        "User with UPN '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'",
+                        apiUser.getUpn(), fedModel.getName()));
+                    conflictCache.add(apiUser);
+                    failedCount.incrementAndGet();
+                    plan.markPageFailed(page);
+                    pageEvent.failed++;
+                    continue;
+                  default:
+                    break;
                 }
-                importedUser.setEnabled(true);
               }
 
-              boolean groupsChanged = false;
-
-              String[] apiUserGroups = apiUser.getGroups();
-
-              HashSet<String> groupIds = new HashSet<>();
-
-              if (groupMap != null && !groupMap.isEmpty() && apiUserGroups != null && apiUserGroups.length > 0) {
-                for (String apiUserGroup : apiUserGroups) {
-                  if (groupMap.containsKey(apiUserGroup)) {
-                    GroupModel kcGroup = groupMap.get(apiUserGroup);
-                    groupIds.add(kcGroup.getId());
-                    if (!importedUser.isMemberOf(kcGroup)) {
-                      groupsChanged = true;
-                      importedUser.joinGroup(kcGroup);
-                    }
-                  }
-                }
-
-                HashSet<String> groupMapGroupIds = new HashSet<>();
-
-                for (GroupModel group : groupMap.values()) {
-                  groupMapGroupIds.add(group.getId());
-                }
-
-                List<GroupModel> groupsToLeave = importedUser.getGroupsStream().filter(g -> {
-                  if (onlyUseGroupsInGroupMap) {
-                    return groupMapGroupIds.contains(g.getId()) && !groupIds.contains(g.getId());
-                  } else {
-                    return !groupIds.contains(g.getId());
-                  }
-                }).collect(Collectors.toList());
-
-                if (!groupsToLeave.isEmpty()) {
-                  groupsChanged = true;
-                  groupsToLeave.forEach(g -> {
-                    importedUser.leaveGroup(g);
-                  });
+              GroupReconciliationEvent groupEvent = new GroupReconciliationEvent();
+              groupEvent.begin();
+              ItcnUserChange change = reconciler.planChange(apiUser, existingLocalUser, page);
+              GroupChanges groupChanges = change == null ? GroupChanges.NONE : change.getGroupChanges();
+              groupEvent.providerName = fedModel.getName();
+              groupEvent.page = page;
+              groupEvent.groupsJoined = groupChanges.getJoined();
+              groupEvent.groupsLeft = groupChanges.getLeft();
+              groupEvent.outcome = OUTCOME_SUCCESS;
+              groupEvent.commit();
+
+              if (change != null) {
+                plan.add(change);
+                if (change.getKind() == ItcnUserChange.Kind.CREATE) {
+                  pageEvent.added++;
+                } else {
+                  pageEvent.updated++;
                 }
               }
-
-              if (existingLocalUser == null) {
-                addedCount.incrementAndGet();
-              } else if (attributesChanged || groupsChanged) {
-                updatedCount.incrementAndGet();
-              }
             } catch (Exception e) {
-              logger.errorf(e,
-                  "Error importing user from api with username '%s' in federation provider '%s'",
-                  apiUser.getUpn(), fedModel.getName());
-              errors.add(String.format(
-                  "Error importing user from api with username '%s' in federation provider '%s'. Exception:<br/>%s",
-                  apiUser.getUpn(), fedModel.getName(), getErrorMessage(e)));
+              logImportError(fedModel, apiUser, e, failures.errors);
               failedCount.incrementAndGet();
+              failedPlans.incrementAndGet();
+              plan.markPageFailed(page);
+              pageEvent.failed++;
             }
-          });
-        });
-      });
+          }
+        }, afterCommit);
+  }
+
+  // The usernames of the local users already using the emails of the users to
+  // create, by lower case email. Without duplicate emails such a user would fail
+  // the whole page when it commits
+  private static Map<String, String> findLocalEmailUsers(KeycloakSession session, RealmModel realm,
+      List<ItcnUserChange> creates) {
+    if (realm.isDuplicateEmailsAllowed()) {
+      return Collections.emptyMap();
+    }
+    List<String> emails = creates.stream().map(c -> toLowerCase(c.getApiUser().getEmail()))
+        .filter(email -> !Strings.isNullOrEmpty(email)).distinct().collect(Collectors.toList());
+    Map<String, String> emailUsers = new HashMap<>();
+    if (emails.isEmpty()) {
+      return emailUsers;
+    }
+    JpaConnectionProvider jpaConnectionProvider = session.getProvider(JpaConnectionProvider.class);
+    if (jpaConnectionProvider != null) {
+      List<Object[]> rows = jpaConnectionProvider.getEntityManager()
+          .createQuery("select u.email, u.username from UserEntity u"
+              + " where u.realmId = :realmId and u.email in :emails", Object[].class)
+          .setParameter("realmId", realm.getId())
+          .setParameter("emails", emails)
+          .getResultList();
+      for (Object[] row : rows) {
+        emailUsers.put((String) row[0], (String) row[1]);
+      }
+    } else {
+      UserProvider userProvider = session.users();
+      for (String email : emails) {
+        UserModel user = userProvider.getUserByEmail(realm, email);
+        if (user != null) {
+          emailUsers.put(email, user.getUsername());
+        }
+      }
     }
+    return emailUsers;
+  }
 
-    final ItcnSynchronizationResult syncResult = new ItcnSynchronizationResult();
+  // The username of another local user already using the email a user is
+  // updated to, or null
+  private static String findLocalEmailUser(UserProvider userProvider, RealmModel realm, UserModel importedUser,
+      ItcnApiUser apiUser) {
+    String email = toLowerCase(apiUser.getEmail());
+    if (realm.isDuplicateEmailsAllowed() || Strings.isNullOrEmpty(email) || email.equals(importedUser.getEmail())) {
+      return null;
+    }
+    UserModel user = userProvider.getUserByEmail(realm, email);
+    return user != null && !user.getId().equals(importedUser.getId()) ? user.getUsername() : null;
+  }
 
-    syncResult.setFailed(failedCount.get());
-    syncResult.setAdded(addedCount.get());
-    syncResult.setUpdated(updatedCount.get());
-    syncResult.setRemoved(removedCount.get());
-    syncResult.setFetched(totalApiUsers);
+  private static String toLowerCase(String value) {
+    return value == null ? null : value.toLowerCase(Locale.ROOT);
+  }
 
-    return new ItcnApiUserResult(syncResult, errors);
+  // An email conflict with a local user is reported but does not keep the
+  // checkpoint, as it fails the same way until one of the users is changed
+  private void logEmailConflict(ComponentModel fedModel, ItcnApiUser apiUser, String emailUser,
+      List<String> errors) {
+    logger.warnf(
+        "User with username '%s' in federation provider '%s' was not imported, as its email '%s' is already used by the user with username '%s'",
+        apiUser.getUpn(), fedModel.getName(), apiUser.getEmail(), emailUser);
+    errors.add(String.format(
+        "User with username '%s' in federation provider '%s' was not imported, as its email '%s' is already used by the user with username '%s'",
+        apiUser.getUpn(), fedModel.getName(), apiUser.getEmail(), emailUser));
   }
 
-  private static boolean apiUserEqualsLocalUser(ItcnApiUser apiUser, UserModel existingLocalUser) {
-    return existingLocalUser != null &&
-        Objects.equals(apiUser.getUpn(), existingLocalUser.getUsername()) &&
-        Objects.equals(apiUser.getEmail(), existingLocalUser.getEmail()) &&
-        Objects.equals(apiUser.getFirstName(), existingLocalUser.getFirstName()) &&
-        Objects.equals(apiUser.getSurName(), existingLocalUser.getLastName()) &&
-        Objects.equals(apiUser.getMobilePhone(), existingLocalUser.getFirstAttribute("mobile"));
-  }
-
-  private static String getToken(String loginUrl, String username, String password) throws Exception {
-    URL url = new URL(loginUrl);
-    URLConnection con = url.openConnection();
-    HttpURLConnection http = (HttpURLConnection) con;
-    http.setRequestMethod("POST");
-    http.setDoInput(true);
-    http.setDoOutput(true);
-
-    byte[] out = String.format("{\"username\":\"%s\",\"password\":\"%s\"}", username, password)
-        .getBytes(StandardCharsets.UTF_8);
-    int length = out.length;
-
-    http.setFixedLengthStreamingMode(length);
-    http.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-    http.connect();
-    try (OutputStream os = http.getOutputStream()) {
-      os.write(out);
-    }
-    try (InputStream inputStream = http.getInputStream()) {
-      String text = new BufferedReader(
-          new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-          .lines()
-          .collect(Collectors.joining("\n"));
-      JSONObject jsonObject = new JSONObject(text);
-      return jsonObject.getString("token");
-    }
-  }
-
-  private static List<ItcnApiUser> getItcnApiUsers(String usersUrl, String token) throws Exception {
-    URL url = new URL(usersUrl);
-    URLConnection con = url.openConnection();
-    HttpURLConnection http = (HttpURLConnection) con;
-    http.setRequestMethod("GET");
-    http.setRequestProperty("Authorization", String.format("Bearer %s", token));
-    http.setDoOutput(true);
-
-    try (InputStream inputStream = http.getInputStream()) {
-      String text = new BufferedReader(
-          new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-          .lines()
-          .collect(Collectors.joining("\n"));
-      JSONObject jsonObject = new JSONObject(text);
-      JSONArray jsonArray = jsonObject.getJSONArray("value");
-      List<ItcnApiUser> users = IntStream.range(0, jsonArray.length()).mapToObj(i -> {
-        JSONObject o = jsonArray.getJSONObject(i);
-        String[] groups = new String[] {};
-        if (o.has("Groups") && !o.isNull("Groups")) {
-          JSONArray gr = o.getJSONArray("Groups");
-          groups = IntStream.range(0, gr.length()).mapToObj(j -> gr.getString(j)).toArray(String[]::new);
+  private void logImportError(ComponentModel fedModel, ItcnApiUser apiUser, Exception e, List<String> errors) {
+    logger.errorf(e,
+        "Error importing user from api with username '%s' in federation provider '%s'",
+        apiUser.getUpn(), fedModel.getName());
+    errors.add(String.format(
+        "Error importing user from api with username '%s' in federation provider '%s'. Exception:<br/>%s",
+        apiUser.getUpn(), fedModel.getName(), getErrorMessage(e)));
+  }
+
+  // Deadlocks, serialization failures and lock wait timeouts roll back the whole
+  // transaction, so the page is retried instead of failing single users
+  static boolean isLockConflict(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLException) {
+        String sqlState = ((SQLException) t).getSQLState();
+        if ("40001".equals(sqlState) || "40P01".equals(sqlState) || "55P03".equals(sqlState)) {
+          return true;
         }
-        return new ItcnApiUser(o.getString("UPN"), o.getString("Email"), o.optString("FirstName"),
-            o.optString("SurName"), o.optString("MobilePhone"), groups);
-      }).collect(Collectors.toList());
-      return users;
+      }
+      String name = t.getClass().getSimpleName();
+      if (name.equals("PessimisticLockException") || name.equals("LockTimeoutException")
+          || name.equals("LockAcquisitionException")) {
+        return true;
+      }
     }
+    return false;
   }
 
   private String getErrorMessage(Throwable e) {
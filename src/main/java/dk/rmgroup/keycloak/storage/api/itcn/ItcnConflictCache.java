@@ -0,0 +1,48 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Directory users a provider cannot update because a local user with the same
+// username is not linked to it, keyed by UPN with a fingerprint of the directory
+// record. A known conflict is skipped without looking the user up until its
+// record changes, the provider configuration changes or the entry expires, so
+// a conflict resolved in Keycloak is picked up within a day
+public class ItcnConflictCache {
+  private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public boolean isKnown(ItcnApiUser apiUser) {
+    Entry entry = entries.get(apiUser.getUpn());
+    if (entry == null) {
+      return false;
+    }
+    if (System.currentTimeMillis() > entry.expires || !entry.fingerprint.equals(fingerprint(apiUser))) {
+      entries.remove(apiUser.getUpn(), entry);
+      return false;
+    }
+    return true;
+  }
+
+  public void add(ItcnApiUser apiUser) {
+    entries.put(apiUser.getUpn(), new Entry(fingerprint(apiUser), System.currentTimeMillis() + TTL_MILLIS));
+  }
+
+  private static String fingerprint(ItcnApiUser apiUser) {
+    return ItcnSyncCheckpoint.digest(Collections.singletonList(apiUser));
+  }
+
+  private static class Entry {
+    private final String fingerprint;
+
+    private final long expires;
+
+    Entry(String fingerprint, long expires) {
+      this.fingerprint = fingerprint;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Strings;
+
+// Pre-flight check of a fetched directory for users that would race or fail in
+// parallel pages: UPNs returned more than once and emails used by more than one
+// UPN. Duplicates with the same data are merged, while the other conflicting
+// users are quarantined and left untouched until the directory is fixed
+public class ItcnDirectoryConflicts {
+  private static final int MAX_LISTED_CONFLICTS = 50;
+
+  private final List<ItcnApiUser> users;
+
+  private final Set<String> directoryUpns;
+
+  private final int mergedDuplicates;
+
+  private final List<String> conflictingUpns;
+
+  private final Map<String, List<String>> sharedEmails;
+
+  private ItcnDirectoryConflicts(List<ItcnApiUser> users, Set<String> directoryUpns, int mergedDuplicates,
+      List<String> conflictingUpns, Map<String, List<String>> sharedEmails) {
+    this.users = users;
+    this.directoryUpns = directoryUpns;
+    this.mergedDuplicates = mergedDuplicates;
+    this.conflictingUpns = conflictingUpns;
+    this.sharedEmails = sharedEmails;
+  }
+
+  public static ItcnDirectoryConflicts resolve(List<ItcnApiUser> apiUsers, boolean duplicateEmailsAllowed) {
+    Map<String, ItcnApiUser> usersByUpn = new LinkedHashMap<>(apiUsers.size() * 4 / 3 + 1);
+    Set<String> conflictingUpns = new HashSet<>();
+    int mergedDuplicates = 0;
+    for (ItcnApiUser apiUser : apiUsers) {
+      ItcnApiUser first = usersByUpn.putIfAbsent(apiUser.getUpn(), apiUser);
+      if (first == null) {
+        continue;
+      }
+      if (sameDirectoryData(first, apiUser)) {
+        mergedDuplicates++;
+      } else {
+        conflictingUpns.add(apiUser.getUpn());
+      }
+    }
+
+    Map<String, List<String>> upnsByEmail = new LinkedHashMap<>();
+    if (!duplicateEmailsAllowed) {
+      for (ItcnApiUser apiUser : usersByUpn.values()) {
+        if (!Strings.isNullOrEmpty(apiUser.getEmail()) && !conflictingUpns.contains(apiUser.getUpn())) {
+          upnsByEmail.computeIfAbsent(apiUser.getEmail(), e -> new ArrayList<>()).add(apiUser.getUpn());
+        }
+      }
+    }
+    Map<String, List<String>> sharedEmails = upnsByEmail.entrySet().stream().filter(e -> e.getValue().size() > 1)
+        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+
+    Set<String> quarantined = new HashSet<>(conflictingUpns);
+    sharedEmails.values().forEach(quarantined::addAll);
+
+    List<ItcnApiUser> users = quarantined.isEmpty() && mergedDuplicates == 0 ? apiUsers
+        : usersByUpn.values().stream().filter(u -> !quarantined.contains(u.getUpn())).collect(Collectors.toList());
+
+    return new ItcnDirectoryConflicts(users, usersByUpn.keySet(),
+        mergedDuplicates, conflictingUpns.stream().sorted().collect(Collectors.toList()), sharedEmails);
+  }
+
+  private static boolean sameDirectoryData(ItcnApiUser a, ItcnApiUser b) {
+    return Objects.equals(a.getEmail(), b.getEmail()) &&
+        Objects.equals(a.getFirstName(), b.getFirstName()) &&
+        Objects.equals(a.getSurName(), b.getSurName()) &&
+        Objects.equals(a.getMobilePhone(), b.getMobilePhone()) &&
+        a.hasSameGroups(b);
+  }
+
+  // The users without conflicts, in directory order
+  public List<ItcnApiUser> getUsers() {
+    return users;
+  }
+
+  // Every UPN in the fetched directory, including the quarantined ones, which
+  // must not be removed
+  public Set<String> getDirectoryUpns() {
+    return directoryUpns;
+  }
+
+  public int getMergedDuplicates() {
+    return mergedDuplicates;
+  }
+
+  public int getQuarantined() {
+    return directoryUpns.size() - users.size();
+  }
+
+  public boolean hasConflicts() {
+    return !conflictingUpns.isEmpty() || !sharedEmails.isEmpty();
+  }
+
+  // One message describing all the conflicts
+  public String getDiagnostic(String providerName) {
+    StringBuilder sb = new StringBuilder(String.format(
+        "%d users from federation provider '%s' were not synchronized because of conflicts in the directory.",
+        getQuarantined(), providerName));
+    if (!conflictingUpns.isEmpty()) {
+      sb.append(String.format("<br/>%d UPNs were returned more than once with different data: %s",
+          conflictingUpns.size(), limit(conflictingUpns)));
+    }
+    if (!sharedEmails.isEmpty()) {
+      List<String> emails = sharedEmails.entrySet().stream()
+          .map(e -> String.format("%s (%s)", e.getKey(), String.join(", ", e.getValue())))
+          .collect(Collectors.toList());
+      sb.append(String.format("<br/>%d emails are used by more than one UPN: %s", emails.size(), limit(emails)));
+    }
+    return sb.toString();
+  }
+
+  private static String limit(List<String> values) {
+    if (values.size() <= MAX_LISTED_CONFLICTS) {
+      return String.join(", ", values);
+    }
+    return String.format("%s and %d more", String.join(", ", values.subList(0, MAX_LISTED_CONFLICTS)),
+        values.size() - MAX_LISTED_CONFLICTS);
+  }
+}
@@ -0,0 +1,92 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Interns ITCN group names for one fetched directory, so every user holds a
+// small sorted array of group indexes instead of its own copy of the names
+public class ItcnGroupDictionary {
+  private static final int[] NO_GROUPS = new int[0];
+
+  private final Map<String, Integer> indexes = new HashMap<>();
+
+  private String[] names = new String[64];
+
+  // 64 bit hashes of the names, which do not depend on the intern order
+  private long[] nameHashes = new long[64];
+
+  private int size;
+
+  public synchronized int intern(String name) {
+    Integer index = indexes.get(name);
+    if (index != null) {
+      return index;
+    }
+
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      nameHashes = Arrays.copyOf(nameHashes, size * 2);
+    }
+    names[size] = name;
+    nameHashes[size] = hashName(name);
+    indexes.put(name, size);
+    return size++;
+  }
+
+  public int[] intern(String[] groupNames) {
+    if (groupNames == null || groupNames.length == 0) {
+      return NO_GROUPS;
+    }
+
+    int[] result = new int[groupNames.length];
+    for (int i = 0; i < groupNames.length; i++) {
+      result[i] = intern(groupNames[i]);
+    }
+    Arrays.sort(result);
+
+    // Remove duplicates, which the API might send
+    int unique = 0;
+    for (int i = 0; i < result.length; i++) {
+      if (i == 0 || result[i] != result[i - 1]) {
+        result[unique++] = result[i];
+      }
+    }
+    return unique == result.length ? result : Arrays.copyOf(result, unique);
+  }
+
+  // Order independent hash of a set of groups, so users of different fetches
+  // can be compared and digested without looking up their group names
+  public synchronized long hash(int[] groupIndexes) {
+    long hash = 0;
+    for (int index : groupIndexes) {
+      hash += nameHashes[index];
+    }
+    return hash;
+  }
+
+  private static long hashName(String name) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(String.valueOf(name).getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public synchronized String getName(int index) {
+    return names[index];
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+}
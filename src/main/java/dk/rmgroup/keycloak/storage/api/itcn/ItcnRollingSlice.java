@@ -0,0 +1,124 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+// The slice of the UPN space a rolling full sync verifies, stored per
+// federation provider in the cluster-wide single use object store, so moving
+// on does not invalidate the realm. UPNs are assigned to slices with a jump
+// consistent hash, so changing the number of slices only moves the UPNs that
+// have to move, and every user is verified once per round of slices
+public class ItcnRollingSlice {
+  private static final Logger logger = Logger.getLogger(ItcnRollingSlice.class);
+
+  private static final String KEY_PREFIX = "itcnSyncSlice.";
+
+  // Long enough to outlast the interval between full syncs
+  private static final long LIFESPAN_SECONDS = 30L * 24 * 60 * 60;
+
+  private final KeycloakSessionFactory sessionFactory;
+
+  private final String fedId;
+
+  private final int slice;
+
+  private final int slices;
+
+  private ItcnRollingSlice(KeycloakSessionFactory sessionFactory, String fedId, int slice, int slices) {
+    this.sessionFactory = sessionFactory;
+    this.fedId = fedId;
+    this.slice = slice;
+    this.slices = slices;
+  }
+
+  // Loads the stored position. The store is lost when the whole cluster
+  // restarts, so without a position for the same number of slices the sync
+  // starts at a random slice instead of verifying the first one again
+  public static ItcnRollingSlice load(KeycloakSessionFactory sessionFactory, String fedId, int slices) {
+    Map<String, String> stored = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+        (KeycloakSession session) -> session.singleUseObjects().get(KEY_PREFIX + fedId));
+
+    int slice = -1;
+    if (stored != null) {
+      try {
+        if (Integer.parseInt(stored.get("slices")) == slices) {
+          slice = Math.floorMod(Integer.parseInt(stored.get("slice")), slices);
+        }
+      } catch (Exception e) {
+        logger.warnf(e, "Ignoring invalid sync slice for federation provider with id '%s'", fedId);
+      }
+    }
+    if (slice < 0) {
+      slice = ThreadLocalRandom.current().nextInt(slices);
+    }
+
+    return new ItcnRollingSlice(sessionFactory, fedId, slice, slices);
+  }
+
+  public int getSlice() {
+    return slice;
+  }
+
+  public int getSlices() {
+    return slices;
+  }
+
+  public boolean contains(String upn) {
+    return sliceOf(upn, slices) == slice;
+  }
+
+  // Moves on to the next slice for the next sync
+  public void advance() {
+    Map<String, String> notes = new HashMap<>();
+    notes.put("slice", String.valueOf((slice + 1) % slices));
+    notes.put("slices", String.valueOf(slices));
+
+    try {
+      KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> session
+          .singleUseObjects().put(KEY_PREFIX + fedId, LIFESPAN_SECONDS, notes));
+    } catch (Exception e) {
+      logger.warnf(e, "Error writing sync slice for federation provider with id '%s'", fedId);
+    }
+  }
+
+  static int sliceOf(String upn, int slices) {
+    return jumpConsistentHash(hash(upn), slices);
+  }
+
+  // 64 bit FNV-1a of the UPN followed by the MurmurHash3 finalizer, as the jump
+  // hash needs well mixed keys
+  private static long hash(String upn) {
+    long h = 0xcbf29ce484222325L;
+    if (upn != null) {
+      for (byte b : upn.getBytes(StandardCharsets.UTF_8)) {
+        h ^= b & 0xff;
+        h *= 0x100000001b3L;
+      }
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+  private static int jumpConsistentHash(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+}
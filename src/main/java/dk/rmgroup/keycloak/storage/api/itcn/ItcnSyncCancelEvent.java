@@ -0,0 +1,30 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.keycloak.cluster.ClusterEvent;
+
+// Sent to the other nodes of the cluster to cancel the sync of a provider that
+// was changed or removed. Cluster events are marshalled with Protostream, with
+// the schema generated for ItcnSyncSchema
+public class ItcnSyncCancelEvent implements ClusterEvent {
+  private final String providerId;
+
+  private final String reason;
+
+  @ProtoFactory
+  public ItcnSyncCancelEvent(String providerId, String reason) {
+    this.providerId = providerId;
+    this.reason = reason;
+  }
+
+  @ProtoField(1)
+  public String getProviderId() {
+    return providerId;
+  }
+
+  @ProtoField(2)
+  public String getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,29 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+// Cooperative cancellation of a running sync. Page workers check it at page
+// boundaries, so a cancelled sync stops scheduling pages and rolls back the
+// pages that have not committed yet
+public class ItcnSyncCancellation {
+  private volatile String reason;
+
+  public void cancel(String reason) {
+    if (this.reason == null) {
+      this.reason = reason;
+    }
+  }
+
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  public void throwIfCancelled() {
+    String cancelledReason = reason;
+    if (cancelledReason != null) {
+      throw new ItcnSyncCancelledException(cancelledReason);
+    }
+  }
+}
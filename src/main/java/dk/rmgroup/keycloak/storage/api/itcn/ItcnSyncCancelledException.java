@@ -0,0 +1,9 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+public class ItcnSyncCancelledException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public ItcnSyncCancelledException(String reason) {
+    super(String.format("Synchronization was cancelled because %s", reason));
+  }
+}
@@ -0,0 +1,250 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+// Progress of a sync, stored per federation provider in the cluster-wide single
+// use object store. It records which directory pages have all their changes
+// committed and whether the removals are done, for a directory digest. A sync of
+// a directory with the same digest resumes by skipping those pages.
+// The store is kept in memory by the cluster, so a checkpoint survives a node
+// restart but not a restart of the whole cluster. A checkpoint older than
+// MAX_AGE_SECONDS or resumed MAX_RESUMES times is dropped for a full sync.
+public class ItcnSyncCheckpoint {
+  private static final Logger logger = Logger.getLogger(ItcnSyncCheckpoint.class);
+
+  private static final String KEY_PREFIX = "itcnSyncCheckpoint.";
+
+  static final long MAX_AGE_SECONDS = 24 * 60 * 60;
+
+  static final int MAX_RESUMES = 3;
+
+  // The store is replicated to all nodes, so page completions are written at
+  // most this often. Pages completed since the last write are planned again
+  // after a failover, which only finds the changes already made
+  private static final long WRITE_INTERVAL_MILLIS = 30000;
+
+  private final KeycloakSessionFactory sessionFactory;
+
+  private final String fedId;
+
+  private final String syncId;
+
+  private final String digest;
+
+  private final BitSet completedPages;
+
+  private boolean removalsDone;
+
+  private final long created;
+
+  // The number of times the checkpoint was resumed, 0 for a new checkpoint
+  private final int resumes;
+
+  private long lastWrite;
+
+  private boolean dirty;
+
+  private ItcnSyncCheckpoint(KeycloakSessionFactory sessionFactory, String fedId, String syncId, String digest,
+      BitSet completedPages, boolean removalsDone, long created, int resumes) {
+    this.sessionFactory = sessionFactory;
+    this.fedId = fedId;
+    this.syncId = syncId;
+    this.digest = digest;
+    this.completedPages = completedPages;
+    this.removalsDone = removalsDone;
+    this.created = created;
+    this.resumes = resumes;
+  }
+
+  // Resumes the stored checkpoint if it is for the same digest and has not been
+  // resumed too often, otherwise starts a new one
+  public static ItcnSyncCheckpoint load(KeycloakSessionFactory sessionFactory, String fedId, String digest) {
+    Map<String, String> stored = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+        (KeycloakSession session) -> session.singleUseObjects().get(KEY_PREFIX + fedId));
+
+    if (stored != null && digest.equals(stored.get("digest"))) {
+      try {
+        int resumes = Integer.parseInt(stored.get("resumes")) + 1;
+        if (resumes <= MAX_RESUMES) {
+          ItcnSyncCheckpoint checkpoint = new ItcnSyncCheckpoint(sessionFactory, fedId, stored.get("syncId"),
+              digest, parseRanges(stored.get("completedPages")), Boolean.parseBoolean(stored.get("removalsDone")),
+              Long.parseLong(stored.get("created")), resumes);
+          // The resume is counted even if this sync is stopped before it writes
+          checkpoint.dirty = true;
+          checkpoint.flush();
+          return checkpoint;
+        }
+        logger.infof("Sync checkpoint for federation provider with id '%s' was resumed %d times. Starting a full sync",
+            fedId, MAX_RESUMES);
+      } catch (RuntimeException e) {
+        logger.warnf(e, "Ignoring invalid sync checkpoint for federation provider with id '%s'", fedId);
+      }
+    }
+
+    return new ItcnSyncCheckpoint(sessionFactory, fedId, UUID.randomUUID().toString(), digest, new BitSet(), false,
+        System.currentTimeMillis(), 0);
+  }
+
+  public String getSyncId() {
+    return syncId;
+  }
+
+  public boolean isResumed() {
+    return resumes > 0;
+  }
+
+  public int getResumes() {
+    return resumes;
+  }
+
+  public synchronized boolean isPageCompleted(int page) {
+    return completedPages.get(page);
+  }
+
+  public synchronized int getCompletedPages() {
+    return completedPages.cardinality();
+  }
+
+  public synchronized boolean isRemovalsDone() {
+    return removalsDone;
+  }
+
+  public synchronized void markPagesCompleted(BitSet pages) {
+    completedPages.or(pages);
+    dirty = true;
+    writeIfDue(false);
+  }
+
+  public synchronized void markRemovalsDone() {
+    removalsDone = true;
+    dirty = true;
+    writeIfDue(true);
+  }
+
+  // Writes any completions not yet written
+  public synchronized void flush() {
+    writeIfDue(true);
+  }
+
+  public synchronized void clear() {
+    try {
+      KeycloakModelUtils.runJobInTransaction(sessionFactory,
+          (KeycloakSession session) -> session.singleUseObjects().remove(KEY_PREFIX + fedId));
+    } catch (Exception e) {
+      logger.warnf(e, "Error removing sync checkpoint for federation provider with id '%s'", fedId);
+    }
+    dirty = false;
+  }
+
+  private void writeIfDue(boolean force) {
+    long now = System.currentTimeMillis();
+    if (!dirty || (!force && now - lastWrite < WRITE_INTERVAL_MILLIS)) {
+      return;
+    }
+
+    // The checkpoint expires MAX_AGE_SECONDS after it was created, however often
+    // it is written
+    long lifespanSeconds = MAX_AGE_SECONDS - (now - created) / 1000;
+    if (lifespanSeconds <= 0) {
+      dirty = false;
+      return;
+    }
+
+    Map<String, String> notes = new HashMap<>();
+    notes.put("syncId", syncId);
+    notes.put("digest", digest);
+    notes.put("removalsDone", String.valueOf(removalsDone));
+    notes.put("completedPages", formatRanges(completedPages));
+    notes.put("created", String.valueOf(created));
+    notes.put("resumes", String.valueOf(resumes));
+
+    try {
+      KeycloakModelUtils.runJobInTransaction(sessionFactory,
+          (KeycloakSession session) -> session.singleUseObjects().put(KEY_PREFIX + fedId, lifespanSeconds, notes));
+      lastWrite = now;
+      dirty = false;
+    } catch (Exception e) {
+      logger.warnf(e, "Error writing sync checkpoint for federation provider with id '%s'", fedId);
+    }
+  }
+
+  // Digest of the directory and the configuration that decides what the sync
+  // writes, so a checkpoint is only resumed for the same input
+  public static String digest(List<ItcnApiUser> apiUsers, String... config) {
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+      for (String value : config) {
+        update(messageDigest, value);
+      }
+      for (ItcnApiUser apiUser : apiUsers) {
+        update(messageDigest, apiUser.getUpn());
+        update(messageDigest, apiUser.getEmail());
+        update(messageDigest, apiUser.getFirstName());
+        update(messageDigest, apiUser.getSurName());
+        update(messageDigest, apiUser.getMobilePhone());
+        long groupsHash = apiUser.getGroupsHash();
+        for (int i = 0; i < 8; i++) {
+          messageDigest.update((byte) (groupsHash >>> (56 - 8 * i)));
+        }
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : messageDigest.digest()) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void update(MessageDigest messageDigest, String value) {
+    if (value != null) {
+      messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+    messageDigest.update((byte) 0);
+  }
+
+  static String formatRanges(BitSet pages) {
+    StringBuilder sb = new StringBuilder();
+    for (int start = pages.nextSetBit(0); start >= 0; start = pages.nextSetBit(start)) {
+      int end = pages.nextClearBit(start) - 1;
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(start);
+      if (end > start) {
+        sb.append('-').append(end);
+      }
+      start = end + 1;
+    }
+    return sb.toString();
+  }
+
+  static BitSet parseRanges(String ranges) {
+    BitSet pages = new BitSet();
+    if (ranges == null || ranges.isEmpty()) {
+      return pages;
+    }
+    for (String range : ranges.split(",")) {
+      int dash = range.indexOf('-');
+      if (dash < 0) {
+        pages.set(Integer.parseInt(range));
+      } else {
+        pages.set(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)) + 1);
+      }
+    }
+    return pages;
+  }
+}
@@ -0,0 +1,127 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+public final class ItcnSyncEvents {
+  public static final String OUTCOME_SUCCESS = "success";
+  public static final String OUTCOME_FAILED = "failed";
+  public static final String OUTCOME_CANCELLED = "cancelled";
+
+  public static final String PAGE_KIND_PLAN = "plan";
+  public static final String PAGE_KIND_LOOKUP = "lookup";
+  public static final String PAGE_KIND_REMOVAL = "removal";
+  public static final String PAGE_KIND_CREATE = "create";
+  public static final String PAGE_KIND_UPDATE = "update";
+
+  public static final String SIDE_EFFECT_ADMIN_EVENT = "admin-event";
+  public static final String SIDE_EFFECT_EMAIL = "email";
+  public static final String SIDE_EFFECT_CACHE_INVALIDATION = "cache-invalidation";
+
+  private ItcnSyncEvents() {
+  }
+
+  @Category({ "Keycloak", "ITCN User Federation" })
+  public abstract static class SyncEvent extends Event {
+    @Label("Provider")
+    public String providerName;
+
+    @Label("Outcome")
+    public String outcome = OUTCOME_FAILED;
+  }
+
+  @Name("dk.rmgroup.itcn.Fetch")
+  @Label("ITCN Directory Fetch")
+  @Description("Download of the ActiveDirectory endpoint response")
+  public static class FetchEvent extends SyncEvent {
+    @Label("Page")
+    public int page;
+
+    @Label("Characters")
+    public long characters;
+  }
+
+  @Name("dk.rmgroup.itcn.Parse")
+  @Label("ITCN Directory Parse")
+  @Description("Parsing of the ActiveDirectory response into users")
+  public static class ParseEvent extends SyncEvent {
+    @Label("Page")
+    public int page;
+
+    @Label("Users")
+    public int users;
+  }
+
+  @Name("dk.rmgroup.itcn.RemovalScan")
+  @Label("ITCN Removal Scan")
+  @Description("Scan of one page of existing users for users no longer in ITCN")
+  public static class RemovalScanEvent extends SyncEvent {
+    @Label("Page")
+    public int page;
+
+    @Label("Users Scanned")
+    public int users;
+
+    @Label("Users To Remove")
+    public int usersToRemove;
+  }
+
+  @Name("dk.rmgroup.itcn.PageTransaction")
+  @Label("ITCN Page Transaction")
+  @Description("One import or removal page transaction")
+  public static class PageTransactionEvent extends SyncEvent {
+    @Label("Kind")
+    public String kind;
+
+    @Label("Page")
+    public int page;
+
+    @Label("Users")
+    public int users;
+
+    @Label("Added")
+    public int added;
+
+    @Label("Updated")
+    public int updated;
+
+    @Label("Removed")
+    public int removed;
+
+    @Label("Failed")
+    public int failed;
+
+    @Label("Lock Retries")
+    public int lockRetries;
+  }
+
+  @Name("dk.rmgroup.itcn.GroupReconciliation")
+  @Label("ITCN Group Reconciliation")
+  @Description("Group join and leave computation for one user")
+  @Threshold("1 ms")
+  public static class GroupReconciliationEvent extends SyncEvent {
+    @Label("Page")
+    public int page;
+
+    @Label("Groups Joined")
+    public int groupsJoined;
+
+    @Label("Groups Left")
+    public int groupsLeft;
+  }
+
+  @Name("dk.rmgroup.itcn.SideEffect")
+  @Label("ITCN Sync Side Effect")
+  @Description("Admin event or email sent as part of a sync")
+  public static class SideEffectEvent extends SyncEvent {
+    @Label("Kind")
+    public String kind;
+
+    @Label("Resource Path")
+    public String resourcePath;
+  }
+}
@@ -0,0 +1,90 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The changes found by the read-only planning phase of a sync. Pages are
+// planned in parallel, so changes are added through the synchronized lists
+public class ItcnSyncPlan {
+  private final List<ItcnUserChange> creates = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<ItcnUserChange> updates = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<ItcnUserChange> removals = Collections.synchronizedList(new ArrayList<>());
+
+  private final Set<Integer> failedPages = ConcurrentHashMap.newKeySet();
+
+  private int skippedPages;
+
+  public void add(ItcnUserChange change) {
+    switch (change.getKind()) {
+      case CREATE:
+        creates.add(change);
+        break;
+      case UPDATE:
+        updates.add(change);
+        break;
+      default:
+        removals.add(change);
+        break;
+    }
+  }
+
+  // A directory page with a user that failed planning or applying is never
+  // recorded as completed in the checkpoint
+  public void markPageFailed(int directoryPage) {
+    failedPages.add(directoryPage);
+  }
+
+  public boolean isPageFailed(int directoryPage) {
+    return failedPages.contains(directoryPage);
+  }
+
+  public int getSkippedPages() {
+    return skippedPages;
+  }
+
+  public void setSkippedPages(int skippedPages) {
+    this.skippedPages = skippedPages;
+  }
+
+  public List<ItcnUserChange> getCreates() {
+    return creates;
+  }
+
+  public List<ItcnUserChange> getUpdates() {
+    return updates;
+  }
+
+  public List<ItcnUserChange> getRemovals() {
+    return removals;
+  }
+
+  public int getAttributeUpdates() {
+    synchronized (updates) {
+      return (int) updates.stream().filter(ItcnUserChange::isAttributesChanged).count();
+    }
+  }
+
+  public int getGroupJoins() {
+    return countGroupChanges(creates, true) + countGroupChanges(updates, true);
+  }
+
+  public int getGroupLeaves() {
+    return countGroupChanges(updates, false);
+  }
+
+  public boolean isEmpty() {
+    return creates.isEmpty() && updates.isEmpty() && removals.isEmpty();
+  }
+
+  private static int countGroupChanges(List<ItcnUserChange> changes, boolean joins) {
+    synchronized (changes) {
+      return changes.stream()
+          .mapToInt(c -> joins ? c.getGroupChanges().getJoined() : c.getGroupChanges().getLeft()).sum();
+    }
+  }
+}
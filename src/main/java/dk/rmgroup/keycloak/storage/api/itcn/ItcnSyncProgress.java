@@ -0,0 +1,162 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Live progress of a sync. The sync thread moves it from phase to phase and the
+// page workers update its counters without locking, while the progress
+// endpoint reads snapshots of it
+public class ItcnSyncProgress {
+  public static final String PHASE_FETCH = "fetch";
+  public static final String PHASE_SCAN = "scan";
+  public static final String PHASE_FINISHED = "finished";
+
+  private final String mode;
+
+  private final long started = System.currentTimeMillis();
+
+  private volatile String phase = PHASE_FETCH;
+
+  private volatile long finished;
+
+  private volatile String status;
+
+  // Phases in the order they were started or expected
+  private final List<Phase> phaseOrder = new CopyOnWriteArrayList<>();
+
+  private final Map<String, Phase> phases = new ConcurrentHashMap<>();
+
+  private final LongAdder added = new LongAdder();
+
+  private final LongAdder updated = new LongAdder();
+
+  private final LongAdder removed = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  public ItcnSyncProgress(String mode) {
+    this.mode = mode;
+  }
+
+  private static class Phase {
+    private final String name;
+
+    private volatile int totalPages;
+
+    private volatile long started;
+
+    private final AtomicInteger pagesDone = new AtomicInteger();
+
+    private final LongAdder users = new LongAdder();
+
+    Phase(String name) {
+      this.name = name;
+    }
+  }
+
+  private Phase getPhase(String name) {
+    return phases.computeIfAbsent(name, n -> {
+      Phase p = new Phase(n);
+      phaseOrder.add(p);
+      return p;
+    });
+  }
+
+  // Records the pages a phase still has to run, so the estimate also covers
+  // phases that have not started yet
+  public void expect(String name, int remainingPages) {
+    Phase p = getPhase(name);
+    p.totalPages = p.pagesDone.get() + remainingPages;
+  }
+
+  // Starts a phase that runs the given number of pages. A phase can run more
+  // than once, like the creates of new users and the creates found while
+  // planning, and then counts the pages of all its runs
+  public void startPhase(String name, int pages) {
+    expect(name, pages);
+    Phase p = getPhase(name);
+    if (p.started == 0) {
+      p.started = System.currentTimeMillis();
+    }
+    phase = name;
+  }
+
+  public void pageDone(String name, int users) {
+    Phase p = getPhase(name);
+    p.pagesDone.incrementAndGet();
+    p.users.add(users);
+  }
+
+  public void changesCommitted(int pageAdded, int pageUpdated, int pageRemoved, int pageFailed) {
+    added.add(pageAdded);
+    updated.add(pageUpdated);
+    removed.add(pageRemoved);
+    failed.add(pageFailed);
+  }
+
+  public void failed(int count) {
+    failed.add(count);
+  }
+
+  public void finish(String status) {
+    this.status = status;
+    this.finished = System.currentTimeMillis();
+    this.phase = PHASE_FINISHED;
+  }
+
+  public Map<String, Object> snapshot() {
+    long now = System.currentTimeMillis();
+    String currentPhase = phase;
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("mode", mode);
+    result.put("phase", currentPhase);
+    result.put("started", started);
+    result.put("elapsedMillis", (finished > 0 ? finished : now) - started);
+
+    List<Map<String, Object>> phaseList = new ArrayList<>();
+    for (Phase p : phaseOrder) {
+      Map<String, Object> phaseResult = new LinkedHashMap<>();
+      phaseResult.put("name", p.name);
+      phaseResult.put("pagesDone", p.pagesDone.get());
+      phaseResult.put("totalPages", p.totalPages);
+      phaseResult.put("users", p.users.sum());
+      phaseList.add(phaseResult);
+    }
+    result.put("phases", phaseList);
+
+    result.put("added", added.sum());
+    result.put("updated", updated.sum());
+    result.put("removed", removed.sum());
+    result.put("failed", failed.sum());
+
+    Phase current = phases.get(currentPhase);
+    if (current != null && current.started > 0 && finished == 0) {
+      long phaseMillis = Math.max(1, now - current.started);
+      result.put("usersPerSecond", current.users.sum() * 1000 / phaseMillis);
+
+      // The remaining pages of all phases at the page rate of this phase
+      int done = current.pagesDone.get();
+      if (done > 0) {
+        long remainingPages = 0;
+        for (Phase p : phaseOrder) {
+          remainingPages += Math.max(0, p.totalPages - p.pagesDone.get());
+        }
+        result.put("estimatedCompletion", now + remainingPages * phaseMillis / done);
+      }
+    }
+
+    if (finished > 0) {
+      result.put("finished", finished);
+      result.put("status", status);
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,57 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+
+// The syncs running on this node, by federation provider id
+public final class ItcnSyncRegistry {
+  private static final Logger logger = Logger.getLogger(ItcnSyncRegistry.class);
+
+  private static final Map<String, ItcnSyncCancellation> runningSyncs = new ConcurrentHashMap<>();
+
+  // The progress of the running or last sync
+  private static final Map<String, ItcnSyncProgress> progress = new ConcurrentHashMap<>();
+
+  private ItcnSyncRegistry() {
+  }
+
+  public static ItcnSyncCancellation register(String fedId) {
+    ItcnSyncCancellation cancellation = new ItcnSyncCancellation();
+    ItcnSyncCancellation previous = runningSyncs.put(fedId, cancellation);
+    if (previous != null) {
+      logger.warnf("A sync is already running for federation provider with id '%s'", fedId);
+    }
+    return cancellation;
+  }
+
+  public static void unregister(String fedId, ItcnSyncCancellation cancellation) {
+    runningSyncs.remove(fedId, cancellation);
+  }
+
+  public static ItcnSyncProgress startProgress(String fedId, String mode) {
+    ItcnSyncProgress syncProgress = new ItcnSyncProgress(mode);
+    progress.put(fedId, syncProgress);
+    return syncProgress;
+  }
+
+  public static ItcnSyncProgress getProgress(String fedId) {
+    return progress.get(fedId);
+  }
+
+  public static void removeProgress(String fedId) {
+    progress.remove(fedId);
+  }
+
+  // Returns true if a running sync was signalled
+  public static boolean cancel(String fedId, String reason) {
+    ItcnSyncCancellation cancellation = runningSyncs.get(fedId);
+    if (cancellation == null) {
+      return false;
+    }
+    logger.infof("Cancelling sync for federation provider with id '%s' because %s", fedId, reason);
+    cancellation.cancel(reason);
+    return true;
+  }
+}
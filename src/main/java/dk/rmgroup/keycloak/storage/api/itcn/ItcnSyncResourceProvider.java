@@ -0,0 +1,180 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.json.JSONException;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+// Admin endpoints for the syncs of the ITCN federation providers in a realm,
+// available at /realms/{realm}/itcn-sync. Callers need a bearer token for a
+// user with the manage-users role of the realm
+public class ItcnSyncResourceProvider implements RealmResourceProvider {
+  private static final long PUSH_TIMEOUT_SECONDS = 30;
+
+  private final KeycloakSession session;
+
+  public ItcnSyncResourceProvider(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public Object getResource() {
+    return this;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  // Signals the sync running on this node for the provider to stop
+  @POST
+  @Path("{providerId}/cancel")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response cancel(@PathParam("providerId") String providerId) {
+    ComponentModel model = getProvider(providerId);
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("providerId", model.getId());
+    if (!ItcnSyncRegistry.cancel(model.getId(), "it was cancelled by an administrator")) {
+      result.put("cancelled", false);
+      return Response.status(Response.Status.NOT_FOUND).entity(result).build();
+    }
+    result.put("cancelled", true);
+    return Response.accepted(result).build();
+  }
+
+  // The progress of the sync running on this node for the provider, or of the
+  // last sync it ran
+  @GET
+  @Path("{providerId}/progress")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@PathParam("providerId") String providerId) {
+    ComponentModel model = getProvider(providerId);
+
+    ItcnSyncProgress progress = ItcnSyncRegistry.getProgress(model.getId());
+    if (progress == null) {
+      throw new NotFoundException(String.format("No sync has run on this node for federation provider '%s'",
+          model.getName()));
+    }
+    return Response.ok(progress.snapshot()).build();
+  }
+
+  // Applies one ActiveDirectoryUser or a batch of them right away, using the
+  // same reconciliation as a sync. Responds with the result per user, or 202 if
+  // the batch is not applied within the timeout
+  @POST
+  @Path("{providerId}/users")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response push(@PathParam("providerId") String providerId, String body) {
+    ComponentModel model = getProvider(providerId);
+
+    List<ItcnApiUser> apiUsers;
+    try {
+      apiUsers = ItcnApiClient.parsePushedItcnApiUsers(body);
+    } catch (JSONException e) {
+      throw new BadRequestException(String.format("Invalid ActiveDirectoryUser json: %s", e.getMessage()));
+    }
+    if (apiUsers.isEmpty() || apiUsers.size() > ItcnUserPushBatcher.MAX_BATCH_SIZE) {
+      throw new BadRequestException(
+          String.format("Push between 1 and %d users at a time", ItcnUserPushBatcher.MAX_BATCH_SIZE));
+    }
+
+    List<CompletableFuture<ItcnUserUpdateResult>> futures = getFactory().pushApiUsers(
+        session.getKeycloakSessionFactory(), session.getContext().getRealm().getId(), model.getId(), apiUsers);
+
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(PUSH_TIMEOUT_SECONDS,
+          TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      return Response.accepted().build();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Response.accepted().build();
+    } catch (ExecutionException e) {
+      throw new WebApplicationException(
+          String.format("Error applying pushed users: %s", e.getCause().getMessage()), e.getCause());
+    }
+
+    return Response.ok(futures.stream().map(CompletableFuture::join).collect(Collectors.toList())).build();
+  }
+
+  // Fetches the user from ITCN and reconciles it right away. Responds with the
+  // changes that were made
+  @POST
+  @Path("{providerId}/users/{upn}/refresh")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response refresh(@PathParam("providerId") String providerId, @PathParam("upn") String upn) {
+    ComponentModel model = getProvider(providerId);
+
+    ItcnUserUpdateResult result = getFactory().refreshApiUser(session.getKeycloakSessionFactory(),
+        session.getContext().getRealm().getId(), model, upn);
+
+    Response.Status status = result.getOutcome() == ItcnUserUpdateResult.Outcome.NOT_FOUND
+        ? Response.Status.NOT_FOUND
+        : Response.Status.OK;
+    return Response.status(status).entity(result).build();
+  }
+
+  private ItcnApiUserStorageProviderFactory getFactory() {
+    return (ItcnApiUserStorageProviderFactory) session.getKeycloakSessionFactory()
+        .getProviderFactory(UserStorageProvider.class, ItcnApiUserStorageProviderFactory.PROVIDER_ID);
+  }
+
+  private ComponentModel getProvider(String providerId) {
+    RealmModel realm = requireManageUsers();
+    ComponentModel model = realm.getComponent(providerId);
+    if (model == null || !realm.getId().equals(model.getParentId())
+        || !ItcnApiUserStorageProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+      throw new NotFoundException(String.format("ITCN federation provider '%s' not found", providerId));
+    }
+    return model;
+  }
+
+  private RealmModel requireManageUsers() {
+    AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+    if (auth == null) {
+      throw new NotAuthorizedException("Bearer");
+    }
+
+    RealmModel realm = session.getContext().getRealm();
+    ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+    RoleModel manageUsers = realmManagement == null ? null : realmManagement.getRole(AdminRoles.MANAGE_USERS);
+    if (manageUsers == null || !auth.getUser().hasRole(manageUsers)) {
+      throw new ForbiddenException("The manage-users role is required");
+    }
+    return realm;
+  }
+}
@@ -0,0 +1,33 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class ItcnSyncResourceProviderFactory implements RealmResourceProviderFactory {
+  public static final String ID = "itcn-sync";
+
+  @Override
+  public RealmResourceProvider create(KeycloakSession session) {
+    return new ItcnSyncResourceProvider(session);
+  }
+
+  @Override
+  public void init(Scope config) {
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+}
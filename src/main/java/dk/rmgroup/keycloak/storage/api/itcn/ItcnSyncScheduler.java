@@ -0,0 +1,205 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+// Shares one budget of concurrent page transactions between the syncs of all
+// ITCN providers on this node, so overlapping syncs cannot take the whole
+// database connection pool. A free permit goes to the waiting sync holding the
+// fewest permits, and among those to the one that started first, so running
+// syncs converge on equal shares of the budget.
+// A sync that starts while the budget is used up is queued: it only gets
+// permits no earlier sync is waiting for, until it is granted its first one
+public class ItcnSyncScheduler {
+  private static final Logger logger = Logger.getLogger(ItcnSyncScheduler.class);
+
+  private static final long MAX_WAIT_MILLIS = 1000;
+
+  // Guarded by this
+  private int budget;
+
+  private final List<Share> shares = new ArrayList<>();
+
+  private int inUse;
+
+  private long nextSequence;
+
+  public ItcnSyncScheduler(int budget) {
+    setBudget(budget);
+  }
+
+  public synchronized int getBudget() {
+    return budget;
+  }
+
+  // Permits already taken beyond a lowered budget are kept until released
+  public synchronized void setBudget(int budget) {
+    this.budget = Math.max(1, budget);
+    notifyAll();
+  }
+
+  // Registers a starting sync. The share must be closed when the sync ends
+  public synchronized Share join(String providerId) {
+    Share share = new Share(providerId, nextSequence++, inUse < budget);
+    shares.add(share);
+    if (!share.admitted) {
+      logger.infof("All %d page transactions are in use, queueing sync for federation provider with id '%s'",
+          budget, providerId);
+    }
+    return share;
+  }
+
+  private boolean acquire(Share share, ItcnSyncCancellation cancellation) {
+    PermitWait permitWait = new PermitWait(share, cancellation);
+    synchronized (this) {
+      share.waiting++;
+    }
+    try {
+      // Page workers run on the common pool, which adds a spare worker while
+      // one is blocked here, so waiting syncs do not starve other pool tasks
+      ForkJoinPool.managedBlock(permitWait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        share.waiting--;
+        // Another waiter may be next now
+        notifyAll();
+      }
+    }
+    return permitWait.acquired;
+  }
+
+  // Takes a permit for the share, or returns false if it is not its turn
+  private boolean tryAcquire(Share share) {
+    if (inUse >= budget || !isNext(share)) {
+      return false;
+    }
+    inUse++;
+    share.running++;
+    if (!share.admitted) {
+      share.admitted = true;
+      logger.infof("Sync for federation provider with id '%s' got its first page transaction", share.providerId);
+    }
+    return true;
+  }
+
+  // True if no other waiting sync comes before the share
+  private boolean isNext(Share share) {
+    for (Share other : shares) {
+      if (other != share && other.waiting > 0 && other.comesBefore(share)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized void release(Share share) {
+    inUse--;
+    share.running--;
+    notifyAll();
+  }
+
+  private synchronized void leave(Share share) {
+    shares.remove(share);
+    notifyAll();
+  }
+
+  // A page worker waiting for a permit. Done once it has one or the sync was
+  // cancelled
+  private class PermitWait implements ForkJoinPool.ManagedBlocker {
+    private final Share share;
+
+    private final ItcnSyncCancellation cancellation;
+
+    private boolean acquired;
+
+    private PermitWait(Share share, ItcnSyncCancellation cancellation) {
+      this.share = share;
+      this.cancellation = cancellation;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      synchronized (ItcnSyncScheduler.this) {
+        return isDone();
+      }
+    }
+
+    @Override
+    public boolean block() throws InterruptedException {
+      synchronized (ItcnSyncScheduler.this) {
+        if (isDone()) {
+          return true;
+        }
+        long waitStarted = System.currentTimeMillis();
+        ItcnSyncScheduler.this.wait(MAX_WAIT_MILLIS);
+        share.waitedMillis.addAndGet(System.currentTimeMillis() - waitStarted);
+        return isDone();
+      }
+    }
+
+    private boolean isDone() {
+      if (!acquired && !cancellation.isCancelled()) {
+        acquired = tryAcquire(share);
+      }
+      return acquired || cancellation.isCancelled();
+    }
+  }
+
+  // The part of the budget used by one sync
+  public class Share implements AutoCloseable {
+    private final String providerId;
+
+    private final long sequence;
+
+    // Guarded by the scheduler
+    private boolean admitted;
+
+    private int running;
+
+    private int waiting;
+
+    private final AtomicLong waitedMillis = new AtomicLong();
+
+    private Share(String providerId, long sequence, boolean admitted) {
+      this.providerId = providerId;
+      this.sequence = sequence;
+      this.admitted = admitted;
+    }
+
+    private boolean comesBefore(Share other) {
+      if (admitted != other.admitted) {
+        return admitted;
+      }
+      if (running != other.running) {
+        return running < other.running;
+      }
+      return sequence < other.sequence;
+    }
+
+    // Waits until the sync may open a page transaction. Returns false if the
+    // sync was cancelled while waiting
+    public boolean acquire(ItcnSyncCancellation cancellation) {
+      return ItcnSyncScheduler.this.acquire(this, cancellation);
+    }
+
+    public void release() {
+      ItcnSyncScheduler.this.release(this);
+    }
+
+    // Total time the page workers of the sync waited for permits
+    public long getWaitedMillis() {
+      return waitedMillis.get();
+    }
+
+    @Override
+    public void close() {
+      leave(this);
+    }
+  }
+}
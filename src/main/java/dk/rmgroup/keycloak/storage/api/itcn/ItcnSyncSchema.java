@@ -0,0 +1,12 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.infinispan.protostream.GeneratedSchema;
+import org.infinispan.protostream.annotations.ProtoSchema;
+
+// The Protostream schema of the cluster events sent by the provider. The
+// implementation is generated when compiling and registered as a service, so
+// the cluster can marshal the events
+@ProtoSchema(includeClasses = ItcnSyncCancelEvent.class, schemaFileName = "itcn-sync.proto",
+    schemaFilePath = "proto/", schemaPackageName = "dk.rmgroup.keycloak.itcn")
+public interface ItcnSyncSchema extends GeneratedSchema {
+}
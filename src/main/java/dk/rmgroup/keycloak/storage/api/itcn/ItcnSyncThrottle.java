@@ -0,0 +1,274 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+// Limits the write transactions of a sync per second and the users they write
+// per second with token buckets, so a full sync leaves database connections for
+// logins. Pages take their tokens before their transaction is opened, so a page
+// waiting for tokens does not hold a connection.
+// The limits only apply within the schedule. If adaptive, the user rate is
+// halved whenever a page takes more than twice as long per user as the
+// baseline, which happens when the pages wait for connections or locks, and is
+// raised again by a tenth of the limit after each page that does not. The
+// baseline drops to any faster page and otherwise drifts a fiftieth of the way
+// towards each page, so one unusually fast page does not hold the rate down
+// for the rest of the sync, and a lasting change in page times becomes the new
+// baseline
+public class ItcnSyncThrottle {
+  private static final Logger logger = Logger.getLogger(ItcnSyncThrottle.class);
+
+  private static final long MAX_SLEEP_MILLIS = 1000;
+
+  private static final double SLOW_PAGE_FACTOR = 2;
+
+  private static final double MIN_RATE_FRACTION = 0.05;
+
+  private static final double BASELINE_DRIFT = 0.02;
+
+  private final String providerName;
+
+  private final TokenBucket transactions;
+
+  private final TokenBucket users;
+
+  private final Schedule schedule;
+
+  private final boolean adaptive;
+
+  private final AtomicLong throttledMillis = new AtomicLong();
+
+  private double baselineNanosPerUser = Double.NaN;
+
+  public ItcnSyncThrottle(String providerName, int transactionsPerSecond, int usersPerSecond, Schedule schedule,
+      boolean adaptive) {
+    this.providerName = providerName;
+    this.transactions = transactionsPerSecond > 0 ? new TokenBucket(transactionsPerSecond) : null;
+    this.users = usersPerSecond > 0 ? new TokenBucket(usersPerSecond) : null;
+    this.schedule = schedule;
+    this.adaptive = adaptive && users != null;
+  }
+
+  public boolean isEnabled() {
+    return transactions != null || users != null;
+  }
+
+  // Total time pages waited for tokens
+  public long getThrottledMillis() {
+    return throttledMillis.get();
+  }
+
+  // The current users per second limit, or 0 without one
+  double getUserRate() {
+    return users != null ? users.getRate() : 0;
+  }
+
+  // Waits until a write transaction for the given number of users may start.
+  // Returns false if the sync was cancelled while waiting
+  public boolean acquire(int userCount, ItcnSyncCancellation cancellation) {
+    if (!isEnabled() || !schedule.isActive(LocalDateTime.now())) {
+      return true;
+    }
+
+    long now = System.nanoTime();
+    long waitMillis = 0;
+    if (transactions != null) {
+      waitMillis = Math.max(waitMillis, transactions.reserve(1, now));
+    }
+    if (users != null) {
+      waitMillis = Math.max(waitMillis, users.reserve(userCount, now));
+    }
+    if (waitMillis <= 0) {
+      return true;
+    }
+
+    throttledMillis.addAndGet(waitMillis);
+    long until = System.currentTimeMillis() + waitMillis;
+    try {
+      for (long left = waitMillis; left > 0; left = until - System.currentTimeMillis()) {
+        if (cancellation.isCancelled()) {
+          return false;
+        }
+        Thread.sleep(Math.min(left, MAX_SLEEP_MILLIS));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !cancellation.isCancelled();
+  }
+
+  // Feeds the duration of a committed write transaction back into the user rate
+  public void pageCommitted(int userCount, long nanos) {
+    if (!adaptive || userCount <= 0) {
+      return;
+    }
+
+    double nanosPerUser = (double) nanos / userCount;
+    boolean slow;
+    synchronized (this) {
+      if (Double.isNaN(baselineNanosPerUser) || nanosPerUser < baselineNanosPerUser) {
+        baselineNanosPerUser = nanosPerUser;
+      }
+      slow = nanosPerUser > baselineNanosPerUser * SLOW_PAGE_FACTOR;
+      baselineNanosPerUser += (nanosPerUser - baselineNanosPerUser) * BASELINE_DRIFT;
+    }
+
+    double rate = slow ? users.decrease() : users.increase();
+    if (slow) {
+      logger.debugf("Slow page for federation provider '%s', lowered the user rate to %.1f per second",
+          providerName, rate);
+    }
+  }
+
+  private static class TokenBucket {
+    private final double maxRate;
+
+    private double rate;
+
+    private double tokens;
+
+    private long last;
+
+    TokenBucket(double maxRate) {
+      this.maxRate = maxRate;
+      this.rate = maxRate;
+      this.tokens = maxRate;
+      this.last = System.nanoTime();
+    }
+
+    // Takes the tokens, going into debt if there are not enough, and returns how
+    // many milliseconds the caller has to wait for the debt to be paid off
+    synchronized long reserve(double count, long now) {
+      tokens = Math.min(rate, tokens + (now - last) / 1e9 * rate);
+      last = now;
+      tokens -= count;
+      return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+    }
+
+    synchronized double getRate() {
+      return rate;
+    }
+
+    synchronized double decrease() {
+      rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+      return rate;
+    }
+
+    synchronized double increase() {
+      rate = Math.min(maxRate, rate + maxRate / 10);
+      return rate;
+    }
+  }
+
+  // Days and times of day the throttle applies, in the time zone of the server.
+  // Written as comma separated rules like "MON-FRI 07:00-17:00" or "SAT
+  // 09:00-12:00", where the days can be left out to mean every day. An empty
+  // schedule always applies
+  public static class Schedule {
+    public static final Schedule ALWAYS = new Schedule(new ArrayList<>());
+
+    private final List<Rule> rules;
+
+    private Schedule(List<Rule> rules) {
+      this.rules = rules;
+    }
+
+    public boolean isActive(LocalDateTime time) {
+      if (rules.isEmpty()) {
+        return true;
+      }
+      for (Rule rule : rules) {
+        if (rule.days.contains(time.getDayOfWeek()) && !time.toLocalTime().isBefore(rule.from)
+            && time.toLocalTime().isBefore(rule.to)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public static Schedule parse(String value) {
+      if (value == null || value.trim().isEmpty()) {
+        return ALWAYS;
+      }
+
+      List<Rule> rules = new ArrayList<>();
+      for (String ruleText : value.split(",")) {
+        String[] parts = ruleText.trim().split("\\s+");
+        if (parts.length > 2) {
+          throw new IllegalArgumentException(String.format("Invalid rule '%s'", ruleText.trim()));
+        }
+        Set<DayOfWeek> days = parts.length == 2 ? parseDays(parts[0]) : EnumSet.allOf(DayOfWeek.class);
+        String[] times = parts[parts.length - 1].split("-");
+        if (times.length != 2) {
+          throw new IllegalArgumentException(String.format("Invalid time range '%s'", parts[parts.length - 1]));
+        }
+        LocalTime from = parseTime(times[0]);
+        LocalTime to = times[1].equals("24:00") ? LocalTime.MAX : parseTime(times[1]);
+        if (!from.isBefore(to)) {
+          throw new IllegalArgumentException(String.format("Time range '%s' ends before it starts",
+              parts[parts.length - 1]));
+        }
+        rules.add(new Rule(days, from, to));
+      }
+      return new Schedule(rules);
+    }
+
+    private static Set<DayOfWeek> parseDays(String value) {
+      String[] range = value.split("-");
+      if (range.length > 2) {
+        throw new IllegalArgumentException(String.format("Invalid days '%s'", value));
+      }
+      DayOfWeek from = parseDay(range[0]);
+      DayOfWeek to = range.length == 2 ? parseDay(range[1]) : from;
+      Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+      for (DayOfWeek day = from;; day = day.plus(1)) {
+        days.add(day);
+        if (day == to) {
+          return days;
+        }
+      }
+    }
+
+    private static DayOfWeek parseDay(String value) {
+      String day = value.toUpperCase(Locale.ROOT);
+      for (DayOfWeek dayOfWeek : DayOfWeek.values()) {
+        if (dayOfWeek.name().startsWith(day) && day.length() >= 3) {
+          return dayOfWeek;
+        }
+      }
+      throw new IllegalArgumentException(String.format("Invalid day '%s'", value));
+    }
+
+    private static LocalTime parseTime(String value) {
+      try {
+        return LocalTime.parse(value.length() == 4 ? "0" + value : value);
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException(String.format("Invalid time '%s'", value));
+      }
+    }
+
+    private static class Rule {
+      private final Set<DayOfWeek> days;
+
+      private final LocalTime from;
+
+      private final LocalTime to;
+
+      Rule(Set<DayOfWeek> days, LocalTime from, LocalTime to) {
+        this.days = days;
+        this.from = from;
+        this.to = to;
+      }
+    }
+  }
+}
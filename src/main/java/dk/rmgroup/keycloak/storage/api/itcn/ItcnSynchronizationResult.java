@@ -1,10 +1,44 @@
 package dk.rmgroup.keycloak.storage.api.itcn;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 import org.keycloak.storage.user.SynchronizationResult;
 
 public class ItcnSynchronizationResult extends SynchronizationResult {
   private int fetched;
 
+  private boolean dryRun;
+
+  private int groupJoins;
+
+  private int groupLeaves;
+
+  private int skippedPages;
+
+  private int quarantined;
+
+  private String cancelledReason;
+
+  private long newUsersCommittedMillis = -1;
+
+  private int lockRetries;
+
+  private long throttledMillis;
+
+  private long scheduledWaitMillis;
+
+  private int knownConflicts;
+
+  private boolean bulkLoad;
+
+  private int slice = -1;
+
+  private int slices;
+
+  private final Map<String, Integer> fieldChanges = new LinkedHashMap<>();
+
   public int getFetched() {
     return fetched;
   }
@@ -13,6 +47,135 @@ public class ItcnSynchronizationResult extends SynchronizationResult {
     this.fetched = fetched;
   }
 
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  public void setDryRun(boolean dryRun) {
+    this.dryRun = dryRun;
+  }
+
+  public int getGroupJoins() {
+    return groupJoins;
+  }
+
+  public void setGroupJoins(int groupJoins) {
+    this.groupJoins = groupJoins;
+  }
+
+  public int getGroupLeaves() {
+    return groupLeaves;
+  }
+
+  public void setGroupLeaves(int groupLeaves) {
+    this.groupLeaves = groupLeaves;
+  }
+
+  public int getSkippedPages() {
+    return skippedPages;
+  }
+
+  public void setSkippedPages(int skippedPages) {
+    this.skippedPages = skippedPages;
+  }
+
+  // Time from the start of the sync until the last new user was committed, or
+  // -1 if no new users were created
+  public long getNewUsersCommittedMillis() {
+    return newUsersCommittedMillis;
+  }
+
+  public void setNewUsersCommittedMillis(long newUsersCommittedMillis) {
+    this.newUsersCommittedMillis = newUsersCommittedMillis;
+  }
+
+  // Users left out because of conflicts in the directory, they are also counted
+  // as failed
+  public int getQuarantined() {
+    return quarantined;
+  }
+
+  public void setQuarantined(int quarantined) {
+    this.quarantined = quarantined;
+  }
+
+  // Times a page was run again after a deadlock or lock wait timeout
+  public int getLockRetries() {
+    return lockRetries;
+  }
+
+  public void setLockRetries(int lockRetries) {
+    this.lockRetries = lockRetries;
+  }
+
+  // Time the write transactions waited for the throttle
+  public long getThrottledMillis() {
+    return throttledMillis;
+  }
+
+  public void setThrottledMillis(long throttledMillis) {
+    this.throttledMillis = throttledMillis;
+  }
+
+  // Time the page transactions waited for the node-wide scheduler
+  public long getScheduledWaitMillis() {
+    return scheduledWaitMillis;
+  }
+
+  public void setScheduledWaitMillis(long scheduledWaitMillis) {
+    this.scheduledWaitMillis = scheduledWaitMillis;
+  }
+
+  public boolean isBulkLoad() {
+    return bulkLoad;
+  }
+
+  public void setBulkLoad(boolean bulkLoad) {
+    this.bulkLoad = bulkLoad;
+  }
+
+  // Users skipped because an earlier sync found them to exist without a link to
+  // the provider and their directory record has not changed since
+  public int getKnownConflicts() {
+    return knownConflicts;
+  }
+
+  public void setKnownConflicts(int knownConflicts) {
+    this.knownConflicts = knownConflicts;
+  }
+
+  // The slice of the existing users a rolling sync verified, or -1 if all were
+  // verified
+  public int getSlice() {
+    return slice;
+  }
+
+  public int getSlices() {
+    return slices;
+  }
+
+  public void setSlice(int slice, int slices) {
+    this.slice = slice;
+    this.slices = slices;
+  }
+
+  // The number of updated users per changed field
+  public Map<String, Integer> getFieldChanges() {
+    return fieldChanges;
+  }
+
+  public boolean isCancelled() {
+    return cancelledReason != null;
+  }
+
+  public String getCancelledReason() {
+    return cancelledReason;
+  }
+
+  public void setCancelled(String cancelledReason) {
+    this.cancelledReason = cancelledReason;
+  }
+
   @Override
   public String getStatus() {
     String status = super.getStatus();
@@ -21,6 +184,56 @@ public class ItcnSynchronizationResult extends SynchronizationResult {
       status = String.format("%d fetched users, ", fetched) + status;
     }
 
+    if (slice >= 0) {
+      status = status + String.format(", verified slice %d of %d", slice + 1, slices);
+    }
+
+    if (!fieldChanges.isEmpty()) {
+      status = status + ", changed fields: " + fieldChanges.entrySet().stream()
+          .map(e -> String.format("%s %d", e.getKey(), e.getValue())).collect(Collectors.joining(", "));
+    }
+
+    if (knownConflicts > 0) {
+      status = status + String.format(", %d known conflicts skipped", knownConflicts);
+    }
+
+    if (quarantined > 0) {
+      status = status + String.format(", %d quarantined for conflicts", quarantined);
+    }
+
+    if (newUsersCommittedMillis >= 0) {
+      status = status + String.format(", new users committed after %d ms", newUsersCommittedMillis);
+    }
+
+    if (lockRetries > 0) {
+      status = status + String.format(", %d page lock retries", lockRetries);
+    }
+
+    if (throttledMillis > 0) {
+      status = status + String.format(", throttled for %d ms", throttledMillis);
+    }
+
+    if (scheduledWaitMillis > 0) {
+      status = status + String.format(", waited %d ms for page transactions", scheduledWaitMillis);
+    }
+
+    if (bulkLoad) {
+      status = "Bulk load, " + status;
+    }
+
+    if (skippedPages > 0) {
+      status = String.format("Resumed with %d pages already completed, ", skippedPages) + status;
+    }
+
+    if (dryRun) {
+      status = String.format("Dry run, nothing was changed. Planned: %s, %d group joins, %d group leaves", status,
+          groupJoins, groupLeaves);
+    }
+
+    if (cancelledReason != null) {
+      status = String.format("Cancelled because %s after %s", cancelledReason, status);
+    }
+
     return status;
   }
 }
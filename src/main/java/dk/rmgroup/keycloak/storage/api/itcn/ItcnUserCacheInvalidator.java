@@ -0,0 +1,154 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.SideEffectEvent;
+
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.OUTCOME_SUCCESS;
+import static dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncEvents.SIDE_EFFECT_CACHE_INVALIDATION;
+
+// Coalesces the user cache invalidations of a sync. When enabled, pages write
+// to the local user storage directly, so the user cache does not invalidate
+// each user as it is changed. Instead the users touched by a page are evicted
+// in one transaction once the page has committed, or, when a large share of
+// the directory changes, the users of the whole realm are evicted at most once
+// a minute while pages commit and once more at the end
+public class ItcnUserCacheInvalidator {
+  private static final Logger logger = Logger.getLogger(ItcnUserCacheInvalidator.class);
+
+  private static final double REALM_EVICTION_RATIO = 0.25;
+
+  private static final long REALM_EVICTION_INTERVAL_MILLIS = 60000;
+
+  private final KeycloakSessionFactory sessionFactory;
+
+  private final String realmId;
+
+  private final String providerName;
+
+  private final boolean enabled;
+
+  private final Map<String, List<UserModel>> touchedUsers = new ConcurrentHashMap<>();
+
+  private volatile boolean realmWide;
+
+  private final AtomicLong lastRealmEviction = new AtomicLong();
+
+  // Set when a page committed since the realm was last evicted
+  private final AtomicBoolean realmEvictionPending = new AtomicBoolean();
+
+  public ItcnUserCacheInvalidator(KeycloakSessionFactory sessionFactory, String realmId, String providerName,
+      boolean enabled) {
+    this.sessionFactory = sessionFactory;
+    this.realmId = realmId;
+    this.providerName = providerName;
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  // The provider pages write users with
+  public UserProvider users(KeycloakSession session) {
+    return enabled ? UserStoragePrivateUtil.userLocalStorage(session) : session.users();
+  }
+
+  // Switches to a single realm eviction if the planned changes are a large share
+  // of the directory
+  public void planned(int changes, int directorySize) {
+    realmWide = enabled && directorySize > 0 && (double) changes / directorySize > REALM_EVICTION_RATIO;
+    lastRealmEviction.set(System.currentTimeMillis());
+  }
+
+  public boolean isRealmWide() {
+    return realmWide;
+  }
+
+  // Called at the end of a page job with the users it wrote
+  public void pageWritten(String kind, int page, List<UserModel> users) {
+    if (enabled && !users.isEmpty()) {
+      touchedUsers.put(kind + ":" + page, users);
+    }
+  }
+
+  // The cache only needs the id, username and email of a user to evict it, so
+  // the users the page loaded are evicted as they are instead of being loaded
+  // again
+  public void pageCommitted(String kind, int page) {
+    List<UserModel> users = touchedUsers.remove(kind + ":" + page);
+    if (users == null) {
+      return;
+    }
+    if (realmWide) {
+      // Bounds how long committed users can be served stale from the cache
+      realmEvictionPending.set(true);
+      long last = lastRealmEviction.get();
+      long now = System.currentTimeMillis();
+      if (now - last >= REALM_EVICTION_INTERVAL_MILLIS && lastRealmEviction.compareAndSet(last, now)) {
+        evictRealm();
+      }
+      return;
+    }
+    evict(String.format("users/%d", users.size()), (session, realm, userCache) -> {
+      for (UserModel user : users) {
+        userCache.evict(realm, user);
+      }
+    });
+  }
+
+  // Evicts the realm if pages committed since its last eviction
+  public void finish() {
+    touchedUsers.clear();
+    if (realmWide && realmEvictionPending.get()) {
+      evictRealm();
+    }
+  }
+
+  private void evictRealm() {
+    // Cleared first, so a page committing during the eviction evicts again
+    realmEvictionPending.set(false);
+    evict("realm", (session, realm, userCache) -> userCache.evict(realm));
+  }
+
+  @FunctionalInterface
+  private interface Eviction {
+    void evict(KeycloakSession session, RealmModel realm, UserCache userCache);
+  }
+
+  private void evict(String resourcePath, Eviction eviction) {
+    SideEffectEvent event = new SideEffectEvent();
+    event.begin();
+    try {
+      KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+        UserCache userCache = session.getProvider(UserCache.class);
+        if (userCache != null) {
+          eviction.evict(session, session.realms().getRealm(realmId), userCache);
+        }
+      });
+      event.outcome = OUTCOME_SUCCESS;
+    } catch (Exception e) {
+      logger.errorf(e, "Error evicting %s from the user cache for federation provider '%s'", resourcePath,
+          providerName);
+    } finally {
+      event.providerName = providerName;
+      event.kind = SIDE_EFFECT_CACHE_INVALIDATION;
+      event.resourcePath = resourcePath;
+      event.commit();
+    }
+  }
+}
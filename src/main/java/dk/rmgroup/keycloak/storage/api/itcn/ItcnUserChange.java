@@ -0,0 +1,82 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnUserReconciler.GroupChanges;
+
+public class ItcnUserChange {
+  public enum Kind {
+    CREATE,
+    UPDATE,
+    REMOVE
+  }
+
+  private final Kind kind;
+
+  private final String userId;
+
+  private final String username;
+
+  private final ItcnApiUser apiUser;
+
+  private final boolean attributesChanged;
+
+  private final GroupChanges groupChanges;
+
+  private final int directoryPage;
+
+  private ItcnUserChange(Kind kind, String userId, String username, ItcnApiUser apiUser, boolean attributesChanged,
+      GroupChanges groupChanges, int directoryPage) {
+    this.kind = kind;
+    this.userId = userId;
+    this.username = username;
+    this.apiUser = apiUser;
+    this.attributesChanged = attributesChanged;
+    this.groupChanges = groupChanges;
+    this.directoryPage = directoryPage;
+  }
+
+  // The group changes of a new user are only an estimate, as the user may get
+  // default groups when it is created
+  public static ItcnUserChange create(ItcnApiUser apiUser, GroupChanges groupChanges, int directoryPage) {
+    return new ItcnUserChange(Kind.CREATE, null, apiUser.getUpn(), apiUser, true, groupChanges, directoryPage);
+  }
+
+  public static ItcnUserChange update(String userId, ItcnApiUser apiUser, boolean attributesChanged,
+      GroupChanges groupChanges, int directoryPage) {
+    return new ItcnUserChange(Kind.UPDATE, userId, apiUser.getUpn(), apiUser, attributesChanged, groupChanges,
+        directoryPage);
+  }
+
+  public static ItcnUserChange remove(String userId, String username) {
+    return new ItcnUserChange(Kind.REMOVE, userId, username, null, false, GroupChanges.NONE, -1);
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public ItcnApiUser getApiUser() {
+    return apiUser;
+  }
+
+  public boolean isAttributesChanged() {
+    return attributesChanged;
+  }
+
+  public GroupChanges getGroupChanges() {
+    return groupChanges;
+  }
+
+  // The page of the fetched directory the change was planned from, or -1 for
+  // removals
+  public int getDirectoryPage() {
+    return directoryPage;
+  }
+}
@@ -0,0 +1,24 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.keycloak.models.UserModel;
+
+// The fields of a local user that are written from the directory
+public enum ItcnUserField {
+  FEDERATION_LINK("federationLink"),
+  EMAIL(UserModel.EMAIL),
+  EMAIL_VERIFIED(UserModel.EMAIL_VERIFIED),
+  FIRST_NAME(UserModel.FIRST_NAME),
+  LAST_NAME(UserModel.LAST_NAME),
+  MOBILE("mobile"),
+  ENABLED(UserModel.ENABLED);
+
+  private final String name;
+
+  ItcnUserField(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+}
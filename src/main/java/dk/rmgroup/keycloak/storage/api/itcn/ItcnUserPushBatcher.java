@@ -0,0 +1,145 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+
+// Coalesces the users pushed for one federation provider into batches that are
+// applied on a single thread. A push waits a short while for more users before
+// its batch is applied, and a later push of a pending UPN replaces the earlier
+// one, so a burst of changes to the same user is applied once
+public class ItcnUserPushBatcher {
+  private static final Logger logger = Logger.getLogger(ItcnUserPushBatcher.class);
+
+  public static final int MAX_BATCH_SIZE = 100;
+
+  private static final long LINGER_MILLIS = 200;
+
+  @FunctionalInterface
+  public interface BatchApplier {
+    Map<String, ItcnUserUpdateResult> apply(List<ItcnApiUser> apiUsers);
+  }
+
+  private static class Pending {
+    private ItcnApiUser apiUser;
+    private final CompletableFuture<ItcnUserUpdateResult> result = new CompletableFuture<>();
+  }
+
+  private final String providerId;
+
+  private final BatchApplier applier;
+
+  private final ScheduledExecutorService executor;
+
+  private Map<String, Pending> pending = new LinkedHashMap<>();
+
+  private boolean drainScheduled;
+
+  private boolean closed;
+
+  public ItcnUserPushBatcher(String providerId, BatchApplier applier) {
+    this.providerId = providerId;
+    this.applier = applier;
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, String.format("itcn-push-%s", providerId));
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Returns a result for each of the users, in the same order. Once the batcher
+  // is closed the results fail right away
+  public synchronized List<CompletableFuture<ItcnUserUpdateResult>> submit(List<ItcnApiUser> apiUsers) {
+    List<CompletableFuture<ItcnUserUpdateResult>> results = new ArrayList<>(apiUsers.size());
+    if (closed) {
+      for (int i = 0; i < apiUsers.size(); i++) {
+        CompletableFuture<ItcnUserUpdateResult> result = new CompletableFuture<>();
+        result.completeExceptionally(closedException());
+        results.add(result);
+      }
+      return results;
+    }
+
+    for (ItcnApiUser apiUser : apiUsers) {
+      Pending entry = pending.get(apiUser.getUpn());
+      if (entry == null) {
+        entry = new Pending();
+        pending.put(apiUser.getUpn(), entry);
+      }
+      entry.apiUser = apiUser;
+      results.add(entry.result);
+    }
+
+    if (pending.size() >= MAX_BATCH_SIZE) {
+      executor.execute(this::drain);
+    } else if (!drainScheduled) {
+      drainScheduled = true;
+      executor.schedule(this::drain, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    return results;
+  }
+
+  // Fails the users not yet applied. A batch being applied completes, as
+  // stopping it halfway would leave its transaction to roll back anyway
+  public void close() {
+    List<Pending> notApplied;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notApplied = new ArrayList<>(pending.values());
+      pending.clear();
+    }
+    executor.shutdown();
+    notApplied.forEach(entry -> entry.result.completeExceptionally(closedException()));
+  }
+
+  private IllegalStateException closedException() {
+    return new IllegalStateException(
+        String.format("Pushed users for federation provider with id '%s' were not applied, as it was closed",
+            providerId));
+  }
+
+  private void drain() {
+    Map<String, Pending> batch = new LinkedHashMap<>();
+    synchronized (this) {
+      drainScheduled = false;
+      Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+      while (it.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+        Map.Entry<String, Pending> entry = it.next();
+        batch.put(entry.getKey(), entry.getValue());
+        it.remove();
+      }
+      if (!pending.isEmpty()) {
+        drainScheduled = true;
+        executor.execute(this::drain);
+      }
+    }
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    List<ItcnApiUser> apiUsers = new ArrayList<>(batch.size());
+    batch.values().forEach(entry -> apiUsers.add(entry.apiUser));
+
+    try {
+      Map<String, ItcnUserUpdateResult> results = applier.apply(apiUsers);
+      batch.forEach((upn, entry) -> entry.result.complete(results.get(upn)));
+    } catch (Exception e) {
+      logger.errorf(e, "Error applying %d pushed users for federation provider with id '%s'", batch.size(),
+          providerId);
+      batch.values().forEach(entry -> entry.result.completeExceptionally(e));
+    }
+  }
+}
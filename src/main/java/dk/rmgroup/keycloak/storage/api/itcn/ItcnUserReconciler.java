@@ -0,0 +1,382 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import com.google.common.base.Strings;
+
+public class ItcnUserReconciler {
+  public enum ExistingUserStatus {
+    LINKED,
+    TAKE_OVER,
+    NOT_LINKED,
+    DOMAIN_NOT_ALLOWED
+  }
+
+  public static class GroupChanges {
+    public static final GroupChanges NONE = new GroupChanges(Collections.emptyList(), Collections.emptyList());
+
+    private final List<GroupModel> toJoin;
+    private final List<String> toLeave;
+
+    public GroupChanges(List<GroupModel> toJoin, List<String> toLeave) {
+      this.toJoin = toJoin;
+      this.toLeave = toLeave;
+    }
+
+    public List<GroupModel> getToJoin() {
+      return toJoin;
+    }
+
+    // Ids of the groups to leave
+    public List<String> getToLeave() {
+      return toLeave;
+    }
+
+    public int getJoined() {
+      return toJoin.size();
+    }
+
+    public int getLeft() {
+      return toLeave.size();
+    }
+
+    public boolean hasChanges() {
+      return !toJoin.isEmpty() || !toLeave.isEmpty();
+    }
+  }
+
+  private final String fedId;
+
+  private final List<String> allowUpdateUpnDomains;
+
+  private final List<String> allowUpdateUpnSuffixes;
+
+  // Each distinct Keycloak group in the group map gets a slot, so the wanted and
+  // current mapped groups of a user can be compared as bitsets
+  private final GroupModel[] slotGroups;
+
+  private final Map<String, Integer> slotById = new HashMap<>();
+
+  private final Map<String, Integer> slotByName = new HashMap<>();
+
+  private static class SlotTable {
+    private final ItcnGroupDictionary groupDictionary;
+    private final int[] slotByIndex;
+
+    private SlotTable(ItcnGroupDictionary groupDictionary, int[] slotByIndex) {
+      this.groupDictionary = groupDictionary;
+      this.slotByIndex = slotByIndex;
+    }
+  }
+
+  private volatile SlotTable slotTable;
+
+  private final boolean onlyUseGroupsInGroupMap;
+
+  private final boolean doNotOverrideMobileWithEmpty;
+
+  public ItcnUserReconciler(String fedId, List<String> allowUpdateUpnDomains, Map<String, GroupModel> groupMap,
+      boolean onlyUseGroupsInGroupMap, boolean doNotOverrideMobileWithEmpty) {
+    this.fedId = fedId;
+    this.allowUpdateUpnDomains = allowUpdateUpnDomains;
+    this.allowUpdateUpnSuffixes = allowUpdateUpnDomains == null ? null
+        : allowUpdateUpnDomains.stream().map(domain -> "@" + domain).collect(Collectors.toList());
+    this.onlyUseGroupsInGroupMap = onlyUseGroupsInGroupMap;
+    this.doNotOverrideMobileWithEmpty = doNotOverrideMobileWithEmpty;
+
+    List<GroupModel> groups = new ArrayList<>();
+    if (groupMap != null) {
+      groupMap.forEach((name, group) -> {
+        Integer slot = slotById.get(group.getId());
+        if (slot == null) {
+          slot = groups.size();
+          groups.add(group);
+          slotById.put(group.getId(), slot);
+        }
+        slotByName.put(name, slot);
+      });
+    }
+    this.slotGroups = groups.toArray(new GroupModel[0]);
+  }
+
+  public List<String> getAllowUpdateUpnDomains() {
+    return allowUpdateUpnDomains;
+  }
+
+  public ExistingUserStatus getExistingUserStatus(ItcnApiUser apiUser, UserModel existingLocalUser) {
+    if (fedId.equals(existingLocalUser.getFederationLink())) {
+      return ExistingUserStatus.LINKED;
+    }
+
+    if (allowUpdateUpnSuffixes == null) {
+      return ExistingUserStatus.NOT_LINKED;
+    }
+
+    String upn = apiUser.getUpn();
+    for (String suffix : allowUpdateUpnSuffixes) {
+      if (upn.endsWith(suffix)) {
+        return ExistingUserStatus.TAKE_OVER;
+      }
+    }
+
+    return ExistingUserStatus.DOMAIN_NOT_ALLOWED;
+  }
+
+  // Plans the change that brings the local user in line with the directory user,
+  // or returns null if it already is. A null local user is planned as a create
+  public ItcnUserChange planChange(ItcnApiUser apiUser, UserModel existingLocalUser, int directoryPage) {
+    GroupChanges groupChanges = planGroups(apiUser, existingLocalUser);
+
+    if (existingLocalUser == null) {
+      return ItcnUserChange.create(apiUser, groupChanges, directoryPage);
+    }
+
+    boolean attributesChanged = !changedFields(apiUser, existingLocalUser).isEmpty();
+    if (attributesChanged || groupChanges.hasChanges()) {
+      return ItcnUserChange.update(existingLocalUser.getId(), apiUser, attributesChanged, groupChanges,
+          directoryPage);
+    }
+
+    return null;
+  }
+
+  public UserModel applyCreate(UserProvider userProvider, RealmModel realm, ItcnUserChange change) {
+    ItcnApiUser apiUser = change.getApiUser();
+    UserModel importedUser = userProvider.addUser(realm, apiUser.getUpn());
+    applyAttributes(apiUser, importedUser);
+    // Planned against a user without groups, so groups are reconciled again in
+    // case the new user got default groups
+    updateGroups(apiUser, importedUser);
+    return importedUser;
+  }
+
+  // Returns the changed fields
+  public Set<ItcnUserField> applyUpdate(UserProvider userProvider, RealmModel realm, ItcnUserChange change) {
+    return applyUpdate(getUserToUpdate(userProvider, realm, change), change);
+  }
+
+  public UserModel getUserToUpdate(UserProvider userProvider, RealmModel realm, ItcnUserChange change) {
+    UserModel importedUser = userProvider.getUserById(realm, change.getUserId());
+    if (importedUser == null) {
+      throw new IllegalStateException(
+          String.format("User with id '%s' was removed after the sync was planned", change.getUserId()));
+    }
+    return importedUser;
+  }
+
+  public Set<ItcnUserField> applyUpdate(UserModel importedUser, ItcnUserChange change) {
+    Set<ItcnUserField> changed = change.isAttributesChanged() ? applyAttributes(change.getApiUser(), importedUser)
+        : EnumSet.noneOf(ItcnUserField.class);
+    applyGroups(change.getGroupChanges(), importedUser);
+    return changed;
+  }
+
+  // The attributes applyAttributes would change on the local user, as the old
+  // and the new value. A null local user is compared as a user without values
+  public Map<String, List<String>> diffAttributes(ItcnApiUser apiUser, UserModel existingLocalUser) {
+    Map<String, List<String>> diff = new LinkedHashMap<>();
+    boolean exists = existingLocalUser != null;
+    addDiff(diff, UserModel.EMAIL, exists ? existingLocalUser.getEmail() : null, apiUser.getEmail());
+    addDiff(diff, UserModel.FIRST_NAME, exists ? existingLocalUser.getFirstName() : null, apiUser.getFirstName());
+    addDiff(diff, UserModel.LAST_NAME, exists ? existingLocalUser.getLastName() : null, apiUser.getSurName());
+    String mobilePhone = apiUser.getMobilePhone();
+    if (!Strings.isNullOrEmpty(mobilePhone) || !doNotOverrideMobileWithEmpty) {
+      addDiff(diff, "mobile", exists ? existingLocalUser.getFirstAttribute("mobile") : null, mobilePhone);
+    }
+    return diff;
+  }
+
+  private static void addDiff(Map<String, List<String>> diff, String name, String oldValue, String newValue) {
+    if (!Objects.equals(oldValue, newValue)) {
+      diff.put(name, Arrays.asList(oldValue, newValue));
+    }
+  }
+
+  // The fields applyAttributes would change on the local user, without changing
+  // it. Planning uses the same diff, so a planned update always writes something
+  public Set<ItcnUserField> changedFields(ItcnApiUser apiUser, UserModel localUser) {
+    Set<ItcnUserField> changed = EnumSet.noneOf(ItcnUserField.class);
+    if (!fedId.equals(localUser.getFederationLink())) {
+      changed.add(ItcnUserField.FEDERATION_LINK);
+    }
+    if (!Objects.equals(apiUser.getEmail(), localUser.getEmail())) {
+      changed.add(ItcnUserField.EMAIL);
+    }
+    if (!Objects.equals(apiUser.getFirstName(), localUser.getFirstName())) {
+      changed.add(ItcnUserField.FIRST_NAME);
+    }
+    if (!Objects.equals(apiUser.getSurName(), localUser.getLastName())) {
+      changed.add(ItcnUserField.LAST_NAME);
+    }
+    String mobilePhone = apiUser.getMobilePhone();
+    if ((!Strings.isNullOrEmpty(mobilePhone) || !doNotOverrideMobileWithEmpty)
+        && !Objects.equals(mobilePhone, localUser.getFirstAttribute("mobile"))) {
+      changed.add(ItcnUserField.MOBILE);
+    }
+    // An update verifies the email and enables the user, but a user disabled by
+    // an admin stays disabled until its directory data changes
+    if (!changed.isEmpty()) {
+      if (!localUser.isEmailVerified()) {
+        changed.add(ItcnUserField.EMAIL_VERIFIED);
+      }
+      if (!localUser.isEnabled()) {
+        changed.add(ItcnUserField.ENABLED);
+      }
+    }
+    return changed;
+  }
+
+  // Only calls the setters whose value differs, as each setter can cause a
+  // database update and a user cache invalidation. Returns the changed fields
+  public Set<ItcnUserField> applyAttributes(ItcnApiUser apiUser, UserModel importedUser) {
+    Set<ItcnUserField> changed = changedFields(apiUser, importedUser);
+    for (ItcnUserField field : changed) {
+      switch (field) {
+        case FEDERATION_LINK:
+          importedUser.setFederationLink(fedId);
+          break;
+        case EMAIL:
+          importedUser.setEmail(apiUser.getEmail());
+          break;
+        case EMAIL_VERIFIED:
+          importedUser.setEmailVerified(true);
+          break;
+        case FIRST_NAME:
+          importedUser.setFirstName(apiUser.getFirstName());
+          break;
+        case LAST_NAME:
+          importedUser.setLastName(apiUser.getSurName());
+          break;
+        case MOBILE:
+          importedUser.setSingleAttribute("mobile", apiUser.getMobilePhone());
+          break;
+        case ENABLED:
+          importedUser.setEnabled(true);
+          break;
+      }
+    }
+    return changed;
+  }
+
+  public GroupChanges updateGroups(ItcnApiUser apiUser, UserModel importedUser) {
+    GroupChanges changes = planGroups(apiUser, importedUser);
+    applyGroups(changes, importedUser);
+    return changes;
+  }
+
+  public void applyGroups(GroupChanges changes, UserModel importedUser) {
+    if (!changes.hasChanges()) {
+      return;
+    }
+
+    for (GroupModel group : changes.getToJoin()) {
+      importedUser.joinGroup(group);
+    }
+
+    if (!changes.getToLeave().isEmpty()) {
+      Set<String> toLeave = new HashSet<>(changes.getToLeave());
+      List<GroupModel> groupsToLeave = importedUser.getGroupsStream().filter(g -> toLeave.contains(g.getId()))
+          .collect(Collectors.toList());
+      for (GroupModel group : groupsToLeave) {
+        importedUser.leaveGroup(group);
+      }
+    }
+  }
+
+  // Computes the group changes without changing the user. A null user is
+  // planned as a new user without any groups
+  public GroupChanges planGroups(ItcnApiUser apiUser, UserModel importedUser) {
+    int[] apiUserGroups = apiUser.getGroupIndexes();
+
+    if (slotGroups.length == 0 || apiUserGroups.length == 0) {
+      return GroupChanges.NONE;
+    }
+
+    int[] slotByIndex = getSlotByIndex(apiUser.getGroupDictionary());
+
+    BitSet wanted = new BitSet(slotGroups.length);
+    for (int index : apiUserGroups) {
+      int slot = slotByIndex[index];
+      if (slot >= 0) {
+        wanted.set(slot);
+      }
+    }
+
+    // Membership of a subgroup counts as membership of its parents, like
+    // UserModel.isMemberOf
+    List<GroupModel> currentGroups = importedUser == null ? Collections.emptyList()
+        : importedUser.getGroupsStream().collect(Collectors.toList());
+    BitSet current = new BitSet(slotGroups.length);
+    for (GroupModel group : currentGroups) {
+      for (GroupModel g = group; g != null; g = g.getParent()) {
+        Integer slot = slotById.get(g.getId());
+        if (slot != null) {
+          current.set(slot);
+        }
+      }
+    }
+
+    BitSet joinSlots = (BitSet) wanted.clone();
+    joinSlots.andNot(current);
+
+    List<GroupModel> toJoin = new ArrayList<>(joinSlots.cardinality());
+    for (int slot = joinSlots.nextSetBit(0); slot >= 0; slot = joinSlots.nextSetBit(slot + 1)) {
+      toJoin.add(slotGroups[slot]);
+    }
+
+    List<String> toLeave = new ArrayList<>();
+    for (GroupModel group : currentGroups) {
+      Integer slot = slotById.get(group.getId());
+      boolean leave = slot == null ? !onlyUseGroupsInGroupMap : !wanted.get(slot);
+      if (leave) {
+        toLeave.add(group.getId());
+      }
+    }
+
+    if (toJoin.isEmpty() && toLeave.isEmpty()) {
+      return GroupChanges.NONE;
+    }
+
+    // Joins are in slot order and leaves in id order, so parallel pages lock the
+    // membership rows of the same groups in the same order
+    Collections.sort(toLeave);
+
+    return new GroupChanges(toJoin, toLeave);
+  }
+
+  // Maps each group in the dictionary to the slot of the Keycloak group it is
+  // mapped to, or -1 if it is not in the group map. The table is reused for all
+  // users from the same fetched directory
+  private int[] getSlotByIndex(ItcnGroupDictionary groupDictionary) {
+    SlotTable table = slotTable;
+    int dictionarySize = groupDictionary.size();
+    if (table != null && table.groupDictionary == groupDictionary && table.slotByIndex.length == dictionarySize) {
+      return table.slotByIndex;
+    }
+
+    int[] slotByIndex = new int[dictionarySize];
+    for (int i = 0; i < dictionarySize; i++) {
+      Integer slot = slotByName.get(groupDictionary.getName(i));
+      slotByIndex[i] = slot != null ? slot : -1;
+    }
+    slotTable = new SlotTable(groupDictionary, slotByIndex);
+    return slotByIndex;
+  }
+}
@@ -0,0 +1,111 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// The outcome of reconciling one directory user outside of a sync, returned as
+// json by the itcn-sync resource
+public class ItcnUserUpdateResult {
+  public enum Outcome {
+    CREATED,
+    UPDATED,
+    UNCHANGED,
+    SKIPPED,
+    NOT_FOUND,
+    FAILED
+  }
+
+  public static final String SOURCE_ITCN = "itcn";
+
+  public static final String SOURCE_PUSH = "push";
+
+  public static final String SOURCE_CACHE = "cache";
+
+  private final String upn;
+
+  private final Outcome outcome;
+
+  private final String message;
+
+  private final Map<String, List<String>> changedAttributes;
+
+  private final List<String> joinedGroups;
+
+  private final List<String> leftGroups;
+
+  private String source;
+
+  private ItcnUserUpdateResult(String upn, Outcome outcome, String message,
+      Map<String, List<String>> changedAttributes, List<String> joinedGroups, List<String> leftGroups) {
+    this.upn = upn;
+    this.outcome = outcome;
+    this.message = message;
+    this.changedAttributes = changedAttributes;
+    this.joinedGroups = joinedGroups;
+    this.leftGroups = leftGroups;
+  }
+
+  public static ItcnUserUpdateResult applied(ItcnUserChange change, Map<String, List<String>> changedAttributes,
+      List<String> joinedGroups, List<String> leftGroups) {
+    return new ItcnUserUpdateResult(change.getUsername(),
+        change.getKind() == ItcnUserChange.Kind.CREATE ? Outcome.CREATED : Outcome.UPDATED, null, changedAttributes,
+        joinedGroups, leftGroups);
+  }
+
+  public static ItcnUserUpdateResult unchanged(String upn) {
+    return of(upn, Outcome.UNCHANGED, null);
+  }
+
+  public static ItcnUserUpdateResult skipped(String upn, String message) {
+    return of(upn, Outcome.SKIPPED, message);
+  }
+
+  public static ItcnUserUpdateResult notFound(String upn, String message) {
+    return of(upn, Outcome.NOT_FOUND, message);
+  }
+
+  public static ItcnUserUpdateResult failed(String upn, String message) {
+    return of(upn, Outcome.FAILED, message);
+  }
+
+  private static ItcnUserUpdateResult of(String upn, Outcome outcome, String message) {
+    return new ItcnUserUpdateResult(upn, outcome, message, Collections.emptyMap(), Collections.emptyList(),
+        Collections.emptyList());
+  }
+
+  public String getUpn() {
+    return upn;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  // The old and the new value of each changed attribute
+  public Map<String, List<String>> getChangedAttributes() {
+    return changedAttributes;
+  }
+
+  public List<String> getJoinedGroups() {
+    return joinedGroups;
+  }
+
+  public List<String> getLeftGroups() {
+    return leftGroups;
+  }
+
+  // Where the directory user came from, ITCN, a push or the last fetched
+  // directory
+  public String getSource() {
+    return source;
+  }
+
+  public void setSource(String source) {
+    this.source = source;
+  }
+}
@@ -0,0 +1,135 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RoleModel;
+
+public class InMemoryGroupModel implements GroupModel {
+  private final String id;
+  private String name;
+  private GroupModel parent;
+
+  public InMemoryGroupModel(String id, String name) {
+    this.id = id;
+    this.name = name;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String getDescription() {
+    return null;
+  }
+
+  @Override
+  public void setDescription(String description) {
+    throw new UnsupportedOperationException("Unimplemented method 'setDescription'");
+  }
+
+  @Override
+  public void setSingleAttribute(String name, String value) {
+    throw new UnsupportedOperationException("Unimplemented method 'setSingleAttribute'");
+  }
+
+  @Override
+  public void setAttribute(String name, List<String> values) {
+    throw new UnsupportedOperationException("Unimplemented method 'setAttribute'");
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    throw new UnsupportedOperationException("Unimplemented method 'removeAttribute'");
+  }
+
+  @Override
+  public String getFirstAttribute(String name) {
+    throw new UnsupportedOperationException("Unimplemented method 'getFirstAttribute'");
+  }
+
+  @Override
+  public Stream<String> getAttributeStream(String name) {
+    throw new UnsupportedOperationException("Unimplemented method 'getAttributeStream'");
+  }
+
+  @Override
+  public Map<String, List<String>> getAttributes() {
+    throw new UnsupportedOperationException("Unimplemented method 'getAttributes'");
+  }
+
+  @Override
+  public GroupModel getParent() {
+    return parent;
+  }
+
+  @Override
+  public String getParentId() {
+    return parent != null ? parent.getId() : null;
+  }
+
+  @Override
+  public Stream<GroupModel> getSubGroupsStream() {
+    return Stream.empty();
+  }
+
+  @Override
+  public void setParent(GroupModel group) {
+    this.parent = group;
+  }
+
+  @Override
+  public void addChild(GroupModel subGroup) {
+    throw new UnsupportedOperationException("Unimplemented method 'addChild'");
+  }
+
+  @Override
+  public void removeChild(GroupModel subGroup) {
+    throw new UnsupportedOperationException("Unimplemented method 'removeChild'");
+  }
+
+  @Override
+  public Stream<RoleModel> getRealmRoleMappingsStream() {
+    throw new UnsupportedOperationException("Unimplemented method 'getRealmRoleMappingsStream'");
+  }
+
+  @Override
+  public Stream<RoleModel> getClientRoleMappingsStream(ClientModel app) {
+    throw new UnsupportedOperationException("Unimplemented method 'getClientRoleMappingsStream'");
+  }
+
+  @Override
+  public boolean hasRole(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'hasRole'");
+  }
+
+  @Override
+  public void grantRole(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'grantRole'");
+  }
+
+  @Override
+  public Stream<RoleModel> getRoleMappingsStream() {
+    throw new UnsupportedOperationException("Unimplemented method 'getRoleMappingsStream'");
+  }
+
+  @Override
+  public void deleteRoleMapping(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'deleteRoleMapping'");
+  }
+}
@@ -0,0 +1,351 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.GroupProviderFactory;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+// In-memory stand-in for the parts of the Keycloak model used by the sync, built
+// from dynamic proxies. Calls to the user and group providers are counted as
+// queries and writes to users are counted through InMemoryUserModel. Anything
+// else answers with an empty default. Transactions are not isolated and are
+// never rolled back, so this is only meant for measuring the sync itself.
+public class InMemoryKeycloak {
+  @FunctionalInterface
+  private interface Handler {
+    Object invoke(Object[] args) throws Throwable;
+  }
+
+  private final String realmId;
+
+  private final String realmName;
+
+  private final Map<String, InMemoryUserModel> usersById = new ConcurrentHashMap<>();
+
+  private final Map<String, InMemoryUserModel> usersByUsername = new ConcurrentHashMap<>();
+
+  private volatile List<InMemoryUserModel> sortedUsers;
+
+  private final Map<String, InMemoryGroupModel> groupsById = new ConcurrentHashMap<>();
+
+  private final Map<String, InMemoryGroupModel> groupsByName = new ConcurrentHashMap<>();
+
+  private final Map<String, String> realmAttributes = new ConcurrentHashMap<>();
+
+  // Lifespans are ignored
+  private final Map<String, Map<String, String>> singleUseObjects = new ConcurrentHashMap<>();
+
+  private final Map<String, LongAdder> queries = new ConcurrentHashMap<>();
+
+  private final AtomicLong sessions = new AtomicLong();
+
+  private final AtomicLong removedUserWrites = new AtomicLong();
+
+  private final RealmModel realm;
+
+  private final KeycloakSessionFactory sessionFactory;
+
+  public InMemoryKeycloak(String realmId, String realmName) {
+    this.realmId = realmId;
+    this.realmName = realmName;
+    this.realm = createRealm();
+    this.sessionFactory = proxy(KeycloakSessionFactory.class, new Handlers()
+        .on("create", args -> createSession())
+        // KeycloakModelUtils.findGroupByPath asks the group provider factory how
+        // group paths are split
+        .on("getProviderFactory", args -> args[0] == GroupProvider.class
+            ? proxy(GroupProviderFactory.class, new Handlers().on("escapeSlashesInGroupPath", a -> false))
+            : null));
+  }
+
+  public KeycloakSessionFactory getSessionFactory() {
+    return sessionFactory;
+  }
+
+  public String getRealmId() {
+    return realmId;
+  }
+
+  public GroupModel addGroup(String name) {
+    InMemoryGroupModel group = new InMemoryGroupModel(UUID.randomUUID().toString(), name);
+    groupsById.put(group.getId(), group);
+    groupsByName.put(name, group);
+    return group;
+  }
+
+  public int getUserCount() {
+    return usersById.size();
+  }
+
+  public Collection<InMemoryUserModel> getUsers() {
+    return Collections.unmodifiableCollection(usersById.values());
+  }
+
+  public long getSessions() {
+    return sessions.get();
+  }
+
+  public long getUserWrites() {
+    return removedUserWrites.get() + usersById.values().stream().mapToLong(InMemoryUserModel::getWrites).sum();
+  }
+
+  public Map<String, Long> getQueries() {
+    Map<String, Long> result = new TreeMap<>();
+    queries.forEach((k, v) -> result.put(k, v.sum()));
+    return result;
+  }
+
+  public void resetCounters() {
+    queries.clear();
+    sessions.set(0);
+  }
+
+  private void count(String query) {
+    queries.computeIfAbsent(query, k -> new LongAdder()).increment();
+  }
+
+  private KeycloakSession createSession() {
+    sessions.incrementAndGet();
+
+    RealmModel[] contextRealm = new RealmModel[1];
+    boolean[] rollbackOnly = new boolean[1];
+    boolean[] active = new boolean[1];
+
+    KeycloakContext context = proxy(KeycloakContext.class, new Handlers()
+        .on("getRealm", args -> contextRealm[0])
+        .on("setRealm", args -> contextRealm[0] = (RealmModel) args[0]));
+
+    KeycloakTransactionManager transactionManager = proxy(KeycloakTransactionManager.class, new Handlers()
+        .on("begin", args -> active[0] = true)
+        .on("commit", args -> active[0] = false)
+        .on("rollback", args -> active[0] = false)
+        .on("isActive", args -> active[0])
+        .on("setRollbackOnly", args -> rollbackOnly[0] = true)
+        .on("getRollbackOnly", args -> rollbackOnly[0]));
+
+    RealmProvider realmProvider = proxy(RealmProvider.class, new Handlers()
+        .on("getRealm", args -> realmId.equals(args[0]) ? realm : null)
+        .on("getRealmByName", args -> realmName.equals(args[0]) ? realm : null));
+
+    UserProvider userProvider = createUserProvider();
+
+    GroupProvider groupProvider = createGroupProvider();
+
+    SingleUseObjectProvider singleUseObjectProvider = proxy(SingleUseObjectProvider.class, new Handlers()
+        .on("put", args -> singleUseObjects.put((String) args[0], new HashMap<>(castNotes(args[2]))))
+        .on("get", args -> singleUseObjects.get(args[0]))
+        .on("remove", args -> singleUseObjects.remove(args[0]))
+        .on("contains", args -> singleUseObjects.containsKey(args[0])));
+
+    return proxy(KeycloakSession.class, new Handlers()
+        .on("getContext", args -> context)
+        .on("getTransactionManager", args -> transactionManager)
+        .on("realms", args -> realmProvider)
+        .on("users", args -> userProvider)
+        .on("groups", args -> groupProvider)
+        .on("singleUseObjects", args -> singleUseObjectProvider)
+        // No JPA or user cache, so the sync uses the user provider only
+        .on("getProvider", args -> null)
+        .on("getKeycloakSessionFactory", args -> sessionFactory));
+  }
+
+  private RealmModel createRealm() {
+    return proxy(RealmModel.class, new Handlers()
+        .on("getId", args -> realmId)
+        .on("getName", args -> realmName)
+        .on("getAttribute", args -> args.length == 1 ? realmAttributes.get(args[0]) : null)
+        .on("setAttribute", args -> args[1] == null ? realmAttributes.remove(args[0])
+            : realmAttributes.put((String) args[0], args[1].toString()))
+        .on("removeAttribute", args -> realmAttributes.remove(args[0]))
+        .on("getAttributes", args -> new HashMap<>(realmAttributes))
+        .on("getGroupById", args -> groupsById.get(args[0])));
+  }
+
+  private UserProvider createUserProvider() {
+    return proxy(UserProvider.class, new Handlers()
+        .on("getUserById", args -> {
+          count("getUserById");
+          return usersById.get(args[1]);
+        })
+        .on("getUserByUsername", args -> {
+          count("getUserByUsername");
+          return usersByUsername.get(args[1]);
+        })
+        .on("getUserByEmail", args -> {
+          count("getUserByEmail");
+          return usersById.values().stream().filter(u -> args[1].equals(u.getEmail())).findFirst().orElse(null);
+        })
+        .on("getUsersCount", args -> {
+          count("getUsersCount");
+          return usersById.size();
+        })
+        .on("addUser", args -> {
+          count("addUser");
+          String id = args.length > 2 && args[1] != null ? (String) args[1] : UUID.randomUUID().toString();
+          String username = (String) args[args.length > 2 ? 2 : 1];
+          InMemoryUserModel user = new InMemoryUserModel(id, username);
+          if (usersByUsername.putIfAbsent(username, user) != null) {
+            throw new IllegalStateException(String.format("User with username '%s' already exists", username));
+          }
+          usersById.put(id, user);
+          sortedUsers = null;
+          return user;
+        })
+        .on("removeUser", args -> {
+          count("removeUser");
+          UserModel user = (UserModel) args[1];
+          sortedUsers = null;
+          usersByUsername.remove(user.getUsername());
+          InMemoryUserModel removed = usersById.remove(user.getId());
+          if (removed == null) {
+            return false;
+          }
+          removedUserWrites.addAndGet(removed.getWrites());
+          return true;
+        })
+        .on("searchForUserStream", args -> {
+          count("searchForUserStream");
+          Stream<InMemoryUserModel> stream = getSortedUsers().stream();
+          if (args.length > 2 && args[2] != null) {
+            stream = stream.skip((Integer) args[2]);
+          }
+          if (args.length > 3 && args[3] != null) {
+            stream = stream.limit((Integer) args[3]);
+          }
+          return stream.map(UserModel.class::cast);
+        }));
+  }
+
+  private GroupProvider createGroupProvider() {
+    return proxy(GroupProvider.class, new Handlers()
+        .on("getGroupById", args -> {
+          count("getGroupById");
+          return groupsById.get(args[1]);
+        })
+        .on("getGroupByName", args -> {
+          count("getGroupByName");
+          return args[1] == null ? groupsByName.get(args[2]) : null;
+        })
+        .on("getTopLevelGroupsStream", args -> {
+          count("getTopLevelGroupsStream");
+          return groupsById.values().stream().map(GroupModel.class::cast);
+        }));
+  }
+
+  private List<InMemoryUserModel> getSortedUsers() {
+    List<InMemoryUserModel> result = sortedUsers;
+    if (result == null) {
+      result = usersById.values().stream().sorted(Comparator.comparing(InMemoryUserModel::getUsername))
+          .collect(Collectors.toList());
+      sortedUsers = result;
+    }
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, String> castNotes(Object notes) {
+    return (Map<String, String>) notes;
+  }
+
+  private static class Handlers {
+    private final Map<String, Handler> handlers = new HashMap<>();
+
+    Handlers on(String methodName, Handler handler) {
+      handlers.put(methodName, handler);
+      return this;
+    }
+
+    Handler get(String methodName) {
+      return handlers.get(methodName);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handlers handlers) {
+    InvocationHandler invocationHandler = (proxy, method, args) -> {
+      Object[] arguments = args == null ? new Object[0] : args;
+      Handler handler = handlers.get(method.getName());
+      if (handler != null) {
+        return handler.invoke(arguments);
+      }
+      if (method.getDeclaringClass() == Object.class) {
+        return invokeObjectMethod(proxy, method, arguments);
+      }
+      if (method.isDefault()) {
+        return InvocationHandler.invokeDefault(proxy, method, arguments);
+      }
+      return defaultValue(method.getReturnType());
+    };
+    return (T) Proxy.newProxyInstance(InMemoryKeycloak.class.getClassLoader(), new Class<?>[] { type },
+        invocationHandler);
+  }
+
+  private static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return proxy.getClass().getInterfaces()[0].getSimpleName() + "@InMemoryKeycloak";
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == void.class) {
+      return null;
+    }
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+      return type == long.class ? (Object) 0L : (Object) 0;
+    }
+    if (type == double.class || type == float.class) {
+      return type == double.class ? (Object) 0d : (Object) 0f;
+    }
+    if (type == Stream.class) {
+      return Stream.empty();
+    }
+    if (type == Map.class) {
+      return new HashMap<>();
+    }
+    if (type == List.class || type == Collection.class) {
+      return new ArrayList<>();
+    }
+    if (type == Set.class) {
+      return Collections.emptySet();
+    }
+    if (type.isInterface()) {
+      return proxy(type, new Handlers());
+    }
+    return null;
+  }
+}
@@ -0,0 +1,278 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+
+public class InMemoryUserModel implements UserModel {
+  private final String id;
+  private String username;
+  private Long createdTimestamp;
+  private boolean enabled;
+  private String email;
+  private boolean emailVerified;
+  private String firstName;
+  private String lastName;
+  private String federationLink;
+  private final Map<String, List<String>> attributes = new HashMap<>();
+  private final Map<String, GroupModel> groups = new LinkedHashMap<>();
+
+  // When record only is set, setters and group changes are counted but not
+  // applied, so the same differences are found on every reconciliation
+  private boolean recordOnly;
+  private int writes;
+
+  public InMemoryUserModel(String id, String username) {
+    this.id = id;
+    this.username = username;
+  }
+
+  public InMemoryUserModel setRecordOnly(boolean recordOnly) {
+    this.recordOnly = recordOnly;
+    return this;
+  }
+
+  public int getWrites() {
+    return writes;
+  }
+
+  private boolean write() {
+    writes++;
+    return !recordOnly;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    if (write()) {
+      this.username = username;
+    }
+  }
+
+  @Override
+  public Long getCreatedTimestamp() {
+    return createdTimestamp;
+  }
+
+  @Override
+  public void setCreatedTimestamp(Long timestamp) {
+    if (write()) {
+      this.createdTimestamp = timestamp;
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    if (write()) {
+      this.enabled = enabled;
+    }
+  }
+
+  @Override
+  public void setSingleAttribute(String name, String value) {
+    if (write()) {
+      List<String> values = new ArrayList<>();
+      values.add(value);
+      attributes.put(name, values);
+    }
+  }
+
+  @Override
+  public void setAttribute(String name, List<String> values) {
+    if (write()) {
+      attributes.put(name, new ArrayList<>(values));
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    if (write()) {
+      attributes.remove(name);
+    }
+  }
+
+  @Override
+  public String getFirstAttribute(String name) {
+    List<String> values = attributes.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  @Override
+  public Stream<String> getAttributeStream(String name) {
+    List<String> values = attributes.get(name);
+    return values == null ? Stream.empty() : values.stream();
+  }
+
+  @Override
+  public Map<String, List<String>> getAttributes() {
+    return Collections.unmodifiableMap(attributes);
+  }
+
+  @Override
+  public String getFirstName() {
+    return firstName;
+  }
+
+  @Override
+  public void setFirstName(String firstName) {
+    if (write()) {
+      this.firstName = firstName;
+    }
+  }
+
+  @Override
+  public String getLastName() {
+    return lastName;
+  }
+
+  @Override
+  public void setLastName(String lastName) {
+    if (write()) {
+      this.lastName = lastName;
+    }
+  }
+
+  @Override
+  public String getEmail() {
+    return email;
+  }
+
+  @Override
+  public void setEmail(String email) {
+    if (write()) {
+      this.email = email;
+    }
+  }
+
+  @Override
+  public boolean isEmailVerified() {
+    return emailVerified;
+  }
+
+  @Override
+  public void setEmailVerified(boolean verified) {
+    if (write()) {
+      this.emailVerified = verified;
+    }
+  }
+
+  @Override
+  public Stream<GroupModel> getGroupsStream() {
+    return groups.values().stream();
+  }
+
+  @Override
+  public void joinGroup(GroupModel group) {
+    if (write()) {
+      groups.put(group.getId(), group);
+    }
+  }
+
+  @Override
+  public void leaveGroup(GroupModel group) {
+    if (write()) {
+      groups.remove(group.getId());
+    }
+  }
+
+  @Override
+  public boolean isMemberOf(GroupModel group) {
+    return groups.containsKey(group.getId());
+  }
+
+  @Override
+  public String getFederationLink() {
+    return federationLink;
+  }
+
+  @Override
+  public void setFederationLink(String link) {
+    if (write()) {
+      this.federationLink = link;
+    }
+  }
+
+  @Override
+  public Stream<RoleModel> getRealmRoleMappingsStream() {
+    throw new UnsupportedOperationException("Unimplemented method 'getRealmRoleMappingsStream'");
+  }
+
+  @Override
+  public Stream<RoleModel> getClientRoleMappingsStream(ClientModel app) {
+    throw new UnsupportedOperationException("Unimplemented method 'getClientRoleMappingsStream'");
+  }
+
+  @Override
+  public boolean hasRole(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'hasRole'");
+  }
+
+  @Override
+  public void grantRole(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'grantRole'");
+  }
+
+  @Override
+  public Stream<RoleModel> getRoleMappingsStream() {
+    throw new UnsupportedOperationException("Unimplemented method 'getRoleMappingsStream'");
+  }
+
+  @Override
+  public void deleteRoleMapping(RoleModel role) {
+    throw new UnsupportedOperationException("Unimplemented method 'deleteRoleMapping'");
+  }
+
+  @Override
+  public Stream<String> getRequiredActionsStream() {
+    throw new UnsupportedOperationException("Unimplemented method 'getRequiredActionsStream'");
+  }
+
+  @Override
+  public void addRequiredAction(String action) {
+    throw new UnsupportedOperationException("Unimplemented method 'addRequiredAction'");
+  }
+
+  @Override
+  public void removeRequiredAction(String action) {
+    throw new UnsupportedOperationException("Unimplemented method 'removeRequiredAction'");
+  }
+
+  @Override
+  public String getServiceAccountClientLink() {
+    throw new UnsupportedOperationException("Unimplemented method 'getServiceAccountClientLink'");
+  }
+
+  @Override
+  public void setServiceAccountClientLink(String clientInternalId) {
+    throw new UnsupportedOperationException("Unimplemented method 'setServiceAccountClientLink'");
+  }
+
+  @Override
+  public SubjectCredentialManager credentialManager() {
+    throw new UnsupportedOperationException("Unimplemented method 'credentialManager'");
+  }
+}
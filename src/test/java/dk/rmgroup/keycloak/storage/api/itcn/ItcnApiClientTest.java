@@ -0,0 +1,159 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnApiClient.HttpStatusException;
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnApiClient.UnsupportedFilterException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+// Fetches a generated directory from ItcnApiStandIn with the paging, retry and
+// fallback paths of ItcnApiClient
+public class ItcnApiClientTest {
+  private static final String API_USERNAME = "test";
+
+  private static final String API_PASSWORD = "test-password";
+
+  private static final int USERS = 250;
+
+  private ItcnApiStandIn standIn;
+
+  private List<ItcnDirectoryGenerator.Entry> directory;
+
+  private List<ItcnApiEndpoint> endpoints;
+
+  @Before
+  public void setUp() throws Exception {
+    standIn = new ItcnApiStandIn(API_USERNAME, API_PASSWORD);
+    directory = new ItcnDirectoryGenerator(USERS).distinctGroups(20).groupsPerUser(1, 3).generateEntries();
+    standIn.setDirectory(directory);
+    endpoints = Collections.singletonList(new ItcnApiEndpoint(standIn.getLoginUrl(), API_USERNAME, API_PASSWORD,
+        standIn.getActiveDirectoryUrl()));
+  }
+
+  @After
+  public void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  public void followsNextLink() throws Exception {
+    standIn.setPaging(ItcnApiStandIn.Paging.NEXT_LINK);
+    standIn.setServerPageSize(60);
+
+    assertDirectory(fetch(new ItcnApiClient("test", 100, 4, 0)));
+    assertEquals(5, standIn.getActiveDirectoryRequests());
+  }
+
+  @Test
+  public void followsRelativeNextLink() throws Exception {
+    standIn.setPaging(ItcnApiStandIn.Paging.NEXT_LINK);
+    standIn.setServerPageSize(60);
+    standIn.setRelativeNextLinks(true);
+
+    assertDirectory(fetch(new ItcnApiClient("test", 100, 4, 0)));
+    assertEquals(5, standIn.getActiveDirectoryRequests());
+  }
+
+  @Test
+  public void pagesWithSkipAndCount() throws Exception {
+    standIn.setPaging(ItcnApiStandIn.Paging.SKIP_WITH_COUNT);
+
+    assertDirectory(fetch(new ItcnApiClient("test", 100, 4, 0)));
+    assertEquals(3, standIn.getActiveDirectoryRequests());
+  }
+
+  @Test
+  public void pagesWithSkipUntilAPageIsNotFull() throws Exception {
+    standIn.setPaging(ItcnApiStandIn.Paging.SKIP);
+
+    // The last page is full, so the empty page after it ends the fetch
+    assertDirectory(fetch(new ItcnApiClient("test", 50, 4, 0)));
+  }
+
+  @Test
+  public void retriesFailingPages() throws Exception {
+    standIn.setPaging(ItcnApiStandIn.Paging.SKIP_WITH_COUNT);
+    standIn.setFailEveryNthRequest(3);
+
+    assertDirectory(fetch(new ItcnApiClient("test", 50, 4, 3)));
+    assertEquals(7, standIn.getActiveDirectoryRequests());
+  }
+
+  @Test
+  public void failsWhenRetriesAreUsedUp() throws Exception {
+    standIn.setFailEveryNthRequest(1);
+
+    try {
+      fetch(new ItcnApiClient("test", 0, 4, 0));
+      fail("Expected the failing request to fail the fetch");
+    } catch (HttpStatusException e) {
+      assertEquals(503, e.getStatus());
+    }
+  }
+
+  @Test
+  public void fallsBackToFullFetchWhenShapingIsRejectedWith400() throws Exception {
+    assertFallsBackToFullFetch(400);
+  }
+
+  @Test
+  public void fallsBackToFullFetchWhenShapingIsRejectedWith501() throws Exception {
+    assertFallsBackToFullFetch(501);
+  }
+
+  @Test
+  public void userLookupFallsBackToFullFetchWhenFilterIsRejectedWith400() throws Exception {
+    assertUserLookupFallsBackToFullFetch(400);
+  }
+
+  @Test
+  public void userLookupFallsBackToFullFetchWhenFilterIsRejectedWith501() throws Exception {
+    assertUserLookupFallsBackToFullFetch(501);
+  }
+
+  @Test(expected = UnsupportedFilterException.class)
+  public void userLookupWithoutFullFetchFailsWhenFilterIsRejected() throws Exception {
+    standIn.setRejectShapingStatus(501);
+
+    new ItcnApiClient("test", 0, 4, 0).getItcnApiUser(endpoints, directory.get(0).upn, false);
+  }
+
+  private void assertFallsBackToFullFetch(int status) throws Exception {
+    standIn.setRejectShapingStatus(status);
+
+    assertDirectory(fetch(new ItcnApiClient("test", 0, 4, 0, true, null)));
+    assertEquals(2, standIn.getActiveDirectoryRequests());
+  }
+
+  private void assertUserLookupFallsBackToFullFetch(int status) throws Exception {
+    standIn.setRejectShapingStatus(status);
+    String upn = directory.get(USERS / 2).upn;
+
+    ItcnApiUser user = new ItcnApiClient("test", 0, 4, 0).getItcnApiUser(endpoints, upn, true);
+    assertNotNull(user);
+    assertEquals(upn.toLowerCase(), user.getUpn());
+    assertEquals(2, standIn.getActiveDirectoryRequests());
+  }
+
+  private List<ItcnApiUser> fetch(ItcnApiClient client) throws Exception {
+    return client.getItcnApiUsers(endpoints, client.getTokens(endpoints));
+  }
+
+  private void assertDirectory(List<ItcnApiUser> users) {
+    // UPNs are lowercased when parsed
+    Set<String> expected = directory.stream().map(e -> e.upn.toLowerCase()).collect(Collectors.toSet());
+    Set<String> actual = users.stream().map(ItcnApiUser::getUpn).collect(Collectors.toSet());
+    assertEquals(USERS, users.size());
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,365 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Local stand-in for the ITCN API implementing /Login and /ActiveDirectory as
+// described in itcn-api-v1.1.yaml. The directory can be served in one response
+// or in pages using $top and $skip, with or without @odata.count, or using
+// @odata.nextLink, and requests can be made to fail to exercise retries. It
+// honors $select and a $filter of the form "LastModified ge <date>", where the
+// last modified time of a user is when setDirectory first saw it changed. Any
+// other $filter is answered with 400.
+public class ItcnApiStandIn implements AutoCloseable {
+  public enum Paging {
+    // Ignores $top and $skip and always returns the whole directory
+    NONE,
+    // Honors $top and $skip and returns @odata.count when $count=true
+    SKIP_WITH_COUNT,
+    // Honors $top and $skip without returning a count
+    SKIP,
+    // Returns pages of the server page size linked by @odata.nextLink
+    NEXT_LINK
+  }
+
+  private final HttpServer server;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+  private final String username;
+
+  private final String password;
+
+  private final String token = UUID.randomUUID().toString();
+
+  private volatile String directoryJson = "{\"value\":[]}";
+
+  private volatile List<ItcnDirectoryGenerator.Entry> directory;
+
+  private volatile Paging paging = Paging.NONE;
+
+  private volatile int serverPageSize = 1000;
+
+  private volatile boolean relativeNextLinks;
+
+  private volatile int failEveryNthRequest;
+
+  private volatile int rejectShapingStatus;
+
+  private final Map<String, Long> lastModified = new ConcurrentHashMap<>();
+
+  private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+  private static final String LAST_MODIFIED_FIELD = "LastModified";
+
+  private static final Pattern FILTER_PATTERN = Pattern.compile(LAST_MODIFIED_FIELD + " ge (\\S+)");
+
+  private static final List<String> FIELDS = Arrays.asList("UPN", "Email", "FirstName", "SurName", "MobilePhone",
+      "Groups", LAST_MODIFIED_FIELD);
+
+  private final AtomicInteger loginRequests = new AtomicInteger();
+
+  private final AtomicInteger activeDirectoryRequests = new AtomicInteger();
+
+  public ItcnApiStandIn(String username, String password) throws IOException {
+    this.username = username;
+    this.password = password;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/Login", this::handleLogin);
+    server.createContext("/ActiveDirectory", this::handleActiveDirectory);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public String getBaseUrl() {
+    return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+  }
+
+  public String getLoginUrl() {
+    return getBaseUrl() + "/Login";
+  }
+
+  public String getActiveDirectoryUrl() {
+    return getBaseUrl() + "/ActiveDirectory";
+  }
+
+  public void setDirectoryJson(String directoryJson) {
+    this.directoryJson = directoryJson;
+    this.directory = null;
+  }
+
+  // Paged and shaped responses are built from the entries on each request
+  public void setDirectory(List<ItcnDirectoryGenerator.Entry> directory) {
+    long now = System.currentTimeMillis();
+    for (ItcnDirectoryGenerator.Entry e : directory) {
+      String fingerprint = String.join("|", e.email, e.firstName, e.surName, e.mobilePhone,
+          String.join(",", e.groups));
+      if (!fingerprint.equals(fingerprints.put(e.upn.toLowerCase(), fingerprint))) {
+        lastModified.put(e.upn.toLowerCase(), now);
+      }
+    }
+    this.directory = directory;
+    this.directoryJson = ItcnDirectoryGenerator.toJsonEntries(directory);
+  }
+
+  // The lowercased UPNs a filter on the given date returns
+  public Set<String> getUpnsModifiedSince(Date since) {
+    long sinceSeconds = since.getTime() / 1000 * 1000;
+    List<ItcnDirectoryGenerator.Entry> entries = directory;
+    Set<String> result = new HashSet<>();
+    if (entries != null) {
+      for (ItcnDirectoryGenerator.Entry e : entries) {
+        if (lastModified.getOrDefault(e.upn.toLowerCase(), 0L) >= sinceSeconds) {
+          result.add(e.upn.toLowerCase());
+        }
+      }
+    }
+    return result;
+  }
+
+  // Answers 400 to requests using $select or $filter, like a server without
+  // support for them
+  public void setRejectShaping(boolean rejectShaping) {
+    setRejectShapingStatus(rejectShaping ? 400 : 0);
+  }
+
+  // Answers requests using $select or $filter with the given status, 0 accepts
+  // them
+  public void setRejectShapingStatus(int rejectShapingStatus) {
+    this.rejectShapingStatus = rejectShapingStatus;
+  }
+
+  public void setPaging(Paging paging) {
+    this.paging = paging;
+  }
+
+  public void setServerPageSize(int serverPageSize) {
+    this.serverPageSize = serverPageSize;
+  }
+
+  // Sends @odata.nextLink as a path relative to the server instead of a full URL
+  public void setRelativeNextLinks(boolean relativeNextLinks) {
+    this.relativeNextLinks = relativeNextLinks;
+  }
+
+  // Every nth ActiveDirectory request answers 503, 0 disables failures
+  public void setFailEveryNthRequest(int failEveryNthRequest) {
+    this.failEveryNthRequest = failEveryNthRequest;
+  }
+
+  public int getLoginRequests() {
+    return loginRequests.get();
+  }
+
+  public int getActiveDirectoryRequests() {
+    return activeDirectoryRequests.get();
+  }
+
+  private void handleLogin(HttpExchange exchange) throws IOException {
+    loginRequests.incrementAndGet();
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      send(exchange, 405, "");
+      return;
+    }
+
+    JSONObject input = new JSONObject(ItcnApiClient.readResponse(exchange.getRequestBody()));
+    if (!username.equals(input.optString("username")) || !password.equals(input.optString("password"))) {
+      send(exchange, 401, "");
+      return;
+    }
+
+    JSONObject output = new JSONObject();
+    output.put("token", token);
+    output.put("expiration", "2099-01-01T00:00:00Z");
+    send(exchange, 200, output.toString());
+  }
+
+  private void handleActiveDirectory(HttpExchange exchange) throws IOException {
+    int request = activeDirectoryRequests.incrementAndGet();
+    if (!"GET".equals(exchange.getRequestMethod())) {
+      send(exchange, 405, "");
+      return;
+    }
+
+    if (!String.format("Bearer %s", token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      send(exchange, 401, "");
+      return;
+    }
+
+    int failEvery = failEveryNthRequest;
+    if (failEvery > 0 && request % failEvery == 0) {
+      send(exchange, 503, "");
+      return;
+    }
+
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    boolean shaped = query.containsKey("$select") || query.containsKey("$filter");
+    if (shaped && rejectShapingStatus > 0) {
+      send(exchange, rejectShapingStatus, "");
+      return;
+    }
+
+    List<ItcnDirectoryGenerator.Entry> entries = directory;
+    if (entries == null || (paging == Paging.NONE && !shaped)) {
+      send(exchange, 200, directoryJson);
+      return;
+    }
+
+    if (query.containsKey("$filter")) {
+      Matcher matcher = FILTER_PATTERN.matcher(query.get("$filter"));
+      if (!matcher.matches()) {
+        send(exchange, 400, "");
+        return;
+      }
+      long since;
+      try {
+        since = createDateFormat().parse(matcher.group(1)).getTime();
+      } catch (ParseException e) {
+        send(exchange, 400, "");
+        return;
+      }
+      entries = entries.stream().filter(e -> lastModified.getOrDefault(e.upn.toLowerCase(), 0L) >= since)
+          .collect(Collectors.toList());
+    }
+
+    List<String> select = FIELDS;
+    if (query.containsKey("$select")) {
+      select = Arrays.asList(query.get("$select").split(","));
+      if (!FIELDS.containsAll(select)) {
+        send(exchange, 400, "");
+        return;
+      }
+    }
+
+    int skip = Integer.parseInt(query.getOrDefault("$skip", "0"));
+    int top = paging == Paging.NEXT_LINK ? serverPageSize
+        : paging == Paging.NONE ? entries.size()
+            : Integer.parseInt(query.getOrDefault("$top", String.valueOf(entries.size())));
+
+    int from = Math.min(skip, entries.size());
+    int to = Math.min(from + top, entries.size());
+
+    JSONArray value = new JSONArray();
+    for (ItcnDirectoryGenerator.Entry e : entries.subList(from, to)) {
+      value.put(toJson(e, select));
+    }
+    JSONObject page = new JSONObject();
+    page.put("value", value);
+    if (paging == Paging.SKIP_WITH_COUNT && "true".equals(query.get("$count"))) {
+      page.put("@odata.count", entries.size());
+    }
+    if (paging == Paging.NEXT_LINK && to < entries.size()) {
+      Map<String, String> nextQuery = new LinkedHashMap<>(query);
+      nextQuery.remove("$top");
+      nextQuery.remove("$count");
+      nextQuery.put("$skip", String.valueOf(to));
+      page.put("@odata.nextLink", String.format("%s?%s", relativeNextLinks ? "/ActiveDirectory"
+          : getActiveDirectoryUrl(), formatQuery(nextQuery)));
+    }
+    send(exchange, 200, page.toString());
+  }
+
+  private JSONObject toJson(ItcnDirectoryGenerator.Entry e, List<String> select) {
+    JSONObject o = new JSONObject();
+    for (String field : select) {
+      switch (field) {
+        case "UPN":
+          o.put(field, e.upn);
+          break;
+        case "Email":
+          o.put(field, e.email);
+          break;
+        case "FirstName":
+          o.put(field, e.firstName);
+          break;
+        case "SurName":
+          o.put(field, e.surName);
+          break;
+        case "MobilePhone":
+          o.put(field, e.mobilePhone);
+          break;
+        case "Groups":
+          o.put(field, new JSONArray(Arrays.asList(e.groups)));
+          break;
+        default:
+          o.put(field, createDateFormat().format(new Date(lastModified.getOrDefault(e.upn.toLowerCase(), 0L))));
+          break;
+      }
+    }
+    return o;
+  }
+
+  private static SimpleDateFormat createDateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  private static String formatQuery(Map<String, String> query) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> entry : query.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append('&');
+      }
+      sb.append(entry.getKey()).append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+    }
+    return sb.toString();
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+    Map<String, String> query = new LinkedHashMap<>();
+    if (rawQuery == null) {
+      return query;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+      String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      query.put(key, value);
+    }
+    return query;
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
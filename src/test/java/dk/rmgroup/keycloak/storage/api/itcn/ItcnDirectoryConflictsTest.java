@@ -0,0 +1,104 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ItcnDirectoryConflictsTest {
+  private final ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+
+  @Test
+  public void keepsADirectoryWithoutConflicts() {
+    List<ItcnApiUser> apiUsers = Arrays.asList(apiUser("a@example.com", "a@example.com", "A"),
+        apiUser("b@example.com", "b@example.com", "B"));
+
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(apiUsers, false);
+
+    assertSame(apiUsers, conflicts.getUsers());
+    assertFalse(conflicts.hasConflicts());
+    assertEquals(0, conflicts.getQuarantined());
+  }
+
+  @Test
+  public void mergesDuplicatesWithTheSameData() {
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(Arrays.asList(
+        apiUser("a@example.com", "a@example.com", "A", "Staff", "Teachers"),
+        apiUser("a@example.com", "a@example.com", "A", "Teachers", "Staff")), false);
+
+    assertEquals(Collections.singletonList("a@example.com"), upns(conflicts));
+    assertEquals(1, conflicts.getMergedDuplicates());
+    assertFalse(conflicts.hasConflicts());
+  }
+
+  @Test
+  public void quarantinesDuplicatesWithDifferentData() {
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(Arrays.asList(
+        apiUser("a@example.com", "a@example.com", "A"),
+        apiUser("b@example.com", "b@example.com", "B"),
+        apiUser("a@example.com", "a@example.com", "Other")), false);
+
+    assertEquals(Collections.singletonList("b@example.com"), upns(conflicts));
+    assertEquals(1, conflicts.getQuarantined());
+    assertTrue(conflicts.hasConflicts());
+    // A quarantined user is still in the directory, so it is not removed
+    assertTrue(conflicts.getDirectoryUpns().contains("a@example.com"));
+    assertTrue(conflicts.getDiagnostic("itcn")
+        .contains("1 UPNs were returned more than once with different data: a@example.com"));
+  }
+
+  @Test
+  public void quarantinesUpnsSharingAnEmail() {
+    List<ItcnApiUser> apiUsers = Arrays.asList(
+        apiUser("a@example.com", "shared@example.com", "A"),
+        apiUser("b@example.com", "shared@example.com", "B"),
+        apiUser("c@example.com", "c@example.com", "C"));
+
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(apiUsers, false);
+
+    assertEquals(Collections.singletonList("c@example.com"), upns(conflicts));
+    assertEquals(2, conflicts.getQuarantined());
+    assertTrue(conflicts.getDiagnostic("itcn")
+        .contains("1 emails are used by more than one UPN: shared@example.com (a@example.com, b@example.com)"));
+  }
+
+  @Test
+  public void allowsSharedEmailsWhenTheRealmAllowsDuplicateEmails() {
+    ItcnDirectoryConflicts conflicts = ItcnDirectoryConflicts.resolve(Arrays.asList(
+        apiUser("a@example.com", "shared@example.com", "A"),
+        apiUser("b@example.com", "shared@example.com", "B")), true);
+
+    assertEquals(Arrays.asList("a@example.com", "b@example.com"), upns(conflicts));
+    assertFalse(conflicts.hasConflicts());
+  }
+
+  @Test
+  public void limitsTheListedConflicts() {
+    ItcnApiUser[] apiUsers = new ItcnApiUser[120];
+    for (int i = 0; i < 60; i++) {
+      String upn = String.format("user%02d@example.com", i);
+      apiUsers[2 * i] = apiUser(upn, upn, "A");
+      apiUsers[2 * i + 1] = apiUser(upn, upn, "B");
+    }
+
+    String diagnostic = ItcnDirectoryConflicts.resolve(Arrays.asList(apiUsers), false).getDiagnostic("itcn");
+
+    assertTrue(diagnostic, diagnostic.startsWith("60 users from federation provider 'itcn'"));
+    assertTrue(diagnostic, diagnostic.endsWith("user49@example.com and 10 more"));
+  }
+
+  private ItcnApiUser apiUser(String upn, String email, String firstName, String... groups) {
+    return new ItcnApiUser(upn, email, firstName, "Last", null, groups, groupDictionary);
+  }
+
+  private static List<String> upns(ItcnDirectoryConflicts conflicts) {
+    return conflicts.getUsers().stream().map(ItcnApiUser::getUpn).collect(Collectors.toList());
+  }
+}
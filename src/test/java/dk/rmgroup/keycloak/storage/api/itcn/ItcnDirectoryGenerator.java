@@ -0,0 +1,203 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+public class ItcnDirectoryGenerator {
+  private final int users;
+
+  private int distinctGroups = 400;
+
+  private int minGroupsPerUser = 3;
+
+  private int maxGroupsPerUser = 25;
+
+  private String domain = "example.dk";
+
+  private long seed = 42;
+
+  private int nextIndex;
+
+  public ItcnDirectoryGenerator(int users) {
+    this.users = users;
+    this.nextIndex = users;
+  }
+
+  public ItcnDirectoryGenerator distinctGroups(int distinctGroups) {
+    this.distinctGroups = distinctGroups;
+    return this;
+  }
+
+  public ItcnDirectoryGenerator groupsPerUser(int min, int max) {
+    this.minGroupsPerUser = min;
+    this.maxGroupsPerUser = max;
+    return this;
+  }
+
+  public ItcnDirectoryGenerator domain(String domain) {
+    this.domain = domain;
+    return this;
+  }
+
+  public ItcnDirectoryGenerator seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  public String getGroupName(int index) {
+    return String.format("ITCN Group %d", index);
+  }
+
+  public static class Entry {
+    public final String upn;
+    public final String email;
+    public final String firstName;
+    public final String surName;
+    public final String mobilePhone;
+    public final String[] groups;
+
+    public Entry(String upn, String email, String firstName, String surName, String mobilePhone, String[] groups) {
+      this.upn = upn;
+      this.email = email;
+      this.firstName = firstName;
+      this.surName = surName;
+      this.mobilePhone = mobilePhone;
+      this.groups = groups;
+    }
+
+    public ItcnApiUser toApiUser(ItcnGroupDictionary groupDictionary) {
+      return new ItcnApiUser(upn, email, firstName, surName, mobilePhone, groups, groupDictionary);
+    }
+  }
+
+  public List<Entry> generateEntries() {
+    Random random = new Random(seed);
+    List<Entry> result = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      result.add(generateEntry(random, i));
+    }
+    return result;
+  }
+
+  public List<ItcnApiUser> generateUsers() {
+    List<Entry> entries = generateEntries();
+    List<ItcnApiUser> result = new ArrayList<>(entries.size());
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    for (Entry entry : entries) {
+      result.add(entry.toApiUser(groupDictionary));
+    }
+    return result;
+  }
+
+  // Returns a copy of the entries where the given fraction of users are changed.
+  // A third get a new surname, a third get one group replaced, a sixth are
+  // removed and for the last sixth a new user is added
+  public List<Entry> churn(List<Entry> entries, double fraction, long churnSeed) {
+    Random random = new Random(churnSeed);
+    List<Entry> result = new ArrayList<>(entries.size());
+    int added = 0;
+    for (Entry e : entries) {
+      if (random.nextDouble() >= fraction) {
+        result.add(e);
+        continue;
+      }
+      int kind = random.nextInt(6);
+      if (kind < 2) {
+        result.add(new Entry(e.upn, e.email, e.firstName, e.surName + "-changed", e.mobilePhone, e.groups));
+      } else if (kind < 4) {
+        String[] groups = e.groups.clone();
+        if (groups.length > 0) {
+          groups[random.nextInt(groups.length)] = getGroupName(random.nextInt(distinctGroups));
+        }
+        result.add(new Entry(e.upn, e.email, e.firstName, e.surName, e.mobilePhone,
+            new LinkedHashSet<>(Arrays.asList(groups)).toArray(new String[0])));
+      } else if (kind < 5) {
+        result.add(e);
+        added++;
+      }
+      // kind 5 removes the user
+    }
+    for (int i = 0; i < added; i++) {
+      result.add(generateEntry(random, nextIndex++));
+    }
+    return result;
+  }
+
+  public String generate() {
+    return toJsonEntries(generateEntries());
+  }
+
+  public static String toJsonEntries(List<Entry> entries) {
+    StringBuilder sb = new StringBuilder(entries.size() * 400);
+    sb.append("{\"value\":[");
+    for (int i = 0; i < entries.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      Entry e = entries.get(i);
+      appendUser(sb, e.upn, e.email, e.firstName, e.surName, e.mobilePhone, e.groups);
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+
+  public static String toJson(List<ItcnApiUser> users) {
+    StringBuilder sb = new StringBuilder(users.size() * 400);
+    sb.append("{\"value\":[");
+    for (int i = 0; i < users.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      appendUser(sb, users.get(i));
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+
+  public static void appendUser(StringBuilder sb, ItcnApiUser user) {
+    appendUser(sb, user.getUpn(), user.getEmail(), user.getFirstName(), user.getSurName(), user.getMobilePhone(),
+        user.getGroups());
+  }
+
+  private static void appendUser(StringBuilder sb, String upn, String email, String firstName, String surName,
+      String mobilePhone, String[] groups) {
+    sb.append("{\"UPN\":").append(JSONObject.quote(upn))
+        .append(",\"Email\":").append(JSONObject.quote(email))
+        .append(",\"FirstName\":").append(JSONObject.quote(firstName))
+        .append(",\"SurName\":").append(JSONObject.quote(surName))
+        .append(",\"MobilePhone\":").append(JSONObject.quote(mobilePhone))
+        .append(",\"Groups\":[");
+    for (int j = 0; j < groups.length; j++) {
+      if (j > 0) {
+        sb.append(',');
+      }
+      sb.append(JSONObject.quote(groups[j]));
+    }
+    sb.append("]}");
+  }
+
+  private Entry generateEntry(Random random, int index) {
+    // Mixed case like the real API, so the lowercasing in ItcnApiUser is exercised
+    String upn = String.format("User.%07d@%s", index, domain);
+    String email = String.format("User.%07d@Mail.%s", index, domain);
+    String mobilePhone = random.nextInt(10) == 0 ? "" : String.format("+45%08d", random.nextInt(100000000));
+
+    int groupCount = minGroupsPerUser + random.nextInt(maxGroupsPerUser - minGroupsPerUser + 1);
+    Set<String> groups = new LinkedHashSet<>();
+    while (groups.size() < Math.min(groupCount, distinctGroups)) {
+      // Skewed towards the low group numbers, so a few groups are very large like
+      // department or "all employees" groups
+      double r = random.nextDouble();
+      groups.add(getGroupName((int) (r * r * r * distinctGroups)));
+    }
+
+    return new Entry(upn, email, String.format("First%d", index), String.format("Last%d", index), mobilePhone,
+        groups.toArray(new String[0]));
+  }
+}
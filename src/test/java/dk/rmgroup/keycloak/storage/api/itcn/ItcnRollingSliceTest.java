@@ -0,0 +1,86 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ItcnRollingSliceTest {
+  private static final String FED_ID = "fed-id";
+
+  private static final int UPNS = 10000;
+
+  private KeycloakSessionFactory sessionFactory;
+
+  @Before
+  public void setUp() {
+    sessionFactory = new InMemoryKeycloak("realm-id", "realm").getSessionFactory();
+  }
+
+  @Test
+  public void spreadsTheUpnsEvenlyOverTheSlices() {
+    int[] counts = new int[8];
+    for (int i = 0; i < UPNS; i++) {
+      counts[ItcnRollingSlice.sliceOf(upn(i), counts.length)]++;
+    }
+
+    for (int count : counts) {
+      assertTrue(String.valueOf(count), count > UPNS / counts.length * 0.9 && count < UPNS / counts.length * 1.1);
+    }
+  }
+
+  @Test
+  public void onlyMovesUpnsToTheNewSliceWhenASliceIsAdded() {
+    int moved = 0;
+    for (int i = 0; i < UPNS; i++) {
+      int before = ItcnRollingSlice.sliceOf(upn(i), 8);
+      int after = ItcnRollingSlice.sliceOf(upn(i), 9);
+      if (before != after) {
+        assertEquals(8, after);
+        moved++;
+      }
+    }
+
+    // About a ninth of the UPNs move
+    assertTrue(String.valueOf(moved), moved > UPNS / 9 * 0.9 && moved < UPNS / 9 * 1.1);
+  }
+
+  @Test
+  public void containsTheUpnsOfItsSlice() {
+    ItcnRollingSlice slice = ItcnRollingSlice.load(sessionFactory, FED_ID, 4);
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(ItcnRollingSlice.sliceOf(upn(i), 4) == slice.getSlice(), slice.contains(upn(i)));
+    }
+  }
+
+  @Test
+  public void advancesToTheNextSliceAndWrapsAround() {
+    ItcnRollingSlice slice = ItcnRollingSlice.load(sessionFactory, FED_ID, 3);
+    int first = slice.getSlice();
+
+    for (int i = 1; i <= 3; i++) {
+      slice.advance();
+      slice = ItcnRollingSlice.load(sessionFactory, FED_ID, 3);
+      assertEquals((first + i) % 3, slice.getSlice());
+    }
+  }
+
+  @Test
+  public void startsAtASliceInRangeWhenTheNumberOfSlicesChanges() {
+    ItcnRollingSlice slice = ItcnRollingSlice.load(sessionFactory, FED_ID, 10);
+    slice.advance();
+
+    for (int i = 0; i < 20; i++) {
+      slice = ItcnRollingSlice.load(sessionFactory, FED_ID, 2);
+      assertEquals(2, slice.getSlices());
+      assertTrue(slice.getSlice() >= 0 && slice.getSlice() < 2);
+    }
+  }
+
+  private static String upn(int i) {
+    return String.format("user%d@example.com", i);
+  }
+}
@@ -0,0 +1,24 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ItcnSyncCancelEventTest {
+  @Test
+  public void marshalsWithTheGeneratedSchema() throws Exception {
+    SerializationContext context = ProtobufUtil.newSerializationContext();
+    ItcnSyncSchema schema = new ItcnSyncSchemaImpl();
+    schema.registerSchema(context);
+    schema.registerMarshallers(context);
+
+    byte[] bytes = ProtobufUtil.toWrappedByteArray(context,
+        new ItcnSyncCancelEvent("provider-id", "the provider was removed"));
+    ItcnSyncCancelEvent event = (ItcnSyncCancelEvent) ProtobufUtil.fromWrappedByteArray(context, bytes);
+
+    assertEquals("provider-id", event.getProviderId());
+    assertEquals("the provider was removed", event.getReason());
+  }
+}
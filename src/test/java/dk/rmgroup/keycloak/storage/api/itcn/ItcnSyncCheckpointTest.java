@@ -0,0 +1,129 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ItcnSyncCheckpointTest {
+  private static final String FED_ID = "fed-id";
+
+  private KeycloakSessionFactory sessionFactory;
+
+  @Before
+  public void setUp() {
+    sessionFactory = new InMemoryKeycloak("realm-id", "realm").getSessionFactory();
+  }
+
+  @Test
+  public void formatsPagesAsRanges() {
+    BitSet pages = new BitSet();
+    pages.set(0, 4);
+    pages.set(6);
+    pages.set(9, 11);
+
+    assertEquals("0-3,6,9-10", ItcnSyncCheckpoint.formatRanges(pages));
+    assertEquals("", ItcnSyncCheckpoint.formatRanges(new BitSet()));
+  }
+
+  @Test
+  public void parsesTheFormattedRanges() {
+    BitSet pages = new BitSet();
+    pages.set(2);
+    pages.set(5, 100);
+    pages.set(1000);
+
+    assertEquals(pages, ItcnSyncCheckpoint.parseRanges(ItcnSyncCheckpoint.formatRanges(pages)));
+    assertTrue(ItcnSyncCheckpoint.parseRanges("").isEmpty());
+    assertTrue(ItcnSyncCheckpoint.parseRanges(null).isEmpty());
+  }
+
+  @Test
+  public void digestDependsOnTheDirectoryAndTheConfiguration() {
+    ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+    List<ItcnApiUser> directory = Arrays.asList(
+        apiUser("a@example.com", "12345678", groupDictionary, "Staff", "Teachers"),
+        apiUser("b@example.com", null, groupDictionary, "Students"));
+    String digest = ItcnSyncCheckpoint.digest(directory, "config");
+
+    // Group order and dictionary do not matter
+    ItcnGroupDictionary otherDictionary = new ItcnGroupDictionary();
+    otherDictionary.intern("Students");
+    assertEquals(digest, ItcnSyncCheckpoint.digest(Arrays.asList(
+        apiUser("a@example.com", "12345678", otherDictionary, "Teachers", "Staff"),
+        apiUser("b@example.com", null, otherDictionary, "Students")), "config"));
+
+    assertNotEquals(digest, ItcnSyncCheckpoint.digest(directory, "other config"));
+    assertNotEquals(digest, ItcnSyncCheckpoint.digest(Arrays.asList(
+        apiUser("a@example.com", "12345678", groupDictionary, "Staff", "Teachers"),
+        apiUser("b@example.com", null, groupDictionary, "Staff")), "config"));
+    assertNotEquals(digest, ItcnSyncCheckpoint.digest(Arrays.asList(
+        apiUser("a@example.com", "87654321", groupDictionary, "Staff", "Teachers"),
+        apiUser("b@example.com", null, groupDictionary, "Students")), "config"));
+  }
+
+  @Test
+  public void resumesTheCompletedPagesForTheSameDigest() {
+    ItcnSyncCheckpoint checkpoint = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+    assertFalse(checkpoint.isResumed());
+    BitSet pages = new BitSet();
+    pages.set(0, 3);
+    checkpoint.markPagesCompleted(pages);
+    checkpoint.markRemovalsDone();
+    checkpoint.flush();
+
+    ItcnSyncCheckpoint resumed = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+    assertTrue(resumed.isResumed());
+    assertEquals(checkpoint.getSyncId(), resumed.getSyncId());
+    assertEquals(3, resumed.getCompletedPages());
+    assertTrue(resumed.isPageCompleted(2));
+    assertTrue(resumed.isRemovalsDone());
+
+    ItcnSyncCheckpoint other = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "other digest");
+    assertFalse(other.isResumed());
+    assertEquals(0, other.getCompletedPages());
+  }
+
+  @Test
+  public void startsOverAfterTooManyResumes() {
+    ItcnSyncCheckpoint checkpoint = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+    BitSet pages = new BitSet();
+    pages.set(0);
+    checkpoint.markPagesCompleted(pages);
+    checkpoint.flush();
+
+    for (int resume = 1; resume <= ItcnSyncCheckpoint.MAX_RESUMES; resume++) {
+      checkpoint = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+      assertEquals(resume, checkpoint.getResumes());
+    }
+
+    checkpoint = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+    assertFalse(checkpoint.isResumed());
+    assertEquals(0, checkpoint.getCompletedPages());
+  }
+
+  @Test
+  public void clearedCheckpointIsNotResumed() {
+    ItcnSyncCheckpoint checkpoint = ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest");
+    BitSet pages = new BitSet();
+    pages.set(0);
+    checkpoint.markPagesCompleted(pages);
+    checkpoint.flush();
+    checkpoint.clear();
+
+    assertFalse(ItcnSyncCheckpoint.load(sessionFactory, FED_ID, "digest").isResumed());
+  }
+
+  private static ItcnApiUser apiUser(String upn, String mobilePhone, ItcnGroupDictionary groupDictionary,
+      String... groups) {
+    return new ItcnApiUser(upn, upn, "First", "Last", mobilePhone, groups, groupDictionary);
+  }
+}
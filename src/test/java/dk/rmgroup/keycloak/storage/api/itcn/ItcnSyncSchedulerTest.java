@@ -0,0 +1,160 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ItcnSyncSchedulerTest {
+  private final ItcnSyncCancellation cancellation = new ItcnSyncCancellation();
+
+  @Test
+  public void grantsPermitsUpToTheBudget() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(2);
+    ItcnSyncScheduler.Share share = scheduler.join("a");
+
+    assertTrue(share.acquire(cancellation));
+    assertTrue(share.acquire(cancellation));
+    CompletableFuture<Boolean> third = acquireAsync(share, cancellation);
+    assertWaiting(third);
+
+    share.release();
+    assertTrue(third.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void freePermitGoesToTheSyncHoldingFewestPermits() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(4);
+    ItcnSyncScheduler.Share first = scheduler.join("a");
+    ItcnSyncScheduler.Share second = scheduler.join("b");
+    assertTrue(first.acquire(cancellation));
+    assertTrue(first.acquire(cancellation));
+    assertTrue(first.acquire(cancellation));
+    assertTrue(second.acquire(cancellation));
+
+    CompletableFuture<Boolean> firstWaiting = acquireAsync(first, cancellation);
+    CompletableFuture<Boolean> secondWaiting = acquireAsync(second, cancellation);
+    assertWaiting(firstWaiting);
+    assertWaiting(secondWaiting);
+
+    // The second sync holds one permit against the two left to the first
+    first.release();
+    assertTrue(secondWaiting.get(5, TimeUnit.SECONDS));
+    assertWaiting(firstWaiting);
+
+    second.release();
+    assertTrue(firstWaiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void tieGoesToTheSyncThatStartedFirst() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(2);
+    ItcnSyncScheduler.Share first = scheduler.join("a");
+    ItcnSyncScheduler.Share second = scheduler.join("b");
+    ItcnSyncScheduler.Share holder = scheduler.join("c");
+    assertTrue(holder.acquire(cancellation));
+    assertTrue(holder.acquire(cancellation));
+
+    CompletableFuture<Boolean> secondWaiting = acquireAsync(second, cancellation);
+    assertWaiting(secondWaiting);
+    CompletableFuture<Boolean> firstWaiting = acquireAsync(first, cancellation);
+    assertWaiting(firstWaiting);
+
+    holder.release();
+    assertTrue(firstWaiting.get(5, TimeUnit.SECONDS));
+    assertWaiting(secondWaiting);
+
+    holder.release();
+    assertTrue(secondWaiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void queuedSyncWaitsBehindTheRunningSyncsUntilItsFirstPermit() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(2);
+    ItcnSyncScheduler.Share running = scheduler.join("a");
+    assertTrue(running.acquire(cancellation));
+    assertTrue(running.acquire(cancellation));
+    ItcnSyncScheduler.Share queued = scheduler.join("b");
+
+    CompletableFuture<Boolean> queuedWaiting = acquireAsync(queued, cancellation);
+    CompletableFuture<Boolean> runningWaiting = acquireAsync(running, cancellation);
+    assertWaiting(queuedWaiting);
+    assertWaiting(runningWaiting);
+
+    // The running sync comes first even though it holds more permits
+    running.release();
+    assertTrue(runningWaiting.get(5, TimeUnit.SECONDS));
+    assertWaiting(queuedWaiting);
+
+    running.release();
+    assertTrue(queuedWaiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void closedShareNoLongerComesFirst() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(1);
+    ItcnSyncScheduler.Share first = scheduler.join("a");
+    assertTrue(first.acquire(cancellation));
+    ItcnSyncScheduler.Share second = scheduler.join("b");
+
+    CompletableFuture<Boolean> secondWaiting = acquireAsync(second, cancellation);
+    first.release();
+    first.close();
+
+    assertTrue(secondWaiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void cancelledSyncStopsWaiting() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(1);
+    ItcnSyncScheduler.Share holder = scheduler.join("a");
+    assertTrue(holder.acquire(cancellation));
+    ItcnSyncCancellation otherCancellation = new ItcnSyncCancellation();
+
+    CompletableFuture<Boolean> waiting = acquireAsync(scheduler.join("b"), otherCancellation);
+    assertWaiting(waiting);
+    otherCancellation.cancel("test");
+
+    assertFalse(waiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void raisedBudgetGrantsWaitingSyncs() throws Exception {
+    ItcnSyncScheduler scheduler = new ItcnSyncScheduler(1);
+    ItcnSyncScheduler.Share share = scheduler.join("a");
+    assertTrue(share.acquire(cancellation));
+
+    CompletableFuture<Boolean> waiting = acquireAsync(share, cancellation);
+    assertWaiting(waiting);
+    scheduler.setBudget(2);
+
+    assertTrue(waiting.get(5, TimeUnit.SECONDS));
+  }
+
+  // Waits on its own thread, so the permit order does not depend on the
+  // common pool
+  private static CompletableFuture<Boolean> acquireAsync(ItcnSyncScheduler.Share share,
+      ItcnSyncCancellation cancellation) throws InterruptedException {
+    CompletableFuture<Boolean> acquired = new CompletableFuture<>();
+    Thread thread = new Thread(() -> acquired.complete(share.acquire(cancellation)));
+    thread.setDaemon(true);
+    thread.start();
+    // Lets the thread register as waiting before the test goes on
+    Thread.sleep(100);
+    return acquired;
+  }
+
+  private static void assertWaiting(CompletableFuture<Boolean> acquired) throws Exception {
+    try {
+      acquired.get(200, TimeUnit.MILLISECONDS);
+      fail("Expected the sync to wait for a permit");
+    } catch (TimeoutException e) {
+      // Still waiting
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnSyncThrottle.Schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ItcnSyncThrottleTest {
+  // 2026-10-19 is a Monday
+  private static final LocalDateTime MONDAY = LocalDateTime.of(2026, 10, 19, 0, 0);
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void emptyScheduleAlwaysApplies() {
+    assertSame(Schedule.ALWAYS, Schedule.parse(null));
+    assertSame(Schedule.ALWAYS, Schedule.parse(" "));
+    assertTrue(Schedule.ALWAYS.isActive(MONDAY));
+  }
+
+  @Test
+  public void appliesOnTheDaysAndTimesOfARule() {
+    Schedule schedule = Schedule.parse("MON-FRI 07:00-17:00");
+
+    assertTrue(schedule.isActive(MONDAY.withHour(7)));
+    assertTrue(schedule.isActive(MONDAY.plusDays(4).withHour(16).withMinute(59)));
+    assertFalse(schedule.isActive(MONDAY.withHour(6).withMinute(59)));
+    assertFalse(schedule.isActive(MONDAY.withHour(17)));
+    assertFalse(schedule.isActive(MONDAY.plusDays(5).withHour(12)));
+  }
+
+  @Test
+  public void combinesRulesAndDefaultsToEveryDay() {
+    Schedule schedule = Schedule.parse("sat 9:00-12:00, 22:00-24:00");
+
+    assertTrue(schedule.isActive(MONDAY.plusDays(5).withHour(9)));
+    assertFalse(schedule.isActive(MONDAY.plusDays(6).withHour(9)));
+    assertTrue(schedule.isActive(MONDAY.plusDays(6).withHour(23).withMinute(59)));
+    assertTrue(schedule.isActive(MONDAY.withHour(22)));
+  }
+
+  @Test
+  public void dayRangesWrapAroundTheWeek() {
+    Schedule schedule = Schedule.parse("FRI-MON 00:00-24:00");
+
+    assertTrue(schedule.isActive(MONDAY));
+    assertTrue(schedule.isActive(MONDAY.plusDays(6)));
+    assertFalse(schedule.isActive(MONDAY.plusDays(1)));
+  }
+
+  @Test
+  public void rejectsInvalidSchedules() {
+    assertInvalid("MON-FRI 07:00-17:00 extra", "Invalid rule");
+    assertInvalid("MON-FRI 07:00", "Invalid time range");
+    assertInvalid("MO 07:00-17:00", "Invalid day");
+    assertInvalid("MON-TUE-WED 07:00-17:00", "Invalid days");
+    assertInvalid("7am-17:00", "Invalid time");
+    assertInvalid("17:00-07:00", "ends before it starts");
+  }
+
+  @Test
+  public void halvesTheUserRateAfterSlowPagesDownToAFloor() {
+    ItcnSyncThrottle throttle = adaptiveThrottle(100);
+    throttle.pageCommitted(100, 100 * MILLIS);
+    assertEquals(100, throttle.getUserRate(), 0);
+
+    throttle.pageCommitted(100, 300 * MILLIS);
+    assertEquals(50, throttle.getUserRate(), 0);
+
+    for (int i = 0; i < 10; i++) {
+      throttle.pageCommitted(100, 1000 * MILLIS);
+    }
+    assertEquals(5, throttle.getUserRate(), 0);
+  }
+
+  @Test
+  public void raisesTheUserRateByATenthAfterPagesThatAreNotSlow() {
+    ItcnSyncThrottle throttle = adaptiveThrottle(100);
+    throttle.pageCommitted(100, 100 * MILLIS);
+    throttle.pageCommitted(100, 300 * MILLIS);
+    throttle.pageCommitted(100, 300 * MILLIS);
+    assertEquals(25, throttle.getUserRate(), 0);
+
+    throttle.pageCommitted(100, 100 * MILLIS);
+    assertEquals(35, throttle.getUserRate(), 0);
+
+    for (int i = 0; i < 10; i++) {
+      throttle.pageCommitted(100, 100 * MILLIS);
+    }
+    assertEquals(100, throttle.getUserRate(), 0);
+  }
+
+  @Test
+  public void baselineDriftsTowardsLastingPageTimes() {
+    ItcnSyncThrottle throttle = adaptiveThrottle(100);
+    // One unusually fast page
+    throttle.pageCommitted(100, 10 * MILLIS);
+
+    for (int i = 0; i < 100; i++) {
+      throttle.pageCommitted(100, 100 * MILLIS);
+    }
+
+    assertEquals(100, throttle.getUserRate(), 0);
+  }
+
+  @Test
+  public void ignoresPageTimesUnlessAdaptive() {
+    ItcnSyncThrottle throttle = new ItcnSyncThrottle("itcn", 0, 100, Schedule.ALWAYS, false);
+    throttle.pageCommitted(100, 100 * MILLIS);
+    throttle.pageCommitted(100, 1000 * MILLIS);
+
+    assertEquals(100, throttle.getUserRate(), 0);
+  }
+
+  private static ItcnSyncThrottle adaptiveThrottle(int usersPerSecond) {
+    return new ItcnSyncThrottle("itcn", 0, usersPerSecond, Schedule.ALWAYS, true);
+  }
+
+  private static void assertInvalid(String schedule, String message) {
+    try {
+      Schedule.parse(schedule);
+      fail(String.format("Expected '%s' to be rejected", schedule));
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ItcnUserPushBatcherTest {
+  private final ItcnGroupDictionary groupDictionary = new ItcnGroupDictionary();
+
+  private final List<List<ItcnApiUser>> batches = new CopyOnWriteArrayList<>();
+
+  private ItcnUserPushBatcher batcher;
+
+  @After
+  public void tearDown() {
+    if (batcher != null) {
+      batcher.close();
+    }
+  }
+
+  @Test
+  public void coalescesPushesOfTheSameUser() throws Exception {
+    batcher = new ItcnUserPushBatcher("provider-id", this::apply);
+
+    List<CompletableFuture<ItcnUserUpdateResult>> first = batcher.submit(
+        Arrays.asList(apiUser("a@example.com", "First"), apiUser("b@example.com", "First")));
+    List<CompletableFuture<ItcnUserUpdateResult>> second = batcher.submit(
+        Collections.singletonList(apiUser("a@example.com", "Second")));
+
+    assertEquals("a@example.com", second.get(0).get(5, TimeUnit.SECONDS).getUpn());
+    assertEquals("b@example.com", first.get(1).get(5, TimeUnit.SECONDS).getUpn());
+    // Both pushes of the same user get the result of the one apply
+    assertSame(first.get(0), second.get(0));
+
+    assertEquals(1, batches.size());
+    assertEquals(2, batches.get(0).size());
+    assertEquals("Second", batches.get(0).get(0).getFirstName());
+  }
+
+  @Test
+  public void splitsPushesIntoBatchesOfTheMaximumSize() throws Exception {
+    batcher = new ItcnUserPushBatcher("provider-id", this::apply);
+
+    List<ItcnApiUser> apiUsers = new ArrayList<>();
+    for (int i = 0; i < ItcnUserPushBatcher.MAX_BATCH_SIZE + 10; i++) {
+      apiUsers.add(apiUser(String.format("user%d@example.com", i), "First"));
+    }
+    List<CompletableFuture<ItcnUserUpdateResult>> results = batcher.submit(apiUsers);
+    CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+    assertEquals(2, batches.size());
+    assertEquals(ItcnUserPushBatcher.MAX_BATCH_SIZE, batches.get(0).size());
+    assertEquals(10, batches.get(1).size());
+  }
+
+  @Test
+  public void failsTheBatchWhenTheApplierFails() throws Exception {
+    batcher = new ItcnUserPushBatcher("provider-id", apiUsers -> {
+      throw new IllegalStateException("apply failed");
+    });
+
+    CompletableFuture<ItcnUserUpdateResult> result = batcher
+        .submit(Collections.singletonList(apiUser("a@example.com", "First"))).get(0);
+
+    assertFailed(result, "apply failed");
+  }
+
+  @Test
+  public void closeFailsTheUsersNotYetApplied() throws Exception {
+    CountDownLatch applying = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    batcher = new ItcnUserPushBatcher("provider-id", apiUsers -> {
+      applying.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return apply(apiUsers);
+    });
+
+    CompletableFuture<ItcnUserUpdateResult> applied = batcher
+        .submit(Collections.singletonList(apiUser("a@example.com", "First"))).get(0);
+    assertTrue(applying.await(5, TimeUnit.SECONDS));
+    CompletableFuture<ItcnUserUpdateResult> waiting = batcher
+        .submit(Collections.singletonList(apiUser("b@example.com", "First"))).get(0);
+
+    batcher.close();
+    release.countDown();
+
+    assertFailed(waiting, "was closed");
+    assertEquals("a@example.com", applied.get(5, TimeUnit.SECONDS).getUpn());
+    assertFailed(batcher.submit(Collections.singletonList(apiUser("c@example.com", "First"))).get(0),
+        "was closed");
+  }
+
+  private Map<String, ItcnUserUpdateResult> apply(List<ItcnApiUser> apiUsers) {
+    batches.add(apiUsers);
+    Map<String, ItcnUserUpdateResult> results = new HashMap<>();
+    apiUsers.forEach(apiUser -> results.put(apiUser.getUpn(), ItcnUserUpdateResult.unchanged(apiUser.getUpn())));
+    return results;
+  }
+
+  private ItcnApiUser apiUser(String upn, String firstName) {
+    return new ItcnApiUser(upn, upn, firstName, "Last", null, new String[0], groupDictionary);
+  }
+
+  private static void assertFailed(CompletableFuture<ItcnUserUpdateResult> result, String message)
+      throws Exception {
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("Expected the push to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(message));
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package dk.rmgroup.keycloak.storage.api.itcn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+
+import dk.rmgroup.keycloak.storage.api.itcn.ItcnUserReconciler.GroupChanges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ItcnUserReconcilerTest {
+  private static final String FED_ID = "fed-id";
+
+  private ItcnGroupDictionary groupDictionary;
+
+  private InMemoryGroupModel staff;
+
+  private InMemoryGroupModel teachers;
+
+  private InMemoryGroupModel students;
+
+  private InMemoryGroupModel unmapped;
+
+  private Map<String, GroupModel> groupMap;
+
+  @Before
+  public void setUp() {
+    groupDictionary = new ItcnGroupDictionary();
+    staff = new InMemoryGroupModel("g-staff", "Staff");
+    teachers = new InMemoryGroupModel("g-teachers", "Teachers");
+    teachers.setParent(staff);
+    students = new InMemoryGroupModel("g-students", "Students");
+    unmapped = new InMemoryGroupModel("g-unmapped", "Unmapped");
+
+    groupMap = new LinkedHashMap<>();
+    groupMap.put("ITCN Staff", staff);
+    groupMap.put("ITCN Teachers", teachers);
+    groupMap.put("ITCN Students", students);
+    // Two ITCN groups mapped to the same Keycloak group share a slot
+    groupMap.put("ITCN Pupils", students);
+  }
+
+  @Test
+  public void plansJoinsForANewUser() {
+    GroupChanges changes = reconciler(false).planGroups(apiUser("ITCN Students", "ITCN Staff"), null);
+
+    assertEquals(Arrays.asList(staff, students), changes.getToJoin());
+    assertEquals(Collections.emptyList(), changes.getToLeave());
+  }
+
+  @Test
+  public void plansNothingWhenTheUserHasTheMappedGroups() {
+    InMemoryUserModel user = user(students, staff);
+
+    GroupChanges changes = reconciler(false).planGroups(apiUser("ITCN Staff", "ITCN Pupils"), user);
+
+    assertSame(GroupChanges.NONE, changes);
+    assertFalse(changes.hasChanges());
+  }
+
+  @Test
+  public void countsSubgroupMembershipAsParentMembership() {
+    InMemoryUserModel user = user(teachers);
+
+    GroupChanges changes = reconciler(false).planGroups(apiUser("ITCN Staff", "ITCN Teachers"), user);
+
+    assertSame(GroupChanges.NONE, changes);
+  }
+
+  @Test
+  public void leavesMappedGroupsThatAreNoLongerWanted() {
+    InMemoryUserModel user = user(students, teachers, staff);
+
+    GroupChanges changes = reconciler(false).planGroups(apiUser("ITCN Teachers"), user);
+
+    assertEquals(Collections.emptyList(), changes.getToJoin());
+    assertEquals(Arrays.asList("g-staff", "g-students"), changes.getToLeave());
+  }
+
+  @Test
+  public void leavesUnmappedGroupsUnlessOnlyGroupsInTheGroupMapAreUsed() {
+    ItcnApiUser apiUser = apiUser("ITCN Students");
+
+    assertEquals(Collections.singletonList("g-unmapped"),
+        reconciler(false).planGroups(apiUser, user(students, unmapped)).getToLeave());
+    assertSame(GroupChanges.NONE, reconciler(true).planGroups(apiUser, user(students, unmapped)));
+  }
+
+  @Test
+  public void ignoresDirectoryGroupsThatAreNotMapped() {
+    GroupChanges changes = reconciler(true).planGroups(apiUser("Not mapped", "ITCN Staff"), user());
+
+    assertEquals(Collections.singletonList(staff), changes.getToJoin());
+  }
+
+  @Test
+  public void appliesThePlannedChanges() {
+    InMemoryUserModel user = user(students, unmapped);
+    ItcnUserReconciler reconciler = reconciler(false);
+    ItcnApiUser apiUser = apiUser("ITCN Staff");
+
+    reconciler.applyGroups(reconciler.planGroups(apiUser, user), user);
+
+    assertEquals(Collections.singletonList(staff), groups(user));
+    assertSame(GroupChanges.NONE, reconciler.planGroups(apiUser, user));
+  }
+
+  @Test
+  public void findsNoChangedFieldsForAUserWithTheDirectoryData() {
+    assertEquals(EnumSet.noneOf(ItcnUserField.class), reconciler(false).changedFields(apiUser(), linkedUser()));
+  }
+
+  @Test
+  public void findsTheFieldsThatDiffer() {
+    InMemoryUserModel user = linkedUser();
+    user.setFirstName("Old");
+    user.setSingleAttribute("mobile", "87654321");
+
+    assertEquals(EnumSet.of(ItcnUserField.FIRST_NAME, ItcnUserField.MOBILE),
+        reconciler(false).changedFields(apiUser(), user));
+  }
+
+  @Test
+  public void leavesADisabledUserWithTheDirectoryDataDisabled() {
+    InMemoryUserModel user = linkedUser();
+    user.setEnabled(false);
+    user.setEmailVerified(false);
+
+    ItcnUserReconciler reconciler = reconciler(false);
+    assertEquals(EnumSet.noneOf(ItcnUserField.class), reconciler.applyAttributes(apiUser(), user));
+    assertFalse(user.isEnabled());
+    assertFalse(user.isEmailVerified());
+  }
+
+  @Test
+  public void enablesAndVerifiesAUserWhoseDirectoryDataChanged() {
+    InMemoryUserModel user = linkedUser();
+    user.setEnabled(false);
+    user.setEmailVerified(false);
+    user.setLastName("Old");
+
+    ItcnUserReconciler reconciler = reconciler(false);
+    assertEquals(EnumSet.of(ItcnUserField.EMAIL_VERIFIED, ItcnUserField.LAST_NAME, ItcnUserField.ENABLED),
+        reconciler.applyAttributes(apiUser(), user));
+    assertTrue(user.isEnabled());
+    assertTrue(user.isEmailVerified());
+    assertEquals("Last", user.getLastName());
+  }
+
+  @Test
+  public void linksAUserOfAnotherProvider() {
+    InMemoryUserModel user = linkedUser();
+    user.setFederationLink("other-fed-id");
+
+    assertEquals(EnumSet.of(ItcnUserField.FEDERATION_LINK), reconciler(false).applyAttributes(apiUser(), user));
+    assertEquals(FED_ID, user.getFederationLink());
+  }
+
+  @Test
+  public void keepsTheMobileWhenTheDirectoryHasNoneAndEmptyMustNotOverrideIt() {
+    ItcnApiUser apiUser = new ItcnApiUser("user@example.com", "user@example.com", "First", "Last", null,
+        new String[0], groupDictionary);
+
+    assertEquals(EnumSet.noneOf(ItcnUserField.class),
+        new ItcnUserReconciler(FED_ID, null, groupMap, false, true).changedFields(apiUser, linkedUser()));
+    assertEquals(EnumSet.of(ItcnUserField.MOBILE), reconciler(false).changedFields(apiUser, linkedUser()));
+  }
+
+  @Test
+  public void writesOnlyTheChangedFields() {
+    InMemoryUserModel user = linkedUser();
+    user.setEmail("old@example.com");
+    int writes = user.getWrites();
+
+    reconciler(false).applyAttributes(apiUser(), user);
+
+    assertEquals(writes + 1, user.getWrites());
+    assertEquals("user@example.com", user.getEmail());
+  }
+
+  private ItcnUserReconciler reconciler(boolean onlyUseGroupsInGroupMap) {
+    return new ItcnUserReconciler(FED_ID, null, groupMap, onlyUseGroupsInGroupMap, false);
+  }
+
+  private ItcnApiUser apiUser(String... groups) {
+    return new ItcnApiUser("user@example.com", "user@example.com", "First", "Last", "12345678", groups,
+        groupDictionary);
+  }
+
+  private static InMemoryUserModel user(GroupModel... groups) {
+    InMemoryUserModel user = new InMemoryUserModel("user-id", "user@example.com");
+    for (GroupModel group : groups) {
+      user.joinGroup(group);
+    }
+    return user;
+  }
+
+  // A user linked to the provider with the data of apiUser
+  private static InMemoryUserModel linkedUser() {
+    InMemoryUserModel user = new InMemoryUserModel("user-id", "user@example.com");
+    user.setFederationLink(FED_ID);
+    user.setEmail("user@example.com");
+    user.setEmailVerified(true);
+    user.setFirstName("First");
+    user.setLastName("Last");
+    user.setSingleAttribute("mobile", "12345678");
+    user.setEnabled(true);
+    return user;
+  }
+
+  private static List<GroupModel> groups(InMemoryUserModel user) {
+    return Arrays.asList(user.getGroupsStream().toArray(GroupModel[]::new));
+  }
+}